@@ -76,39 +76,54 @@ var app = {
             });
         });
 
-        lm.getAlbumList(function(albums) {
-            console.log("onSuccess");
-            if(!albums) {
+        $('#list_albums').on('click', 'a', function() {
+            console.log('#list_albums#click');
+        // $('ul[id="list_albums"] a').on('vclick', function() {
+        //     console.log('#list_albums#vclick');
+        // $('ul[id="list_albums"] a').on('touchend', function(e) {
+        //     console.log('#list_albums#touchend');
+        //     e.preventDefault();
+
+            var url = $(this).attr("href");
+            var albumId = url.replace(/.*id=/, "");
+            console.log('url: ' + url);
+            console.log('albumId: ' + albumId);
+
+            $('#page_album_tracks').data('param', {albumId: albumId});
+        });
+
+        // Render each page as soon as it arrives so that the first screen does not wait for the whole list.
+        lm.getAlbumPages(ALBUM_PAGE_SIZE, function(page) {
+            console.log("onSuccess offset: " + page.offset + ", total: " + page.total);
+            if(!page.albums) {
                 console.log('The album is empty.')
                 return;
-            } else {
-                $.each(albums, function(index, album) {
-                    var item = '<li><a href="#page_album_tracks?id=' + album.id + '" data-transition="slide">' +
-                    '<img src="' + album.artwork + '"/>' +
-                    '<h4>' + album.name + '</h4>' +
-                    '<p>' + album.artist + '</p>' +
-                    '<span class="ui-li-count">' + album.numTracks + '</span></a></li>';
-                    // console.log(item);
-                    $('#list_albums').append(item);
-                });
-                $('#list_albums').listview('refresh');
-
-                $('ul[id="list_albums"] a').on('click', function() {
-                    console.log('#list_albums#click');
-                // $('ul[id="list_albums"] a').on('vclick', function() {
-                //     console.log('#list_albums#vclick');
-                // $('ul[id="list_albums"] a').on('touchend', function(e) {
-                //     console.log('#list_albums#touchend');
-                //     e.preventDefault();
-
-                    var url = $(this).attr("href");
-                    var albumId = url.replace(/.*id=/, "");
-                    console.log('url: ' + url);
-                    console.log('albumId: ' + albumId);
-
-                    $('#page_album_tracks').data('param', {albumId: albumId});
-                });
             }
+
+            var items = '';
+            $.each(page.albums, function(index, album) {
+                // The full size artwork is never loaded. Missing thumbnails are requested once the row is visible.
+                var thumbnail = album.thumbnail ? album.thumbnail : EMPTY_IMAGE;
+                var pending = (!album.thumbnail && album.artwork) ? ' data-album="' + album.id + '"' : '';
+                items += '<li><a href="#page_album_tracks?id=' + album.id + '" data-transition="slide">' +
+                '<img src="' + thumbnail + '"' + pending + '/>' +
+                '<h4>' + album.name + '</h4>' +
+                '<p>' + album.artist + '</p>' +
+                '<span class="ui-li-count">' + album.numTracks + '</span></a></li>';
+            });
+            $('#list_albums').append(items);
+            $('#list_albums').listview('refresh');
+            requestVisibleThumbnails();
+        });
+
+        $(window).on('scroll', function() {
+            if(thumbnailTimer)
+                return;
+
+            thumbnailTimer = setTimeout(function() {
+                thumbnailTimer = null;
+                requestVisibleThumbnails();
+            }, THUMBNAIL_SCROLL_DELAY);
         });
     },
 
@@ -134,6 +149,7 @@ var app = {
                 $('#list_tracks').append(item);
             });
             $('#list_tracks').listview('refresh');
+            renderedIndex = -1;
 
             // Store the album ID to verify a play state changed event
             currentAlbumId = albumId;
@@ -149,8 +165,8 @@ var app = {
             $.each(data.tracks, function(index, track) {
                 trackIds.push(track.id);
             });
-            pb.setTracks(trackIds, function() {
-                console.log('setTracks#onSuccess');
+            pb.setPackedTracks(trackIds, function() {
+                console.log('setPackedTracks#onSuccess');
 
                 $('ul[id="list_tracks"] li').on('click', function() {
                     var index = $(this).index();
@@ -172,41 +188,101 @@ var app = {
     }
 };
 
+// Applies a play state message. It may be a delta with the changed values only.
 function onPlayStateChanged(parameter) {
-    console.log('onPlayStateChanged state: ' + parameter.state + ", albumId: " + parameter.albumId + ", index: " + parameter.index);
+    if(parameter.seq < playState.seq) {
+        console.log('onPlayStateChanged out of date seq: ' + parameter.seq);
+        return;
+    }
+
+    playState.seq = parameter.seq;
+    if(parameter.albumId !== undefined)
+        playState.albumId = parameter.albumId;
+    if(parameter.state !== undefined)
+        playState.state = parameter.state;
+    if(parameter.index !== undefined)
+        playState.index = parameter.index;
+    // The metadata comes along with a track change, so nothing has to be looked up.
+    if(parameter.track !== undefined)
+        playState.track = parameter.track;
+
+    console.log('onPlayStateChanged state: ' + playState.state + ", albumId: " + playState.albumId + ", index: " + playState.index +
+                (playState.track ? ", track: " + playState.track.title : ""));
+    renderPlayState();
+}
 
+function renderPlayState() {
     if($.mobile.activePage.attr('id') != 'page_album_tracks') {
         console.log('This page is not page_album_tracks.');
         return;
     }
 
-    if(parameter.albumId != currentAlbumId) {
-        console.log('This page (' + currentAlbumId + ') is not the album page (' + parameter.albumId + '.)');
+    if(playState.albumId != currentAlbumId) {
+        console.log('This page (' + currentAlbumId + ') is not the album page (' + playState.albumId + '.)');
         return;
     }
 
-    var playState = null;
-    switch(parameter.state) {
+    var label = null;
+    switch(playState.state) {
     case 0:
-        playState = "Playing";
+        label = "Playing";
         break;
     case 1:
-        playState = "Paused";
+        label = "Paused";
         break;
     default:
-        playState = "";
+        label = "";
         break;
     }
 
-    $('ul[id="list_tracks"] li:nth-child(' + (parameter.index + 1) + ') span[class="ui-li-aside"]').html(playState);
-
-    $('ul[id="list_tracks"] li').each(function(i, element) {
-        if(i != parameter.index) {
-            $('ul[id="list_tracks"] li:nth-child(' + (i + 1) + ') span[class="ui-li-aside"]').html("");
-        }
-    });
+    // Only the row which showed the state before and the current one are touched.
+    var rows = $('#list_tracks').children('li');
+    if(renderedIndex >= 0 && renderedIndex != playState.index) {
+        rows.eq(renderedIndex).find('span.ui-li-aside').html("");
+    }
+    if(playState.index < 0) {
+        renderedIndex = -1;
+        return;
+    }
+    rows.eq(playState.index).find('span.ui-li-aside').html(label);
+    renderedIndex = playState.index;
 }
 
 var isDeviceReady = false;
 var isPageCreated = false;
 var currentAlbumId = -1;
+
+// The play state merged from the messages and the row which shows it.
+var playState = { seq: -1, albumId: -1, state: -1, index: -1, track: null };
+var renderedIndex = -1;
+var ALBUM_PAGE_SIZE = 30;
+
+// A transparent GIF shown until the thumbnail of a row is ready.
+var EMPTY_IMAGE = 'data:image/gif;base64,R0lGODlhAQABAIAAAAAAAP///yH5BAEAAAAALAAAAAABAAEAAAIBRAA7';
+var THUMBNAIL_SCROLL_DELAY = 150;
+var thumbnailTimer = null;
+
+// Requests the thumbnails of the rows on the screen which do not have one yet.
+function requestVisibleThumbnails() {
+    var top = $(window).scrollTop();
+    var bottom = top + $(window).height();
+    var albumIds = [];
+    $('#list_albums img[data-album]').each(function(i, element) {
+        var y = $(element).offset().top;
+        if(y + $(element).height() < top || y > bottom)
+            return;
+
+        albumIds.push(parseInt($(element).attr('data-album'), 10));
+        $(element).removeAttr('data-album');
+    });
+    if(albumIds.length == 0)
+        return;
+
+    lm.getThumbnails(albumIds, function(result) {
+        $.each(result.thumbnails, function(index, item) {
+            if(item.thumbnail) {
+                $('#list_albums a[href="#page_album_tracks?id=' + item.id + '"] img').attr('src', item.thumbnail);
+            }
+        });
+    });
+}
@@ -22,12 +22,49 @@ cordova.define('cordova/plugin/list_manager', function(require, exports, module)
 
     var ListManager = function() {};
 
+    // The results written as JSON text on the native side arrive as strings.
+    function parsed(callback) {
+        return function(json) {
+            callback(JSON.parse(json));
+        };
+    }
+
     ListManager.prototype.getAlbumList = function(onSuccess) {
-        exec(onSuccess, function(err) { console.log(err); }, 'ListManager', 'get_album_info', []);
+        exec(parsed(onSuccess), function(err) { console.log(err); }, 'ListManager', 'get_album_info', []);
+    }
+
+    // onPage receives {offset, total, last, albums} for each page of pageSize albums.
+    ListManager.prototype.getAlbumPages = function(pageSize, onPage) {
+        exec(parsed(onPage), function(err) { console.log(err); }, 'ListManager', 'get_album_info', [0, 0, pageSize]);
     }
 
     ListManager.prototype.getTrackList = function(albumId, onSuccess) {
-        exec(onSuccess, function(err) { console.log(err); }, 'ListManager', 'get_track_info', [albumId]);
+        exec(parsed(onSuccess), function(err) { console.log(err); }, 'ListManager', 'get_track_info', [albumId]);
+    }
+
+    // onChunk receives {last, albums: [{id, album, artwork, tracks}]} for each chunk of albumsPerChunk albums.
+    ListManager.prototype.getTrackLists = function(albumIds, albumsPerChunk, onChunk) {
+        exec(parsed(onChunk), function(err) { console.log(err); }, 'ListManager', 'get_tracks_info', [albumIds, albumsPerChunk]);
+    }
+
+    // spec: {fields, artist, album, minDuration, maxDuration, titlePrefix, sort, offset, limit}
+    // onSuccess receives {offset, total, tracks}.
+    ListManager.prototype.queryTracks = function(spec, onSuccess) {
+        exec(onSuccess, function(err) { console.log(err); }, 'ListManager', 'query_tracks', [spec]);
+    }
+
+    // onSuccess receives {total, tracks} for the words typed so far.
+    ListManager.prototype.search = function(query, limit, onSuccess) {
+        exec(onSuccess, function(err) { console.log(err); }, 'ListManager', 'search', [query, limit]);
+    }
+
+    // onSuccess receives {thumbnails: [{id, thumbnail}]}. Missing thumbnails are generated first.
+    ListManager.prototype.getThumbnails = function(albumIds, onSuccess) {
+        exec(parsed(onSuccess), function(err) { console.log(err); }, 'ListManager', 'get_thumbnails', [albumIds]);
+    }
+
+    ListManager.prototype.getLibraryStats = function(onSuccess) {
+        exec(onSuccess, function(err) { console.log(err); }, 'ListManager', 'get_library_stats', []);
     }
 
     var listManager = new ListManager();
@@ -26,14 +26,44 @@ cordova.define('cordova/plugin/playback_controller', function(require, exports,
         exec(onSuccess, function(err) { console.log(err); }, 'PlaybackController', 'setTracks', trackIds);
     }
 
+    // Sends the track IDs packed as little endian 64 bit integers instead of a JSON array.
+    PlaybackController.prototype.setPackedTracks = function(trackIds, onSuccess) {
+        if(typeof ArrayBuffer === 'undefined' || typeof DataView === 'undefined') {
+            this.setTracks(trackIds, onSuccess);
+            return;
+        }
+
+        var buffer = new ArrayBuffer(trackIds.length * 8);
+        var view = new DataView(buffer);
+        for(var i = 0; i < trackIds.length; i++) {
+            var id = trackIds[i];
+            view.setUint32(i * 8, id % 0x100000000, true);
+            view.setUint32(i * 8 + 4, Math.floor(id / 0x100000000), true);
+        }
+        exec(onSuccess, function(err) { console.log(err); }, 'PlaybackController', 'setPackedTracks', [buffer]);
+    }
+
     PlaybackController.prototype.setIndex = function(albumId, index, onSuccess) {
         exec(onSuccess, function(err) { console.log(err); }, 'PlaybackController', 'setIndex', [albumId, index]);
     }
 
+    // onChanged receives {seq, albumId, state, index, track, full: true} first and then only the
+    // changed values, e.g. {seq: 5, index: 3, track: {id, title, artist, album, albumId, duration, artwork}}.
+    // A message whose seq is lower than the last one applied is out of date.
     PlaybackController.prototype.setPlayStateChangedCallback = function(onChanged) {
         exec(onChanged, function(err) { console.log(err); }, 'PlaybackController', 'setPlayStateChangedCallback', []);
     }
 
+    // onProgress receives {index, position, duration, buffered} whenever one of them changes,
+    // at most once per intervalMs. The times are in milliseconds and buffered is a percentage.
+    PlaybackController.prototype.setProgressCallback = function(intervalMs, onProgress) {
+        exec(onProgress, function(err) { console.log(err); }, 'PlaybackController', 'setProgressCallback', [intervalMs]);
+    }
+
+    PlaybackController.prototype.clearProgressCallback = function(onSuccess) {
+        exec(onSuccess, function(err) { console.log(err); }, 'PlaybackController', 'clearProgressCallback', []);
+    }
+
     PlaybackController.prototype.playTrack = function(onSuccess) {
         exec(onSuccess, function(err) { console.log(err); }, 'PlaybackController', 'playTrack', []);
     }
@@ -58,6 +88,12 @@ cordova.define('cordova/plugin/playback_controller', function(require, exports,
         exec(onSuccess, function(err) { console.log(err); }, 'PlaybackController', 'getPlayState', []);
     }
 
+    // onSuccess receives {periodMs, histograms: {name: {count, meanUs, p50Us, p90Us, p99Us, maxUs}}, counters}.
+    // dump writes it to metrics.json in the files directory as well and reset starts a new period.
+    PlaybackController.prototype.getMetrics = function(dump, reset, onSuccess) {
+        exec(onSuccess, function(err) { console.log(err); }, 'PlaybackController', 'getMetrics', [!!dump, !!reset]);
+    }
+
     var playbackController = new PlaybackController();
     module.exports = playbackController;
 });
\ No newline at end of file
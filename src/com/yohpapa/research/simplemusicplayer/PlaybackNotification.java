@@ -0,0 +1,226 @@
+/**
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package com.yohpapa.research.simplemusicplayer;
+
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.support.v4.app.NotificationCompat;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.yohpapa.research.simplemusicplayer.plugins.tools.BitmapPool;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.MetricsRegistry;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the foreground notification of PlaybackService.
+ * The pending intents are created once, bursts of updates are coalesced and
+ * the notification is not published again when nothing visible has changed.
+ */
+class PlaybackNotification {
+    private static final String TAG = PlaybackNotification.class.getSimpleName();
+
+    private static final long DEBOUNCE_MS = 100L;
+
+    static final int PLAY_STATE_PAUSED = 0;
+    static final int PLAY_STATE_PLAYING = 1;
+    static final int AUDIO_PATH_SPEAKER = 0;
+    static final int AUDIO_PATH_WIRED = 1;
+    static final int AUDIO_PATH_A2DP = 2;
+    static final int AUDIO_PATH_UNKNOWN = -1;
+
+    private final Service service;
+    private final Handler handler = new Handler();
+    private final BitmapPool bitmaps = BitmapPool.getInstance();
+    private final MetricsRegistry.Histogram buildTime =
+                    MetricsRegistry.getInstance().histogram(MetricsRegistry.NOTIFICATION_BUILD);
+    private final AtomicLong skipped = MetricsRegistry.getInstance().counter(MetricsRegistry.NOTIFICATIONS_SKIPPED);
+
+    private final PendingIntent prevIntent;
+    private final PendingIntent stopIntent;
+    private final PendingIntent pauseIntent;
+    private final PendingIntent playIntent;
+    private final PendingIntent nextIntent;
+    private final PendingIntent contentIntent;
+
+    // Requested by the latest update.
+    private int playState;
+    private int audioPath;
+    private String title;
+    private String artist;
+    private String album;
+    // A reference to it is held until it is replaced or the notification is cancelled.
+    private Bitmap artwork;
+
+    // Shown by the notification now.
+    private boolean isPublished = false;
+    private int publishedPlayState;
+    private int publishedAudioPath;
+    private String publishedTitle;
+    private String publishedArtist;
+    private String publishedAlbum;
+    // Only compared with the requested one, so no reference is held.
+    private Bitmap publishedArtwork;
+    private long publishedWhen;
+
+    private boolean isPending = false;
+    private int publishCount = 0;
+    private int skipCount = 0;
+    private int coalescedCount = 0;
+    private long publishTime = 0L;
+
+    PlaybackNotification(Service service) {
+        this.service = service;
+
+        prevIntent = createServiceIntent(PlaybackService.ACTION_TRACK_DOWN);
+        stopIntent = createServiceIntent(PlaybackService.ACTION_STOP);
+        pauseIntent = createServiceIntent(PlaybackService.ACTION_PAUSE);
+        playIntent = createServiceIntent(PlaybackService.ACTION_PLAY);
+        nextIntent = createServiceIntent(PlaybackService.ACTION_TRACK_UP);
+
+        Intent intent = new Intent(service, SimpleMusicPlayer.class);
+        contentIntent = PendingIntent.getActivity(service, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private PendingIntent createServiceIntent(String action) {
+        Intent intent = new Intent(service, PlaybackService.class);
+        intent.setAction(action);
+        return PendingIntent.getService(service, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Requests to show the notification. It is published after a short quiet period,
+     * so only the last one of a burst of updates is built.
+     */
+    void update(int playState, int audioPath, String title, String artist, String album, Bitmap artwork) {
+        this.playState = playState;
+        this.audioPath = audioPath;
+        this.title = title;
+        this.artist = artist;
+        this.album = album;
+        if(artwork != this.artwork) {
+            bitmaps.retain(artwork);
+            bitmaps.release(this.artwork);
+            this.artwork = artwork;
+        }
+
+        if(isPending) {
+            coalescedCount ++;
+        }
+        isPending = true;
+        handler.removeCallbacks(publisher);
+        handler.postDelayed(publisher, DEBOUNCE_MS);
+    }
+
+    void cancel() {
+        handler.removeCallbacks(publisher);
+        isPending = false;
+        isPublished = false;
+        publishedArtwork = null;
+        bitmaps.release(artwork);
+        artwork = null;
+    }
+
+    private final Runnable publisher = new Runnable() {
+        @Override
+        public void run() {
+            publish();
+        }
+    };
+
+    private boolean isChanged() {
+        return !isPublished ||
+               playState != publishedPlayState ||
+               audioPath != publishedAudioPath ||
+               artwork != publishedArtwork ||
+               !TextUtils.equals(title, publishedTitle) ||
+               !TextUtils.equals(artist, publishedArtist) ||
+               !TextUtils.equals(album, publishedAlbum);
+    }
+
+    private void publish() {
+        isPending = false;
+        if(!isChanged()) {
+            skipCount ++;
+            skipped.incrementAndGet();
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        if(!TextUtils.equals(title, publishedTitle) || !isPublished) {
+            publishedWhen = System.currentTimeMillis();
+        }
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(service);
+        builder.setWhen(publishedWhen);
+        builder.setContentTitle(title);
+
+        if(artwork != null) {
+            builder.setLargeIcon(artwork);
+        }
+        int icon = R.drawable.ic_launcher;
+        if(audioPath == AUDIO_PATH_SPEAKER) {
+            icon = R.drawable.ic_speaker;
+        } else if(audioPath == AUDIO_PATH_A2DP) {
+            icon = R.drawable.ic_a2dp;
+        } else if(audioPath == AUDIO_PATH_WIRED) {
+            icon = R.drawable.ic_wired;
+        }
+        builder.setSmallIcon(icon);
+
+        builder.setTicker(title);
+        builder.setPriority(NotificationCompat.PRIORITY_HIGH);
+        builder.setContentText(artist);
+        builder.setSubText(album);
+
+        if(playState == PLAY_STATE_PAUSED) {
+            builder.addAction(android.R.drawable.ic_media_previous, "Prev", prevIntent);
+            builder.addAction(android.R.drawable.ic_media_pause, "Pause", pauseIntent);
+        } else {
+            builder.addAction(android.R.drawable.ic_delete, "Stop", stopIntent);
+            builder.addAction(android.R.drawable.ic_media_play, "Play", playIntent);
+        }
+        builder.addAction(android.R.drawable.ic_media_next, "Next", nextIntent);
+        builder.setContentIntent(contentIntent);
+
+        service.startForeground(R.id.notification_id, builder.build());
+
+        isPublished = true;
+        publishedPlayState = playState;
+        publishedAudioPath = audioPath;
+        publishedTitle = title;
+        publishedArtist = artist;
+        publishedAlbum = album;
+        publishedArtwork = artwork;
+
+        long elapsed = System.nanoTime() - start;
+        buildTime.record(elapsed / 1000L);
+        publishCount ++;
+        publishTime += elapsed;
+        Log.d(TAG, "Notification published in " + elapsed / 1000L + "us" +
+                   " (published: " + publishCount + ", skipped: " + skipCount + ", coalesced: " + coalescedCount +
+                   ", average: " + publishTime / publishCount / 1000L + "us)");
+    }
+}
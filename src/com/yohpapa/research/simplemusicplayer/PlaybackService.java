@@ -20,7 +20,6 @@
 package com.yohpapa.research.simplemusicplayer;
 
 import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
@@ -32,69 +31,109 @@ import android.content.IntentFilter;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.provider.MediaStore;
-import android.support.v4.app.NotificationCompat;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.yohpapa.research.simplemusicplayer.plugins.events.PauseEvent;
-import com.yohpapa.research.simplemusicplayer.plugins.events.PlayEvent;
-import com.yohpapa.research.simplemusicplayer.plugins.events.PlayPauseEvent;
-import com.yohpapa.research.simplemusicplayer.plugins.events.PlayStateChangedEvent;
-import com.yohpapa.research.simplemusicplayer.plugins.events.PrepareEvent;
-import com.yohpapa.research.simplemusicplayer.plugins.events.TrackChangedEvent;
+import com.yohpapa.research.simplemusicplayer.plugins.events.PlaybackEvents;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.ArtworkDecoder;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.BitmapPool;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.BoundProjection;
 import com.yohpapa.research.simplemusicplayer.plugins.tools.CursorHelper;
-
+import com.yohpapa.research.simplemusicplayer.plugins.tools.LongIntMap;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.MediaLibrary;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.MetricsRegistry;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.PlaybackCommandQueue;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.PlaybackSnapshot;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.PlaybackStateMachine;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.TrackPrefetcher;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.TrackQueue;
+
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-
-import de.greenrobot.event.EventBus;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PlaybackService extends Service
         implements MediaPlayer.OnCompletionListener,
                    MediaPlayer.OnPreparedListener,
                    MediaPlayer.OnErrorListener,
-                   MediaPlayer.OnSeekCompleteListener {
+                   MediaPlayer.OnSeekCompleteListener,
+                   MediaPlayer.OnBufferingUpdateListener {
 
     private static final String TAG = PlaybackService.class.getSimpleName();
     private static final String URI_BASE = PlaybackService.class.getName() + ".";
-    private static final String ACTION_PAUSE = URI_BASE + "ACTION_PAUSE";
-    private static final String ACTION_PLAY = URI_BASE + "ACTION_PLAY";
-    private static final String ACTION_STOP = URI_BASE + "ACTION_STOP";
-    private static final String ACTION_TRACK_UP = URI_BASE + "ACTION_TRACK_UP";
-    private static final String ACTION_TRACK_DOWN = URI_BASE + "ACTION_TRACK_DOWN";
+    static final String ACTION_PAUSE = URI_BASE + "ACTION_PAUSE";
+    static final String ACTION_PLAY = URI_BASE + "ACTION_PLAY";
+    static final String ACTION_STOP = URI_BASE + "ACTION_STOP";
+    static final String ACTION_TRACK_UP = URI_BASE + "ACTION_TRACK_UP";
+    static final String ACTION_TRACK_DOWN = URI_BASE + "ACTION_TRACK_DOWN";
 
     public static final String ACTION_SELECT = URI_BASE + "ACTION_SELECT";
     public static final String PRM_START_INDEX = URI_BASE + "PRM_START_INDEX";
     public static final String PRM_TRACK_LIST = URI_BASE + "PRM_TRACK_LIST";
+    public static final String PRM_QUEUE_HANDLE = URI_BASE + "PRM_QUEUE_HANDLE";
 
     private static final String ACTION_BLUETOOTH_META_CHANGED = "com.android.music.metachanged";
     private static final String ACTION_BLUETOOTH_PLAY_STATE_CHANGED = "com.android.music.playstatechanged";
 
     private static final float DUCKING_VOLUME_LEVEL = 0.3f;
 
-    private EventBus eventBus = null;
+    private final PlaybackEvents events = PlaybackEvents.getInstance();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService notificationLoader = Executors.newSingleThreadExecutor();
+    private boolean isDestroyed = false;
 
     private long[] trackIds = null;
     private int currentIndex = -1;
 
-    private int positionToRestore = -1;
-
-    private static final int STATE_IDLE = 0;
-    private static final int STATE_PREPARING = 1;
-    private static final int STATE_PREPARED = 2;
-    private static final int STATE_SEEKING = 3;
-    private int state = STATE_IDLE;
-
     private MediaPlayer player = null;
-    private List<Runnable> postProcesses = new ArrayList<Runnable>();
+    private PlaybackStateMachine machine = null;
+    private MediaPlayer nextPlayer = null;
+    private int nextPlayerIndex = -1;
+    private boolean isNextPlayerPrepared = false;
+    private long trackChangeStartedAt = 0L;
+    // Local files never report buffering, so a track counts as buffered until its player says otherwise.
+    private int bufferedPercent = 100;
+
+    private static final int PREFETCH_BYTES = 256 * 1024;
+    private static final long PREFETCH_BUDGET_BYTES = 4L * 1024L * 1024L;
+    private static final long PREFETCH_BUDGET_WINDOW_MS = 60L * 1000L;
+    private TrackPrefetcher prefetcher = null;
+    private long prepareStartedAt = 0L;
+
+    private static final String SNAPSHOT_FILE_NAME = "playback.snapshot";
+    private static final long SNAPSHOT_INTERVAL_MS = 5000L;
+    private PlaybackSnapshot snapshot = null;
+    private Handler snapshotHandler = null;
+    private long resumeStartedAt = 0L;
+    private final PlaybackCommandQueue commands = new PlaybackCommandQueue();
+    // False while the current track is only the one restored from the snapshot.
+    private boolean isTrackSelected = false;
+
+    // The start times are System.nanoTime() and 0 while nothing is measured.
+    private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+    private final MetricsRegistry.Histogram prepareTime = metrics.histogram(MetricsRegistry.PREPARE);
+    private final MetricsRegistry.Histogram seekTime = metrics.histogram(MetricsRegistry.SEEK);
+    private final MetricsRegistry.Histogram commandToStartTime = metrics.histogram(MetricsRegistry.COMMAND_TO_START);
+    private final MetricsRegistry.Histogram commandQueuedTime = metrics.histogram(MetricsRegistry.COMMAND_QUEUED);
+    private final MetricsRegistry.Histogram trackChangeTime = metrics.histogram(MetricsRegistry.TRACK_CHANGE);
+    private final MetricsRegistry.Histogram metadataLookupTime = metrics.histogram(MetricsRegistry.METADATA_LOOKUP);
+    private final MetricsRegistry.Histogram artworkDecodeTime = metrics.histogram(MetricsRegistry.ARTWORK_DECODE);
+    private final AtomicLong playerErrors = metrics.counter(MetricsRegistry.PLAYER_ERRORS);
+    private long seekStartedAt = 0L;
+    private long playCommandAt = 0L;
+    private long commandQueuedAt = 0L;
 
     private class CurrentTrackInfo {
         private String title = null;
@@ -126,13 +165,11 @@ public class PlaybackService extends Service
             return albumName;
         }
 
+        /**
+         * Takes over a reference to the artwork from the caller and gives back the previous one.
+         */
         public void setArtwork(Bitmap artwork) {
-            if(this.artwork != null) {
-                if(this.artwork != artwork && !this.artwork.isRecycled()) {
-                    this.artwork.recycle();
-                }
-            }
-
+            bitmaps.release(this.artwork);
             this.artwork = artwork;
         }
 
@@ -141,6 +178,11 @@ public class PlaybackService extends Service
         }
     }
     private CurrentTrackInfo currentTrackInfo = new CurrentTrackInfo();
+    private PlaybackNotification notification = null;
+
+    private static final int BYTES_PER_PIXEL = 4;
+    private final BitmapPool bitmaps = BitmapPool.getInstance();
+    private final ArtworkDecoder artworkDecoder = new ArtworkDecoder(bitmaps);
 
     // --------------------------------------------------------------------------------------------
     // Service lifecycle event methods block
@@ -151,9 +193,18 @@ public class PlaybackService extends Service
         Log.d(TAG, "onCreate");
         super.onCreate();
 
+        MediaLibrary.getInstance(this).start();
+
+        machine = new PlaybackStateMachine(playerPort);
         player = initializePlayer();
-        eventBus = EventBus.getDefault();
-        eventBus.registerSticky(this);
+        machine.acquire();
+        notification = new PlaybackNotification(this);
+        prefetcher = new TrackPrefetcher(this, PREFETCH_BYTES, PREFETCH_BUDGET_BYTES, PREFETCH_BUDGET_WINDOW_MS);
+        snapshotHandler = new Handler();
+        restoreSnapshot();
+
+        events.setCommandListener(commandListener);
+        events.setProgressSource(progressSource);
     }
 
     @Override
@@ -161,14 +212,46 @@ public class PlaybackService extends Service
         Log.d(TAG, "onDestroy");
         super.onDestroy();
 
-        eventBus.unregister(this);
+        isDestroyed = true;
+        events.setCommandListener(null);
+        events.setProgressSource(null);
+        notificationLoader.shutdownNow();
+
+        Log.d(TAG, "Commands posted: " + commands.getPostedCount() +
+                   ", executed: " + commands.getExecutedCount() +
+                   ", collapsed: " + commands.getCollapsedCount() +
+                   ", dropped: " + commands.getDroppedCount());
+        commands.clear();
 
+        Log.d(TAG, "Prepare latency with prefetch: " + prefetcher.getWarmLatency() +
+                   ", without prefetch: " + prefetcher.getColdLatency() +
+                   ", prefetched: " + prefetcher.getPrefetchCount() +
+                   ", over budget: " + prefetcher.getOverBudgetCount());
+        prefetcher.shutdown();
+
+        snapshotHandler.removeCallbacks(positionSaver);
         finalizePlayer();
+        snapshot.close();
 
+        notification.cancel();
         NotificationManager manager = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
         manager.cancel(R.id.notification_id);
 
         abandonAudioFocus();
+
+        currentTrackInfo.setArtwork(null);
+        bitmaps.evictIdle();
+        artworkDecoder.clear();
+        Log.d(TAG, "Bitmaps " + bitmaps);
+    }
+
+    @Override
+    public void onLowMemory() {
+        Log.d(TAG, "onLowMemory");
+        super.onLowMemory();
+
+        bitmaps.evictIdle();
+        artworkDecoder.clear();
     }
 
     @Override
@@ -191,13 +274,27 @@ public class PlaybackService extends Service
         if(ACTION_PAUSE.equals(action)) {
             pauseTrack();
         } else if(ACTION_PLAY.equals(action)) {
+            markPlayCommand();
             playTrack();
         } else if(ACTION_STOP.equals(action)) {
             stopTrack();
         } else if(ACTION_SELECT.equals(action)) {
             int startIndex = intent.getIntExtra(PRM_START_INDEX, 0);
-            long[] trackList = intent.getLongArrayExtra(PRM_TRACK_LIST);
-            eventBus.post(new PrepareEvent(trackList, startIndex));
+            long[] trackList = null;
+            if(intent.hasExtra(PRM_QUEUE_HANDLE)) {
+                trackList = TrackQueue.get(intent.getIntExtra(PRM_QUEUE_HANDLE, TrackQueue.INVALID_HANDLE));
+            }
+            if(trackList == null) {
+                trackList = intent.getLongArrayExtra(PRM_TRACK_LIST);
+            }
+
+            if(trackList != null) {
+                events.postPrepare(trackList, startIndex);
+            } else {
+                // The handle of a redelivered intent does not resolve after the process
+                // has been restarted. The queue restored from the snapshot is the same one.
+                Log.d(TAG, "The track list of the selection is gone. The restored queue is kept.");
+            }
         } else if(ACTION_TRACK_UP.equals(action)) {
             nextTrack();
         } else if(ACTION_TRACK_DOWN.equals(action)) {
@@ -208,17 +305,11 @@ public class PlaybackService extends Service
     }
 
     private boolean isStarted() {
-        return player != null;
+        return !machine.isReleased();
     }
 
     private MediaPlayer initializePlayer() {
-        MediaPlayer player = new MediaPlayer();
-        player.setAudioStreamType(AudioManager.STREAM_MUSIC);
-        player.setOnPreparedListener(this);
-        player.setOnCompletionListener(this);
-        player.setOnErrorListener(this);
-        player.setOnSeekCompleteListener(this);
-        player.setWakeMode(this, PowerManager.PARTIAL_WAKE_LOCK);
+        MediaPlayer player = createPlayer();
 
         IntentFilter filter = new IntentFilter();
         filter.addAction(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
@@ -230,31 +321,119 @@ public class PlaybackService extends Service
         return player;
     }
 
+    private MediaPlayer createPlayer() {
+        MediaPlayer player = new MediaPlayer();
+        player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        player.setOnPreparedListener(this);
+        player.setOnCompletionListener(this);
+        player.setOnErrorListener(this);
+        player.setOnSeekCompleteListener(this);
+        player.setOnBufferingUpdateListener(this);
+        player.setWakeMode(this, PowerManager.PARTIAL_WAKE_LOCK);
+        return player;
+    }
+
     private void finalizePlayer() {
-        if(player != null) {
+        releaseNextPlayer();
+
+        if(isStarted()) {
+            int position = getSnapshotPosition();
+            snapshot.savePosition(currentIndex, position);
+            machine.release(position);
+
+            unregisterReceiver(audioOutputChangedEventReceiver);
+        }
+    }
+
+    // --------------------------------------------------------------------------------------------
+    // Player port block
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * Drives the current MediaPlayer for the state machine.
+     */
+    private final PlaybackStateMachine.PlayerPort playerPort = new PlaybackStateMachine.PlayerPort() {
+        @Override
+        public boolean prepare(long trackId) {
+            try {
+                player.reset();
+                Uri uri = ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, trackId);
+                player.setDataSource(PlaybackService.this, uri);
+                player.prepareAsync();
+                return true;
+
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+                return false;
+            }
+        }
+
+        @Override
+        public void seekTo(int position) {
+            seekStartedAt = System.nanoTime();
+            player.seekTo(position);
+        }
+
+        @Override
+        public void start() {
+            player.start();
+            if(playCommandAt != 0L) {
+                commandToStartTime.recordSince(playCommandAt);
+                playCommandAt = 0L;
+            }
+        }
+
+        @Override
+        public void pause() {
             player.pause();
-            positionToRestore = player.getCurrentPosition();
+        }
+
+        @Override
+        public void release() {
             player.release();
             player = null;
+        }
 
-            unregisterReceiver(audioOutputChangedEventReceiver);
+        @Override
+        public void onReady() {
+            if(commandQueuedAt != 0L) {
+                commandQueuedTime.recordSince(commandQueuedAt);
+                commandQueuedAt = 0L;
+            }
+            commands.drain(commandExecutor);
+            prepareNextPlayer();
+            prefetchNeighbours();
         }
-    }
+    };
 
     // --------------------------------------------------------------------------------------------
     // Event handler for external and internal methods block
     // --------------------------------------------------------------------------------------------
 
-    public void onEventMainThread(PrepareEvent event) {
-        Log.d(TAG, "onEventMainThread: PrepareEvent");
+    private final PlaybackEvents.CommandListener commandListener = new PlaybackEvents.CommandListener() {
+        @Override
+        public void onPrepare(long[] trackIds, int startIndex) {
+            PlaybackService.this.onPrepare(trackIds, startIndex);
+        }
 
-        if(event == null) {
-            Log.d(TAG, "The event is null.");
-            return;
+        @Override
+        public void onPlay() {
+            PlaybackService.this.onPlay();
+        }
+
+        @Override
+        public void onPause() {
+            PlaybackService.this.onPause();
+        }
+
+        @Override
+        public void onPlayPause() {
+            PlaybackService.this.onPlayPause();
         }
+    };
 
-        int newIndex = event.getStartIndex();
-        long[] newTrackIds = event.getTrackIds();
+    private void onPrepare(long[] newTrackIds, int newIndex) {
+        Log.d(TAG, "onPrepare");
 
         if(newTrackIds == null) {
             Log.d(TAG, "The new track ID list is null.");
@@ -265,6 +444,7 @@ public class PlaybackService extends Service
             Log.d(TAG, "The new index is over.");
             return;
         }
+        isTrackSelected = true;
 
         if(trackIds != null) {
             long newTrackId = newTrackIds[newIndex];
@@ -274,30 +454,33 @@ public class PlaybackService extends Service
                 Log.d(TAG, "The track ID is not changed.");
                 trackIds = newTrackIds;
                 currentIndex = newIndex;
+                snapshot.saveQueue(trackIds, currentIndex, getSnapshotPosition());
+                events.postTrackChanged(currentIndex, newTrackId);
+
+                // The following track may differ in the new list.
+                releaseNextPlayer();
+                prepareNextPlayer();
                 return;
             }
         }
 
         trackIds = newTrackIds;
         currentIndex = newIndex;
-        positionToRestore = -1;
+        snapshot.saveQueue(trackIds, currentIndex, 0);
+        events.postTrackChanged(currentIndex, trackIds[currentIndex]);
 
-        prepareToPlay(trackIds[currentIndex]);
+        prepareToPlay(trackIds[currentIndex], PlaybackStateMachine.NO_POSITION);
     }
 
-    private void prepareToPlay(long trackId) {
+    private void prepareToPlay(long trackId, int position) {
         Log.d(TAG, "prepareToPlay trackId: " + trackId);
 
-        try {
-            player.reset();
-            Uri uri = ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, trackId);
-            player.setDataSource(this, uri);
-            player.prepareAsync();
-
-            state = STATE_PREPARING;
+        releaseNextPlayer();
 
-        } catch (IOException e) {
-            Log.e(TAG, e.toString());
+        if(machine.prepare(trackId, position)) {
+            prepareStartedAt = System.nanoTime();
+            bufferedPercent = 100;
+            snapshot.savePosition(currentIndex, Math.max(position, 0));
         }
     }
 
@@ -305,122 +488,129 @@ public class PlaybackService extends Service
     public void onPrepared(MediaPlayer mp) {
         Log.d(TAG, "onPrepared");
 
-        if(positionToRestore != -1) {
-            player.seekTo(positionToRestore);
-            state = STATE_SEEKING;
+        if(mp == nextPlayer) {
+            onNextPlayerPrepared();
             return;
         }
 
-        for(Runnable postProcess : postProcesses) {
-            postProcess.run();
-        }
-        postProcesses.clear();
+        recordPrepareLatency();
+        machine.onPrepared();
+    }
 
-        state = STATE_PREPARED;
+    @Override
+    public void onBufferingUpdate(MediaPlayer mp, int percent) {
+        if(mp == player) {
+            bufferedPercent = percent;
+        }
     }
 
+    private final PlaybackEvents.ProgressSource progressSource = new PlaybackEvents.ProgressSource() {
+        @Override
+        public boolean getProgress(int[] progress) {
+            if(!machine.isReady())
+                return false;
+
+            progress[PlaybackEvents.PROGRESS_INDEX] = currentIndex;
+            progress[PlaybackEvents.PROGRESS_POSITION] = player.getCurrentPosition();
+            progress[PlaybackEvents.PROGRESS_DURATION] = player.getDuration();
+            progress[PlaybackEvents.PROGRESS_BUFFERED] = bufferedPercent;
+            return true;
+        }
+    };
+
     @Override
     public void onCompletion(MediaPlayer mp) {
         Log.d(TAG, "onCompletion");
-        nextTrack();
+
+        if(mp != player) {
+            return;
+        }
+
+        machine.onCompletion();
+        trackChangeStartedAt = System.nanoTime();
+        if(!switchToNextPlayer()) {
+            nextTrack();
+        }
     }
 
     @Override
     public void onSeekComplete(MediaPlayer mp) {
         Log.d(TAG, "onSeekComplete");
 
-        for(Runnable postProcess : postProcesses) {
-            postProcess.run();
+        if(seekStartedAt != 0L) {
+            seekTime.recordSince(seekStartedAt);
+            seekStartedAt = 0L;
         }
-        postProcesses.clear();
-
-        state = STATE_PREPARED;
+        machine.onSeekComplete();
     }
 
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra) {
         Log.e(TAG, "onError what: " + what + ", extra" + extra);
+        playerErrors.incrementAndGet();
+
+        if(mp == nextPlayer) {
+            // The current track keeps playing and will be followed by the normal preparation.
+            releaseNextPlayer();
+            return true;
+        }
+
+        // The completion callback follows and prepares the next track.
+        machine.onError();
         return false;
     }
 
-    public void onEventMainThread(PlayEvent event) {
-        Log.d(TAG, "onEventMainThread: PlayEvent");
+    private void onPlay() {
+        Log.d(TAG, "onPlay");
+        markPlayCommand();
 
         if(!isStarted()) {
             Log.d(TAG, "The service has not been started yet.");
-            postProcesses.add(new Runnable() {
-                @Override
-                public void run() {
-                    playTrack();
-                }
-            });
+            postCommand(PlaybackCommandQueue.COMMAND_PLAY);
             return;
         }
 
-        if(state != STATE_PREPARED) {
-            postProcesses.add(new Runnable() {
-                @Override
-                public void run() {
-                    playTrack();
-                }
-            });
+        if(!machine.isReady()) {
+            postCommand(PlaybackCommandQueue.COMMAND_PLAY);
             return;
         }
 
         playTrack();
     }
 
-    public void onEventMainThread(PauseEvent event) {
-        Log.d(TAG, "onEventMainThread: PauseEvent");
+    private void onPause() {
+        Log.d(TAG, "onPause");
 
         if(!isStarted()) {
             Log.d(TAG, "The service has not been started yet.");
-            postProcesses.add(new Runnable() {
-                @Override
-                public void run() {
-                    pauseTrack();
-                }
-            });
+            postCommand(PlaybackCommandQueue.COMMAND_PAUSE);
             return;
         }
 
-        if(!player.isPlaying()) {
+        if(!machine.isPlaying()) {
             Log.d(TAG, "The player is not playing now.");
             return;
         }
         pauseTrack();
     }
 
-    public void onEventMainThread(PlayPauseEvent event) {
-        Log.d(TAG, "onEventMainThread: PlayPauseEvent");
+    private void onPlayPause() {
+        Log.d(TAG, "onPlayPause");
 
         if(!isStarted()) {
             Log.d(TAG, "The service has not been started yet.");
-            postProcesses.add(new Runnable() {
-                @Override
-                public void run() {
-                    if(player.isPlaying()) {
-                        pauseTrack();
-                    } else {
-                        playTrack();
-                    }
-                }
-            });
+            postCommand(PlaybackCommandQueue.COMMAND_TOGGLE);
             return;
         }
 
-        if(player.isPlaying()) {
+        if(machine.isPlaying()) {
             pauseTrack();
         } else {
-            if(state == STATE_PREPARED) {
+            markPlayCommand();
+            if(machine.isReady()) {
                 playTrack();
             } else {
-                postProcesses.add(new Runnable() {
-                    @Override
-                    public void run() {
-                        playTrack();
-                    }
-                });
+                postCommand(PlaybackCommandQueue.COMMAND_PLAY);
             }
         }
     }
@@ -428,27 +618,52 @@ public class PlaybackService extends Service
     // --------------------------------------------------------------------------------------------
     // Private playback methods block
     // --------------------------------------------------------------------------------------------
+
+    /**
+     * Starts measuring the time until the player starts, unless a play command is already waiting.
+     */
+    private void markPlayCommand() {
+        if(playCommandAt == 0L) {
+            playCommandAt = System.nanoTime();
+        }
+    }
+
     private void playTrack() {
-        if(!player.isPlaying()) {
+        if(!machine.isPlaying()) {
+            if(!machine.isReady()) {
+                Log.d(TAG, "The player has not been prepared yet.");
+                return;
+            }
+
             boolean result = requestAudioFocus();
             if(!result) {
                 Log.d(TAG, "Requesting the audio focus has failed.");
                 return;
             }
 
-            player.start();
-            eventBus.postSticky(new PlayStateChangedEvent(PlayStateChangedEvent.STATE_PLAYING, currentIndex));
+            machine.play();
+            events.postPlayStateChanged(PlaybackEvents.STATE_PLAYING, currentIndex);
 
             updateNotification();
+            startSavingPosition();
+
+            if(resumeStartedAt != 0L) {
+                Log.d(TAG, "Resumed to audio in " + (SystemClock.elapsedRealtime() - resumeStartedAt) + "ms");
+                resumeStartedAt = 0L;
+            }
         }
     }
 
     private void pauseTrack() {
-        if(player.isPlaying()) {
+        if(machine.isPlaying()) {
             abandonAudioFocus();
 
-            player.pause();
-            eventBus.postSticky(new PlayStateChangedEvent(PlayStateChangedEvent.STATE_PAUSED, currentIndex));
+            machine.pause();
+            playCommandAt = 0L;
+            events.postPlayStateChanged(PlaybackEvents.STATE_PAUSED, currentIndex);
+
+            snapshotHandler.removeCallbacks(positionSaver);
+            snapshot.savePosition(currentIndex, player.getCurrentPosition());
 
             showNotification(
                     PLAY_STATE_PLAYING,
@@ -461,34 +676,42 @@ public class PlaybackService extends Service
     }
 
     private void stopTrack() {
-        if(player.isPlaying()) {
-            player.pause();
-        }
+        machine.pause();
+
+        events.postPlayStateChanged(PlaybackEvents.STATE_STOPPED, currentIndex);
+        events.postTrackChanged(currentIndex, PlaybackEvents.NO_TRACK);
 
-        eventBus.postSticky(new PlayStateChangedEvent(PlayStateChangedEvent.STATE_STOPPED, currentIndex));
+        // Stopped explicitly, so there is nothing to resume next time.
+        snapshotHandler.removeCallbacks(positionSaver);
+        snapshot.clear();
         stopSelf();
     }
 
     private void nextTrack() {
+        isTrackSelected = true;
+        if(trackChangeStartedAt == 0L) {
+            trackChangeStartedAt = System.nanoTime();
+        }
+        if(switchToNextPlayer()) {
+            return;
+        }
+
         currentIndex = (currentIndex + 1) % trackIds.length;
-        positionToRestore = -1;
-        prepareToPlay(trackIds[currentIndex]);
+        prepareToPlay(trackIds[currentIndex], PlaybackStateMachine.NO_POSITION);
 
-        postProcesses.add(new Runnable() {
-            @Override
-            public void run() {
-                playTrack();
-                eventBus.post(new TrackChangedEvent(currentIndex));
-            }
-        });
+        postCommand(PlaybackCommandQueue.COMMAND_PLAY);
+        postCommand(PlaybackCommandQueue.COMMAND_ANNOUNCE_TRACK);
     }
 
     private void prevTrack() {
+        isTrackSelected = true;
+        trackChangeStartedAt = System.nanoTime();
         try {
-            if(player != null) {
+            if(machine.isReady()) {
                 int time = player.getCurrentPosition();
                 if(time >= 3000) {
-                    player.seekTo(0);
+                    // Restarts the track. The play and the announce run when the seek completes.
+                    machine.seekTo(0);
                     return;
                 }
             }
@@ -498,19 +721,251 @@ public class PlaybackService extends Service
                 currentIndex = trackIds.length - 1;
             }
 
-            prepareToPlay(trackIds[currentIndex]);
+            prepareToPlay(trackIds[currentIndex], PlaybackStateMachine.NO_POSITION);
 
         } finally {
-            postProcesses.add(new Runnable() {
-                @Override
-                public void run() {
-                    playTrack();
-                    eventBus.post(new TrackChangedEvent(currentIndex));
-                }
-            });
+            postCommand(PlaybackCommandQueue.COMMAND_PLAY);
+            postCommand(PlaybackCommandQueue.COMMAND_ANNOUNCE_TRACK);
+        }
+    }
+
+    // --------------------------------------------------------------------------------------------
+    // Deferred command block
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * Defers a command until the player has been prepared. It is tagged with the current track,
+     * so it is dropped if another track is selected before the preparation finishes.
+     */
+    private void postCommand(int command) {
+        if(commandQueuedAt == 0L) {
+            commandQueuedAt = System.nanoTime();
+        }
+
+        // A command which comes before any selection, e.g. the play which has started the
+        // service, is meant for the track about to be selected rather than the restored one.
+        commands.post(command, isTrackSelected ? getCurrentTrackId() : PlaybackCommandQueue.ANY_TRACK);
+    }
+
+    private long getCurrentTrackId() {
+        if(trackIds == null || currentIndex < 0 || currentIndex >= trackIds.length) {
+            return PlaybackCommandQueue.ANY_TRACK;
+        }
+        return trackIds[currentIndex];
+    }
+
+    private final PlaybackCommandQueue.Executor commandExecutor = new PlaybackCommandQueue.Executor() {
+        @Override
+        public long getCurrentTrackId() {
+            return PlaybackService.this.getCurrentTrackId();
+        }
+
+        @Override
+        public void play() {
+            playTrack();
+        }
+
+        @Override
+        public void pause() {
+            pauseTrack();
+        }
+
+        @Override
+        public void toggle() {
+            if(machine.isPlaying()) {
+                pauseTrack();
+            } else {
+                playTrack();
+            }
+        }
+
+        @Override
+        public void announceTrack() {
+            events.postTrackChanged(currentIndex, getCurrentTrackId());
+            reportTrackChangeLatency("prepared on demand");
+        }
+    };
+
+    // --------------------------------------------------------------------------------------------
+    // Gapless playback block
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * Prepares the next track on a second player while the current one is playing.
+     * On Jelly Bean and later it is chained with setNextMediaPlayer so that the platform
+     * starts it without any gap, otherwise it is started as soon as the current one completes.
+     */
+    private void prepareNextPlayer() {
+        if(!machine.isReady() || trackIds == null || trackIds.length < 2) {
+            return;
+        }
+
+        int index = (currentIndex + 1) % trackIds.length;
+        if(nextPlayer != null && nextPlayerIndex == index) {
+            return;
+        }
+        releaseNextPlayer();
+
+        try {
+            nextPlayer = createPlayer();
+            nextPlayerIndex = index;
+            Uri uri = ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, trackIds[index]);
+            nextPlayer.setDataSource(this, uri);
+            nextPlayer.prepareAsync();
+
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+            releaseNextPlayer();
+        }
+    }
+
+    private void onNextPlayerPrepared() {
+        isNextPlayerPrepared = true;
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && machine.isReady()) {
+            player.setNextMediaPlayer(nextPlayer);
+        }
+    }
+
+    private void releaseNextPlayer() {
+        if(nextPlayer == null) {
+            return;
+        }
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && player != null && isNextPlayerPrepared) {
+            player.setNextMediaPlayer(null);
+        }
+        nextPlayer.release();
+        nextPlayer = null;
+        nextPlayerIndex = -1;
+        isNextPlayerPrepared = false;
+    }
+
+    /**
+     * Hands the playback over to the prepared next player.
+     * @return false if the next player is not ready and the track has to be prepared on demand.
+     */
+    private boolean switchToNextPlayer() {
+        if(nextPlayer == null || !isNextPlayerPrepared || !machine.isReady()) {
+            return false;
+        }
+
+        MediaPlayer previousPlayer = player;
+        player = nextPlayer;
+        currentIndex = nextPlayerIndex;
+        nextPlayer = null;
+        nextPlayerIndex = -1;
+        isNextPlayerPrepared = false;
+        bufferedPercent = 100;
+
+        // When the current track has completed, the platform has already started the next player.
+        boolean isGapless = player.isPlaying();
+        previousPlayer.release();
+        machine.handOver(trackIds[currentIndex], isGapless);
+        snapshot.savePosition(currentIndex, 0);
+
+        if(isGapless) {
+            events.postPlayStateChanged(PlaybackEvents.STATE_PLAYING, currentIndex);
+            updateNotification();
+        } else {
+            playTrack();
+        }
+        events.postTrackChanged(currentIndex, getCurrentTrackId());
+        reportTrackChangeLatency(isGapless ? "gapless" : "pre-prepared");
+
+        prepareNextPlayer();
+        prefetchNeighbours();
+        return true;
+    }
+
+    private void reportTrackChangeLatency(String path) {
+        if(trackChangeStartedAt == 0L) {
+            return;
+        }
+        trackChangeTime.recordSince(trackChangeStartedAt);
+        Log.d(TAG, "Track change latency (" + path + "): " + (System.nanoTime() - trackChangeStartedAt) / 1000000L + "ms");
+        trackChangeStartedAt = 0L;
+    }
+
+    // --------------------------------------------------------------------------------------------
+    // Prefetch block
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * Warms the files of the following and the previous tracks while the current one plays.
+     */
+    private void prefetchNeighbours() {
+        if(trackIds == null || trackIds.length < 2) {
+            return;
+        }
+
+        prefetcher.prefetch(trackIds[(currentIndex + 1) % trackIds.length]);
+        prefetcher.prefetch(trackIds[(currentIndex + trackIds.length - 1) % trackIds.length]);
+    }
+
+    private void recordPrepareLatency() {
+        if(prepareStartedAt == 0L) {
+            return;
+        }
+
+        long trackId = getCurrentTrackId();
+        prepareTime.recordSince(prepareStartedAt);
+        long latency = (System.nanoTime() - prepareStartedAt) / 1000000L;
+        Log.d(TAG, "Prepared in " + latency + "ms (prefetched: " + prefetcher.isPrefetched(trackId) + ")");
+        prefetcher.recordPrepareLatency(trackId, latency);
+        prepareStartedAt = 0L;
+    }
+
+    // --------------------------------------------------------------------------------------------
+    // Playback snapshot block
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * Restores the queue and the position saved before the process was killed,
+     * so that the first play command resumes where it stopped.
+     */
+    private void restoreSnapshot() {
+        long start = SystemClock.elapsedRealtime();
+        snapshot = new PlaybackSnapshot(new File(getFilesDir(), SNAPSHOT_FILE_NAME));
+        if(!snapshot.restore()) {
+            return;
+        }
+
+        trackIds = snapshot.getTrackIds();
+        currentIndex = snapshot.getIndex();
+        int position = snapshot.getPosition();
+        resumeStartedAt = start;
+        events.postTrackChanged(currentIndex, trackIds[currentIndex]);
+
+        prepareToPlay(trackIds[currentIndex], (position > 0) ? position : PlaybackStateMachine.NO_POSITION);
+        Log.d(TAG, "Restored the snapshot in " + (SystemClock.elapsedRealtime() - start) + "ms" +
+                   ", index: " + currentIndex + ", position: " + position);
+    }
+
+    private int getSnapshotPosition() {
+        if(machine.isReady()) {
+            return player.getCurrentPosition();
         }
+        return Math.max(machine.getPositionToRestore(), 0);
     }
 
+    private void startSavingPosition() {
+        snapshotHandler.removeCallbacks(positionSaver);
+        snapshotHandler.postDelayed(positionSaver, SNAPSHOT_INTERVAL_MS);
+    }
+
+    private final Runnable positionSaver = new Runnable() {
+        @Override
+        public void run() {
+            if(!machine.isPlaying()) {
+                return;
+            }
+
+            snapshot.savePosition(currentIndex, player.getCurrentPosition());
+            snapshotHandler.postDelayed(this, SNAPSHOT_INTERVAL_MS);
+        }
+    };
+
     // --------------------------------------------------------------------------------------------
     // Audio focus control block
     // --------------------------------------------------------------------------------------------
@@ -535,26 +990,20 @@ public class PlaybackService extends Service
 
             switch(focusChange) {
                 case AudioManager.AUDIOFOCUS_GAIN:
-                    if(player == null) {
+                    if(!isStarted()) {
                         player = initializePlayer();
+                        machine.acquire();
                         player.setVolume(1.0f, 1.0f);
-                        postProcesses.add(new Runnable() {
-                            @Override
-                            public void run() {
-                                playTrack();
-                            }
-                        });
-                        prepareToPlay(trackIds[currentIndex]);
+                        postCommand(PlaybackCommandQueue.COMMAND_PLAY);
+                        prepareToPlay(trackIds[currentIndex], machine.getPositionToRestore());
                     } else {
                         player.setVolume(1.0f, 1.0f);
-                        if(!player.isPlaying()) {
-                            player.start();
-                        }
+                        machine.play();
                     }
                     break;
 
                 case AudioManager.AUDIOFOCUS_GAIN_TRANSIENT_MAY_DUCK:
-                    if(player != null) {
+                    if(isStarted()) {
                         player.setVolume(1.0f, 1.0f);
                     }
                     break;
@@ -564,13 +1013,11 @@ public class PlaybackService extends Service
                     break;
 
                 case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
-                    if(player != null) {
-                        player.pause();
-                    }
+                    machine.pause();
                     break;
 
                 case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
-                    if(player != null) {
+                    if(isStarted()) {
                         player.setVolume(DUCKING_VOLUME_LEVEL, DUCKING_VOLUME_LEVEL);
                     }
                     break;
@@ -586,21 +1033,16 @@ public class PlaybackService extends Service
     // Notification control block
     // --------------------------------------------------------------------------------------------
     private void updateNotification() {
-        eventBus.post(new NotificationPrepareEvent(trackIds[currentIndex]));
-    }
-
-    public class NotificationPrepareEvent {
-        private final long trackId;
-        public NotificationPrepareEvent(long trackId) {
-            this.trackId  = trackId;
-        }
-
-        public long getTrackId() {
-            return trackId;
-        }
+        final long trackId = trackIds[currentIndex];
+        notificationLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadNotification(trackId);
+            }
+        });
     }
 
-    public class NotificationPreparedEvent {
+    private static class NotificationPreparedEvent {
         private final long trackId;
         private final String title;
         private final String artist;
@@ -622,46 +1064,83 @@ public class PlaybackService extends Service
         public Bitmap getArtwork() { return artwork; }
     }
 
-    public void onEventAsync(NotificationPrepareEvent event) {
-        Log.d(TAG, "onEventAsync: NotificationPrepareEvent");
+    private static final String[] NOTIFICATION_TRACK_PROJECTION = new String[] {
+        MediaStore.Audio.Media.TITLE,
+        MediaStore.Audio.Media.ARTIST,
+        MediaStore.Audio.Media.ALBUM,
+        MediaStore.Audio.Media.ALBUM_ID,
+    };
+    private static final int NOTIFICATION_TRACK_TITLE = 0;
+    private static final int NOTIFICATION_TRACK_ARTIST = 1;
+    private static final int NOTIFICATION_TRACK_ALBUM = 2;
+    private static final int NOTIFICATION_TRACK_ALBUM_ID = 3;
+
+    private void loadNotification(long trackId) {
+        Log.d(TAG, "loadNotification");
+
+        long start = System.nanoTime();
+        try {
+            prepareNotification(trackId);
+        } finally {
+            metadataLookupTime.recordSince(start);
+        }
+    }
+
+    private void postNotificationPrepared(final NotificationPreparedEvent event) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onNotificationPrepared(event);
+            }
+        });
+    }
 
+    private void prepareNotification(long trackId) {
         Context context = getApplicationContext();
         ContentResolver resolver = context.getContentResolver();
-        Resources resources = context.getResources();
+
+        MediaLibrary.Snapshot library = MediaLibrary.getInstance(context).getSnapshot();
+        int trackPosition = (library == null) ? LongIntMap.NOT_FOUND : library.findTrack(trackId);
+        if(trackPosition != LongIntMap.NOT_FOUND) {
+            long albumId = library.getTrackAlbumId(trackPosition);
+            int albumPosition = library.findAlbum(albumId);
+            String artworkPath = (albumPosition == LongIntMap.NOT_FOUND) ? null : library.getAlbumArt(albumPosition);
+            postNotificationPrepared(new NotificationPreparedEvent(
+                                trackId,
+                                library.getTrackTitle(trackPosition),
+                                library.getTrackArtist(trackPosition),
+                                library.getTrackAlbum(trackPosition),
+                                loadArtwork(albumId, artworkPath)));
+            return;
+        }
 
         Cursor trackCursor = null;
         Cursor albumCursor = null;
         try {
-            Uri uri = ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, event.getTrackId());
+            Uri uri = ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, trackId);
             if(uri == null) {
-                eventBus.post(new NotificationPreparedEvent(event.getTrackId(), null, null, null, null));
+                postNotificationPrepared(new NotificationPreparedEvent(trackId, null, null, null, null));
                 return;
             }
 
-            trackCursor = resolver.query(
-                                uri,
-                                new String[] {
-                                    MediaStore.Audio.Media.TITLE,
-                                    MediaStore.Audio.Media.ARTIST,
-                                    MediaStore.Audio.Media.ALBUM,
-                                    MediaStore.Audio.Media.ALBUM_ID,
-                                }, null, null, null);
+            trackCursor = resolver.query(uri, NOTIFICATION_TRACK_PROJECTION, null, null, null);
 
             if(trackCursor == null || !trackCursor.moveToFirst() || trackCursor.getCount() != 1) {
-                eventBus.post(new NotificationPreparedEvent(event.getTrackId(), null, null, null, null));
+                postNotificationPrepared(new NotificationPreparedEvent(trackId, null, null, null, null));
                 return;
             }
 
-            String title = CursorHelper.getString(trackCursor, MediaStore.Audio.Media.TITLE);
-            String artist = CursorHelper.getString(trackCursor, MediaStore.Audio.Media.ARTIST);
-            String album = CursorHelper.getString(trackCursor, MediaStore.Audio.Media.ALBUM);
-            long albumId = CursorHelper.getLong(trackCursor, MediaStore.Audio.Media.ALBUM_ID);
+            BoundProjection track = BoundProjection.bind(trackCursor, NOTIFICATION_TRACK_PROJECTION);
+            String title = track.getString(NOTIFICATION_TRACK_TITLE);
+            String artist = track.getString(NOTIFICATION_TRACK_ARTIST);
+            String album = track.getString(NOTIFICATION_TRACK_ALBUM);
+            long albumId = track.getLong(NOTIFICATION_TRACK_ALBUM_ID);
             Bitmap artwork = null;
 
             if(albumId != -1L) {
                 uri = ContentUris.withAppendedId(MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI, albumId);
                 if(uri == null) {
-                    eventBus.post(new NotificationPreparedEvent(event.getTrackId(), null, null, null, null));
+                    postNotificationPrepared(new NotificationPreparedEvent(trackId, null, null, null, null));
                     return;
                 }
                 albumCursor = resolver.query(
@@ -671,23 +1150,15 @@ public class PlaybackService extends Service
                                     }, null, null, null);
 
                 if(albumCursor == null || !albumCursor.moveToFirst() || albumCursor.getCount() != 1) {
-                    eventBus.post(new NotificationPreparedEvent(event.getTrackId(), title, artist, album, null));
+                    postNotificationPrepared(new NotificationPreparedEvent(trackId, title, artist, album, null));
                     return;
                 }
 
                 String artworkPath = CursorHelper.getString(albumCursor, MediaStore.Audio.Albums.ALBUM_ART);
-                Bitmap buffer = BitmapFactory.decodeFile(artworkPath);
-                artwork = Bitmap.createScaledBitmap(
-                                    buffer,
-                                    resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width),
-                                    resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height),
-                                    false);
-                if(artwork != buffer) {
-                    buffer.recycle();
-                }
+                artwork = loadArtwork(albumId, artworkPath);
             }
 
-            eventBus.post(new NotificationPreparedEvent(event.getTrackId(), title, artist, album, artwork));
+            postNotificationPrepared(new NotificationPreparedEvent(trackId, title, artist, album, artwork));
 
         } finally {
             if(trackCursor != null) {
@@ -699,8 +1170,60 @@ public class PlaybackService extends Service
         }
     }
 
-    public void onEventMainThread(NotificationPreparedEvent event) {
-        Log.d(TAG, "onEventMainThread: NotificationPreparedEvent");
+    /**
+     * @return the artwork with a reference to it, which the caller has to release, or null
+     */
+    private Bitmap loadArtwork(long albumId, String artworkPath) {
+        if(TextUtils.isEmpty(artworkPath))
+            return null;
+
+        Resources resources = getApplicationContext().getResources();
+        int width = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+        int height = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+        String key = "artwork:" + albumId + ":" + width + "x" + height;
+
+        // Serialized so that two tracks of the same album never decode it twice.
+        synchronized(artworkDecoder) {
+            Bitmap artwork = bitmaps.acquire(key);
+            if(artwork != null) {
+                return artwork;
+            }
+
+            if(!bitmaps.reserve((long)width * height * BYTES_PER_PIXEL)) {
+                Log.d(TAG, "No room for the artwork of " + albumId + ". " + bitmaps);
+                return null;
+            }
+
+            long start = System.nanoTime();
+            artwork = decodeArtwork(artworkPath, width, height);
+            if(artwork == null) {
+                return null;
+            }
+            artworkDecodeTime.recordSince(start);
+            artwork = bitmaps.put(key, artwork);
+            Log.d(TAG, "Artwork decoded in " + (System.nanoTime() - start) / 1000000L + "ms. Bitmaps " + bitmaps);
+            return artwork;
+        }
+    }
+
+    private Bitmap decodeArtwork(String artworkPath, int width, int height) {
+        Bitmap artwork = artworkDecoder.decode(artworkPath, width, height);
+
+        if(artwork != null) {
+            Log.d(TAG, "Artwork decoded bytes: " + artworkDecoder.getLastDecodedBytes() +
+                       " (full size: " + artworkDecoder.getLastFullSizeBytes() + ")" +
+                       ", reused: " + artworkDecoder.getReuseCount() + "/" + artworkDecoder.getDecodeCount());
+        }
+        return artwork;
+    }
+
+    private void onNotificationPrepared(NotificationPreparedEvent event) {
+        Log.d(TAG, "onNotificationPrepared");
+
+        if(isDestroyed) {
+            bitmaps.release(event.getArtwork());
+            return;
+        }
 
         long trackId = event.getTrackId();
         String title = event.getTitle();
@@ -711,6 +1234,7 @@ public class PlaybackService extends Service
         currentTrackInfo.setTitle(title);
         currentTrackInfo.setAlbumName(album);
         currentTrackInfo.setArtistName(artist);
+        // The reference the event carries is taken over here.
         currentTrackInfo.setArtwork(artwork);
 
         showNotification(PLAY_STATE_PAUSED, getCurrentAudioPath(), title, artist, album, artwork);
@@ -719,78 +1243,15 @@ public class PlaybackService extends Service
         sendPlayStateChanged(trackId, artist, album, title);
     }
 
-    private static final int PLAY_STATE_PAUSED = 0;
-    private static final int PLAY_STATE_PLAYING = 1;
-    private static final int AUDIO_PATH_SPEAKER = 0;
-    private static final int AUDIO_PATH_WIRED = 1;
-    private static final int AUDIO_PATH_A2DP = 2;
-    private static final int AUDIO_PATH_UNKNOWN = -1;
+    private static final int PLAY_STATE_PAUSED = PlaybackNotification.PLAY_STATE_PAUSED;
+    private static final int PLAY_STATE_PLAYING = PlaybackNotification.PLAY_STATE_PLAYING;
+    private static final int AUDIO_PATH_SPEAKER = PlaybackNotification.AUDIO_PATH_SPEAKER;
+    private static final int AUDIO_PATH_WIRED = PlaybackNotification.AUDIO_PATH_WIRED;
+    private static final int AUDIO_PATH_A2DP = PlaybackNotification.AUDIO_PATH_A2DP;
+    private static final int AUDIO_PATH_UNKNOWN = PlaybackNotification.AUDIO_PATH_UNKNOWN;
 
     private void showNotification(int playState, int audioPath, String title, String artist, String album, Bitmap artwork) {
-
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(this);
-        builder.setWhen(System.currentTimeMillis());
-        builder.setContentTitle(title);
-
-        if(artwork != null) {
-            builder.setLargeIcon(artwork);
-        }
-        int icon = R.drawable.ic_launcher;
-        if(audioPath == AUDIO_PATH_SPEAKER) {
-            icon = R.drawable.ic_speaker;
-        } else if(audioPath == AUDIO_PATH_A2DP) {
-            icon = R.drawable.ic_a2dp;
-        } else if(audioPath == AUDIO_PATH_WIRED) {
-            icon = R.drawable.ic_wired;
-        }
-        builder.setSmallIcon(icon);
-
-        builder.setTicker(title);
-        builder.setPriority(NotificationCompat.PRIORITY_HIGH);
-        builder.setContentText(artist);
-        builder.setSubText(album);
-
-        PendingIntent pendingIntent = null;
-        Intent intent = new Intent(this, PlaybackService.class);
-        String keyTop;
-        String action;
-        if(playState == PLAY_STATE_PAUSED) {
-            action = ACTION_PAUSE;
-            keyTop = "Pause";
-            icon = android.R.drawable.ic_media_pause;
-
-            intent = new Intent(this, PlaybackService.class);
-            intent.setAction(ACTION_TRACK_DOWN);
-            pendingIntent = PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
-            builder.addAction(android.R.drawable.ic_media_previous, "Prev", pendingIntent);
-
-        } else {
-            action = ACTION_PLAY;
-            keyTop = "Play";
-            icon = android.R.drawable.ic_media_play;
-
-            intent = new Intent(this, PlaybackService.class);
-            intent.setAction(ACTION_STOP);
-            pendingIntent = PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
-            builder.addAction(android.R.drawable.ic_delete, "Stop", pendingIntent);
-        }
-
-        intent = new Intent(this, PlaybackService.class);
-        intent.setAction(action);
-        pendingIntent = PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
-        builder.addAction(icon, keyTop, pendingIntent);
-
-        intent = new Intent(this, PlaybackService.class);
-        intent.setAction(ACTION_TRACK_UP);
-        pendingIntent = PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
-        builder.addAction(android.R.drawable.ic_media_next, "Next", pendingIntent);
-
-        intent = new Intent(this, SimpleMusicPlayer.class);
-        pendingIntent = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
-        builder.setContentIntent(pendingIntent);
-
-        startForeground(R.id.notification_id, builder.build());
-        // startForeground(R.id.notification_id, new NotificationCompat.InboxStyle(builder).addLine("test1").addLine("test2").build());
+        notification.update(playState, audioPath, title, artist, album, artwork);
     }
 
     // --------------------------------------------------------------------------------------------
@@ -904,7 +1365,7 @@ public class PlaybackService extends Service
             return;
 
         int playState = PLAY_STATE_PAUSED;
-        if(player != null && !player.isPlaying()) {
+        if(isStarted() && !machine.isPlaying()) {
             playState = PLAY_STATE_PLAYING;
         }
 
@@ -929,10 +1390,10 @@ public class PlaybackService extends Service
 
     private void sendBluetoothNotify(String action, long trackId, String artist, String album, String title) {
 
-        boolean isPlaying = (player == null) ? false : player.isPlaying();
+        boolean isPlaying = machine.isPlaying();
         int listSize = (trackIds == null) ? 0 : trackIds.length;
-        int duration = (player == null) ? 0 : player.getDuration();
-        int position = (player == null) ? 0 : player.getCurrentPosition();
+        int duration = machine.isReady() ? player.getDuration() : 0;
+        int position = machine.isReady() ? player.getCurrentPosition() : 0;
 
         Intent intent = new Intent(action);
         intent.putExtra("id", trackId);
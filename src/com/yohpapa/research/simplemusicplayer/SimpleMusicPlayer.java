@@ -20,12 +20,16 @@
 package com.yohpapa.research.simplemusicplayer;
 
 import android.os.Bundle;
+
+import com.yohpapa.research.simplemusicplayer.plugins.tools.MediaLibrary;
+
 import org.apache.cordova.*;
 
 public class SimpleMusicPlayer extends DroidGap {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        MediaLibrary.getInstance(this).start();
         // Set by <content src="index.html" /> in config.xml
         super.loadUrl(Config.getStartUrl());
         //super.loadUrl("file:///android_asset/www/index.html")
@@ -22,17 +22,199 @@ package com.yohpapa.research.simplemusicplayer.plugins;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
+import android.os.SystemClock;
 import android.provider.MediaStore;
+import android.util.Log;
 
-import com.yohpapa.research.simplemusicplayer.plugins.tools.CursorHelper;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.BitmapPool;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.BoundProjection;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.JsonWriter;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.LongIntMap;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.MediaLibrary;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.QueryExecutor;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.SearchIndex;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.SharedRequests;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.ThumbnailCache;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.TrackQuery;
 
 import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaInterface;
 import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.util.List;
+
 public class ListManager extends CordovaPlugin {
+    private static final String TAG = ListManager.class.getSimpleName();
+
+    private static final String[] ALBUM_PROJECTION = new String[] {
+        MediaStore.Audio.Albums._ID,
+        MediaStore.Audio.Albums.ALBUM,
+        MediaStore.Audio.Albums.NUMBER_OF_SONGS,
+        MediaStore.Audio.Albums.ARTIST,
+        MediaStore.Audio.Albums.ALBUM_ART,
+    };
+    private static final int ALBUM_ID = 0;
+    private static final int ALBUM_NAME = 1;
+    private static final int ALBUM_NUMBER_OF_SONGS = 2;
+    private static final int ALBUM_ARTIST = 3;
+    private static final int ALBUM_ART = 4;
+
+    private static final String[] ALBUM_HEADER_PROJECTION = new String[] {
+        MediaStore.Audio.Albums.ALBUM,
+        MediaStore.Audio.Albums.ALBUM_ART,
+    };
+    private static final int ALBUM_HEADER_NAME = 0;
+    private static final int ALBUM_HEADER_ART = 1;
+
+    private static final String[] TRACK_PROJECTION = new String[] {
+        MediaStore.Audio.Media._ID,
+        MediaStore.Audio.Media.TITLE,
+        MediaStore.Audio.Media.ARTIST,
+        MediaStore.Audio.Media.ALBUM,
+        MediaStore.Audio.Media.DURATION,
+    };
+    private static final int TRACK_ID = 0;
+    private static final int TRACK_TITLE = 1;
+    private static final int TRACK_ARTIST = 2;
+    private static final int TRACK_DURATION = 4;
+
+    private static final String[] ALBUM_BATCH_PROJECTION = new String[] {
+        MediaStore.Audio.Albums._ID,
+        MediaStore.Audio.Albums.ALBUM,
+        MediaStore.Audio.Albums.ALBUM_ART,
+    };
+    private static final int ALBUM_BATCH_ID = 0;
+    private static final int ALBUM_BATCH_NAME = 1;
+    private static final int ALBUM_BATCH_ART = 2;
+
+    private static final String[] TRACK_BATCH_PROJECTION = new String[] {
+        MediaStore.Audio.Media._ID,
+        MediaStore.Audio.Media.TITLE,
+        MediaStore.Audio.Media.ARTIST,
+        MediaStore.Audio.Media.ALBUM_ID,
+        MediaStore.Audio.Media.DURATION,
+    };
+    private static final int TRACK_BATCH_ID = 0;
+    private static final int TRACK_BATCH_TITLE = 1;
+    private static final int TRACK_BATCH_ARTIST = 2;
+    private static final int TRACK_BATCH_ALBUM_ID = 3;
+    private static final int TRACK_BATCH_DURATION = 4;
+
+    private static final int QUERY_THREADS = 2;
+    private static final int QUERY_QUEUE_CAPACITY = 16;
+
+    // Channels on which a new query supersedes the previous one.
+    private static final String CHANNEL_TRACK_INFO = "track_info";
+    private static final String CHANNEL_TRACKS_INFO = "tracks_info";
+    private static final String CHANNEL_QUERY_TRACKS = "query_tracks";
+    private static final String CHANNEL_SEARCH = "search";
+
+    private final QueryExecutor queries = new QueryExecutor(QUERY_THREADS, QUERY_QUEUE_CAPACITY);
+
+    /**
+     * A query which reports its cancellation to the callback.
+     */
+    private static abstract class CallbackQuery extends QueryExecutor.Query {
+        private final CallbackContext callbackContext;
+
+        public CallbackQuery(CallbackContext callbackContext) {
+            this.callbackContext = callbackContext;
+        }
+
+        @Override
+        protected boolean isDelivered() {
+            return callbackContext.isFinished();
+        }
+
+        @Override
+        protected void onCancel() {
+            // A later identical request must run its own query instead of joining this one.
+            if(callbackContext instanceof SharedCallback) {
+                ((SharedCallback)callbackContext).group.cancel();
+            }
+        }
+
+        @Override
+        protected void onCancelled() {
+            callbackContext.error("The query has been cancelled.");
+        }
+    }
+
+    // Queries in flight by action and arguments, shared by identical requests.
+    private final SharedRequests<CallbackContext> inFlight = new SharedRequests<CallbackContext>();
+
+    /**
+     * Sends every result of one query to all the requests which have joined it.
+     */
+    private class SharedCallback extends CallbackContext {
+        private final SharedRequests<CallbackContext>.Group group;
+
+        public SharedCallback(SharedRequests<CallbackContext>.Group group, CallbackContext leader) {
+            super(leader.getCallbackId(), webView);
+            this.group = group;
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult result) {
+            // Nothing may follow the final result, e.g. an error after the query has been superseded.
+            List<CallbackContext> receivers = group.deliver(!result.getKeepCallback());
+            if(receivers == null) {
+                Log.d(TAG, "Dropped a result after the final one: " + getCallbackId());
+                return;
+            }
+            for(CallbackContext receiver : receivers) {
+                receiver.sendPluginResult(result);
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            return group.isFinished();
+        }
+    }
+
+    /**
+     * @return the callback to run the query with or null if the request has joined an identical query in flight
+     */
+    private CallbackContext share(String action, JSONArray args, CallbackContext callbackContext) {
+        SharedRequests<CallbackContext>.Group group = inFlight.share(action + args.toString(), callbackContext);
+        if(group == null) {
+            Log.d(TAG, "Joined the query in flight: " + action);
+            return null;
+        }
+        return new SharedCallback(group, callbackContext);
+    }
+
+    // The size of list thumbnails in jQuery Mobile.
+    private static final int THUMBNAIL_SIZE_DP = 80;
+    private static final long THUMBNAIL_CACHE_BYTES = 4L * 1024L * 1024L;
+    private static final String THUMBNAIL_DIRECTORY = "thumbnails";
+
+    private ThumbnailCache thumbnails = null;
+
+    @Override
+    public void initialize(CordovaInterface cordova, CordovaWebView webView) {
+        super.initialize(cordova, webView);
+
+        Context context = cordova.getActivity().getApplicationContext();
+        int size = (int)(THUMBNAIL_SIZE_DP * context.getResources().getDisplayMetrics().density);
+        thumbnails = new ThumbnailCache(
+                        new File(context.getCacheDir(), THUMBNAIL_DIRECTORY), size, THUMBNAIL_CACHE_BYTES,
+                        BitmapPool.getInstance());
+    }
+
+    @Override
+    public void onDestroy() {
+        thumbnails.shutdown();
+        queries.shutdown();
+        super.onDestroy();
+    }
 
     /**
      * @see CordovaPlugin
@@ -43,136 +225,865 @@ public class ListManager extends CordovaPlugin {
      * @throws JSONException
      */
     @Override
-    public boolean execute(String action, JSONArray args, final CallbackContext callbackContext) throws JSONException {
+    public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
+
+        if(!"get_library_stats".equals(action)) {
+            callbackContext = share(action, args, callbackContext);
+            if(callbackContext == null)
+                return true;
+        }
+
+        boolean isHandled = false;
+        try {
+            isHandled = executeQuery(action, args, callbackContext);
+            return isHandled;
+        } finally {
+            // A request which has been rejected before its query started is not shared.
+            if(!isHandled && callbackContext instanceof SharedCallback) {
+                ((SharedCallback)callbackContext).group.leave();
+            }
+        }
+    }
+
+    private boolean executeQuery(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
 
         if("get_album_info".equals(action)) {
-            final Context context = cordova.getActivity().getApplicationContext();
-
-            cordova.getThreadPool().execute(new Runnable() {
-                @Override
-                public void run() {
-                    ContentResolver resolver = context.getContentResolver();
-                    Cursor cursor = null;
-                    try {
-                        cursor = resolver.query(
+            return executeGetAlbumInfo(args, callbackContext);
+        } else if("get_track_info".equals(action)) {
+            return executeGetTrackInfo(args, callbackContext);
+        } else if("get_tracks_info".equals(action)) {
+            return executeGetTracksInfo(args, callbackContext);
+        } else if("query_tracks".equals(action)) {
+            return executeQueryTracks(args, callbackContext);
+        } else if("search".equals(action)) {
+            return executeSearch(args, callbackContext);
+        } else if("get_thumbnails".equals(action)) {
+            return executeGetThumbnails(args, callbackContext);
+        } else if("get_library_stats".equals(action)) {
+            return executeGetLibraryStats(callbackContext);
+        }
+
+        return false;
+    }
+
+    private static final int NO_LIMIT = -1;
+
+    /**
+     * Lists albums. All arguments are optional.
+     * args[0]: offset of the first album to return (default 0)
+     * args[1]: maximum number of albums to return (default NO_LIMIT, 0 or less means no limit)
+     * args[2]: page size. If it is positive, each page is sent as soon as it is
+     *          materialized with the callback kept alive, otherwise the whole
+     *          list is sent at once as a plain array like before.
+     */
+    private boolean executeGetAlbumInfo(JSONArray args, final CallbackContext callbackContext) {
+        final int offset = Math.max(0, args.optInt(0, 0));
+        final int limit = args.optInt(1, NO_LIMIT);
+        final int pageSize = args.optInt(2, 0);
+        final Context context = cordova.getActivity().getApplicationContext();
+
+        queries.submit(null, new CallbackQuery(callbackContext) {
+            @Override
+            protected void execute() {
+                MediaLibrary.Snapshot library = MediaLibrary.getInstance(context).getSnapshot();
+                if(library != null) {
+                    sendAlbumsFromLibrary(library);
+                } else {
+                    sendAlbumsFromResolver();
+                }
+            }
+
+            private void sendAlbumsFromLibrary(MediaLibrary.Snapshot library) {
+                int total = library.getAlbumCount();
+                if(offset >= total) {
+                    callbackContext.error("The cursor is invalid.");
+                    return;
+                }
+
+                AlbumPages pages = new AlbumPages(callbackContext, offset, total, limit, pageSize);
+                for(int album = offset; album < pages.getEnd() && !isCancelled(); album ++) {
+                    pages.beginAlbum()
+                         .name("id").value(library.getAlbumId(album))
+                         .name("name").value(library.getAlbumName(album))
+                         .name("numTracks").value(library.getAlbumNumTracks(album))
+                         .name("artist").value(library.getAlbumArtist(album))
+                         .name("artwork").value(library.getAlbumArt(album))
+                         .name("thumbnail").value(thumbnails.getCachedPath(library.getAlbumId(album), library.getAlbumArt(album)));
+                    pages.endAlbum();
+                }
+            }
+
+            private void sendAlbumsFromResolver() {
+                ContentResolver resolver = context.getContentResolver();
+                Cursor cursor = null;
+                try {
+                    cursor = resolver.query(
+                                MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
+                                ALBUM_PROJECTION,
+                                null, null, MediaStore.Audio.Albums.ALBUM + " ASC");
+
+                    if(cursor == null || !cursor.moveToPosition(offset)) {
+                        callbackContext.error("The cursor is invalid.");
+                        return;
+                    }
+
+                    BoundProjection albums = BoundProjection.bind(cursor, ALBUM_PROJECTION);
+                    AlbumPages pages = new AlbumPages(callbackContext, offset, cursor.getCount(), limit, pageSize);
+                    do {
+                        pages.beginAlbum()
+                             .name("id").value(albums.getLong(ALBUM_ID))
+                             .name("name").value(albums.getString(ALBUM_NAME))
+                             .name("numTracks").value(albums.getInt(ALBUM_NUMBER_OF_SONGS))
+                             .name("artist").value(albums.getString(ALBUM_ARTIST))
+                             .name("artwork").value(albums.getString(ALBUM_ART))
+                             .name("thumbnail").value(thumbnails.getCachedPath(albums.getLong(ALBUM_ID), albums.getString(ALBUM_ART)));
+                        pages.endAlbum();
+                    } while(!isCancelled() && cursor.getPosition() + 1 < pages.getEnd() && cursor.moveToNext());
+
+                } finally {
+                    if(cursor != null) {
+                        cursor.close();
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    private static final int INITIAL_WRITER_CAPACITY = 16 * 1024;
+
+    // Each thread of the pool keeps its own writer, so the buffer is reused across calls.
+    private static final ThreadLocal<JsonWriter> writers = new ThreadLocal<JsonWriter>() {
+        @Override
+        protected JsonWriter initialValue() {
+            return new JsonWriter(INITIAL_WRITER_CAPACITY);
+        }
+    };
+
+    /**
+     * Sends JSON text which has already been written as a string message.
+     * Wrapping it in a JSONObject would make Cordova encode the tree again, so the callbacks
+     * in list_manager.js parse the text instead. Every result built with JsonWriter goes through here.
+     */
+    private static PluginResult toPluginResult(String json) {
+        return new PluginResult(PluginResult.Status.OK, json);
+    }
+
+    /**
+     * Writes albums and sends them to the callback either at once or page by page.
+     */
+    private static class AlbumPages {
+        private final CallbackContext callbackContext;
+        private final JsonWriter writer = writers.get();
+        private final long startedAt = SystemClock.elapsedRealtime();
+        private final int total;
+        private final int end;
+        private final int pageSize;
+        private int pageOffset;
+        private int added;
+        private boolean isPageOpen = false;
+
+        public AlbumPages(CallbackContext callbackContext, int offset, int total, int limit, int pageSize) {
+            this.callbackContext = callbackContext;
+            this.total = total;
+            this.end = (limit > 0) ? Math.min(total, offset + limit) : total;
+            this.pageSize = pageSize;
+            this.pageOffset = offset;
+            this.added = offset;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+
+        /**
+         * @return the writer to write the members of the album into
+         */
+        public JsonWriter beginAlbum() {
+            if(!isPageOpen) {
+                writer.reset();
+                if(pageSize > 0) {
+                    writer.beginObject().name("albums");
+                }
+                writer.beginArray();
+                isPageOpen = true;
+            }
+            return writer.beginObject();
+        }
+
+        public void endAlbum() {
+            writer.endObject();
+            added ++;
+
+            boolean isLast = added >= end;
+            if(pageSize <= 0) {
+                if(isLast) {
+                    writer.endArray();
+                    send(true);
+                }
+                return;
+            }
+
+            if(added - pageOffset >= pageSize || isLast) {
+                writer.endArray();
+                writer.name("offset").value(pageOffset)
+                      .name("total").value(total)
+                      .name("last").value(isLast);
+                writer.endObject();
+                send(isLast);
+
+                pageOffset = added;
+            }
+        }
+
+        private void send(boolean isLast) {
+            PluginResult result = toPluginResult(writer.toString());
+            result.setKeepCallback(!isLast);
+            callbackContext.sendPluginResult(result);
+            isPageOpen = false;
+
+            if(isLast) {
+                Log.d(TAG, "Wrote " + added + " albums in " + (SystemClock.elapsedRealtime() - startedAt) + "ms");
+            }
+        }
+    }
+
+    private boolean executeGetTrackInfo(JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        final long albumId = args.getLong(0);
+        final Context context = cordova.getActivity().getApplicationContext();
+
+        queries.submit(CHANNEL_TRACK_INFO, new CallbackQuery(callbackContext) {
+            @Override
+            protected void execute() {
+                MediaLibrary.Snapshot library = MediaLibrary.getInstance(context).getSnapshot();
+                int album = (library == null) ? LongIntMap.NOT_FOUND : library.findAlbum(albumId);
+                if(album != LongIntMap.NOT_FOUND) {
+                    sendTracksFromLibrary(library, album);
+                } else {
+                    sendTracksFromResolver();
+                }
+            }
+
+            private void sendTracksFromLibrary(MediaLibrary.Snapshot library, int album) {
+                int start = library.getAlbumTrackStart(album);
+                int end = library.getAlbumTrackEnd(album);
+                if(start >= end) {
+                    callbackContext.error("The cursor is invalid.");
+                    return;
+                }
+
+                JsonWriter writer = writers.get().reset();
+                writer.beginObject()
+                      .name("album").value(library.getAlbumName(album))
+                      .name("artwork").value(library.getAlbumArt(album))
+                      .name("tracks").beginArray();
+                for(int track = start; track < end; track ++) {
+                    writer.beginObject()
+                          .name("id").value(library.getTrackId(track))
+                          .name("title").value(library.getTrackTitle(track))
+                          .name("artist").value(library.getTrackArtist(track))
+                          .name("duration").value(library.getTrackDuration(track))
+                          .endObject();
+                }
+                writer.endArray().endObject();
+
+                callbackContext.sendPluginResult(toPluginResult(writer.toString()));
+            }
+
+            private void sendTracksFromResolver() {
+                ContentResolver resolver = context.getContentResolver();
+                Cursor albumCursor = null;
+                Cursor trackCursor = null;
+
+                try {
+                    albumCursor = resolver.query(
                                     MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
-                                    new String[] {
-                                        MediaStore.Audio.Albums._ID,
-                                        MediaStore.Audio.Albums.ALBUM,
-                                        MediaStore.Audio.Albums.NUMBER_OF_SONGS,
-                                        MediaStore.Audio.Albums.ARTIST,
-                                        MediaStore.Audio.Albums.ALBUM_ART,
-                                    },
-                                    null, null, MediaStore.Audio.Albums.ALBUM + " ASC");
-
-                        if(cursor == null || !cursor.moveToFirst()) {
-                            callbackContext.error("The cursor is invalid.");
-                            return;
-                        }
+                                    ALBUM_HEADER_PROJECTION,
+                                    MediaStore.Audio.Albums._ID + "=?", new String[] {String.valueOf(albumId)},
+                                    null);
 
-                        JSONArray results = new JSONArray();
-                        do {
-                            JSONObject obj = new JSONObject();
-                            obj.put("id", CursorHelper.getLong(cursor, MediaStore.Audio.Albums._ID));
-                            obj.put("name", CursorHelper.getString(cursor, MediaStore.Audio.Albums.ALBUM));
-                            obj.put("numTracks", CursorHelper.getInt(cursor, MediaStore.Audio.Albums.NUMBER_OF_SONGS));
-                            obj.put("artist", CursorHelper.getString(cursor, MediaStore.Audio.Albums.ARTIST));
-                            obj.put("artwork", CursorHelper.getString(cursor, MediaStore.Audio.Albums.ALBUM_ART));
+                    if(albumCursor == null || !albumCursor.moveToFirst() || albumCursor.getCount() != 1) {
+                        callbackContext.error("The album's cursor is invalid.");
+                        return;
+                    }
+                    if(isCancelled())
+                        return;
+
+                    trackCursor = resolver.query(
+                            MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                            TRACK_PROJECTION,
+                            MediaStore.Audio.Media.ALBUM_ID + "=?", new String[] {String.valueOf(albumId)},
+                            MediaStore.Audio.Media.TRACK + " ASC");
 
-                            results.put(obj);
+                    if(trackCursor == null || !trackCursor.moveToFirst()) {
+                        callbackContext.error("The cursor is invalid.");
+                        return;
+                    }
 
-                        } while(cursor.moveToNext());
+                    BoundProjection album = BoundProjection.bind(albumCursor, ALBUM_HEADER_PROJECTION);
+                    JsonWriter writer = writers.get().reset();
+                    writer.beginObject()
+                          .name("album").value(album.getString(ALBUM_HEADER_NAME))
+                          .name("artwork").value(album.getString(ALBUM_HEADER_ART))
+                          .name("tracks").beginArray();
 
-                        callbackContext.success(results);
+                    BoundProjection track = BoundProjection.bind(trackCursor, TRACK_PROJECTION);
+                    do {
+                        writer.beginObject()
+                              .name("id").value(track.getLong(TRACK_ID))
+                              .name("title").value(track.getString(TRACK_TITLE))
+                              .name("artist").value(track.getString(TRACK_ARTIST))
+                              .name("duration").value(track.getLong(TRACK_DURATION))
+                              .endObject();
 
-                    } catch(JSONException e) {
-                        callbackContext.error(e.toString());
-                    } finally {
-                        if(cursor != null) {
-                            cursor.close();
-                        }
+                    } while(!isCancelled() && trackCursor.moveToNext());
+
+                    if(isCancelled())
+                        return;
+
+                    writer.endArray().endObject();
+                    callbackContext.sendPluginResult(toPluginResult(writer.toString()));
+
+                } finally {
+                    if(albumCursor != null) {
+                        albumCursor.close();
+                    }
+                    if(trackCursor != null) {
+                        trackCursor.close();
                     }
                 }
-            });
-            return true;
+            }
+        });
+        return true;
+    }
 
-        } else if("get_track_info".equals(action)) {
-            final long albumId = args.getLong(0);
-            final Context context = cordova.getActivity().getApplicationContext();
-
-            cordova.getThreadPool().execute(new Runnable() {
-                @Override
-                public void run() {
-                    ContentResolver resolver = context.getContentResolver();
-                    Cursor albumCursor = null;
-                    Cursor trackCursor = null;
-
-                    try {
-                        albumCursor = resolver.query(
-                                        MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
-                                        new String[] {
-                                            MediaStore.Audio.Albums.ALBUM,
-                                            MediaStore.Audio.Albums.ALBUM_ART,
-                                        },
-                                        MediaStore.Audio.Albums._ID + "=?", new String[] {String.valueOf(albumId)},
-                                        null);
-
-                        if(albumCursor == null || !albumCursor.moveToFirst() || albumCursor.getCount() != 1) {
-                            callbackContext.error("The album's cursor is invalid.");
-                            return;
+    private static final int DEFAULT_ALBUMS_PER_CHUNK = 8;
+
+    // SQLite limits the length of a statement, so long IN clauses are split.
+    private static final int MAX_IN_CLAUSE_IDS = 500;
+
+    /**
+     * Lists the tracks of many albums in one call.
+     * args[0]: array of album IDs
+     * args[1]: number of albums per chunk (default DEFAULT_ALBUMS_PER_CHUNK)
+     * Chunks of {last, albums: [{id, album, artwork, tracks}]} are sent with the callback
+     * kept alive until the last one. Albums which are not found are left out.
+     */
+    private boolean executeGetTracksInfo(JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        JSONArray ids = args.getJSONArray(0);
+        final long[] albumIds = new long[ids.length()];
+        for(int i = 0; i < albumIds.length; i ++) {
+            albumIds[i] = ids.getLong(i);
+        }
+        int albumsPerChunk = args.optInt(1, DEFAULT_ALBUMS_PER_CHUNK);
+        final int chunkSize = (albumsPerChunk > 0) ? albumsPerChunk : DEFAULT_ALBUMS_PER_CHUNK;
+        final Context context = cordova.getActivity().getApplicationContext();
+
+        queries.submit(CHANNEL_TRACKS_INFO, new CallbackQuery(callbackContext) {
+            @Override
+            protected void execute() {
+                MediaLibrary.Snapshot library = MediaLibrary.getInstance(context).getSnapshot();
+
+                // The requested albums without duplicates, in the requested order.
+                // Each has its position in the library or is missing and queried.
+                LongIntMap slots = new LongIntMap(albumIds.length);
+                int[] positions = new int[albumIds.length];
+                int numAlbums = 0;
+                long[] missing = new long[albumIds.length];
+                int[] missingSlots = new int[albumIds.length];
+                int numMissing = 0;
+                for(long albumId : albumIds) {
+                    if(slots.get(albumId) != LongIntMap.NOT_FOUND)
+                        continue;
+
+                    int position = (library == null) ? LongIntMap.NOT_FOUND : library.findAlbum(albumId);
+                    slots.put(albumId, numAlbums);
+                    positions[numAlbums] = position;
+                    if(position == LongIntMap.NOT_FOUND) {
+                        missing[numMissing] = albumId;
+                        missingSlots[numMissing ++] = numAlbums;
+                    }
+                    numAlbums ++;
+                }
+
+                // The albums are sent in the requested order, each as soon as the missing
+                // albums ahead of it have been queried, so the first chunks do not wait
+                // for the last IN clause.
+                AlbumTracks[] queried = new AlbumTracks[numAlbums];
+                TrackGroups groups = new TrackGroups(callbackContext, chunkSize);
+                int next = addTracks(library, positions, queried, 0,
+                                     (numMissing > 0) ? missingSlots[0] : numAlbums, groups);
+                for(int start = 0; start < numMissing && !isCancelled(); start += MAX_IN_CLAUSE_IDS) {
+                    int end = Math.min(numMissing, start + MAX_IN_CLAUSE_IDS);
+                    queryTracks(missing, start, end, slots, queried);
+                    next = addTracks(library, positions, queried, next,
+                                     (end < numMissing) ? missingSlots[end] : numAlbums, groups);
+                }
+
+                if(isCancelled())
+                    return;
+
+                groups.finish();
+            }
+
+            /**
+             * Adds the albums in the slots [from, to). The missing ones among them have been queried.
+             * @return to
+             */
+            private int addTracks(MediaLibrary.Snapshot library, int[] positions, AlbumTracks[] queried,
+                                  int from, int to, TrackGroups groups) {
+                for(int slot = from; slot < to && !isCancelled(); slot ++) {
+                    if(positions[slot] != LongIntMap.NOT_FOUND) {
+                        addTracksFromLibrary(library, positions[slot], groups);
+                    } else if(queried[slot] != null) {
+                        addTracksFromBatch(queried[slot], groups);
+                        // Lets the batch go once all of its albums have been sent.
+                        queried[slot] = null;
+                    }
+                }
+                return to;
+            }
+
+            private void addTracksFromLibrary(MediaLibrary.Snapshot library, int album, TrackGroups groups) {
+                groups.beginAlbum(library.getAlbumId(album), library.getAlbumName(album), library.getAlbumArt(album));
+                int end = library.getAlbumTrackEnd(album);
+                for(int track = library.getAlbumTrackStart(album); track < end; track ++) {
+                    groups.addTrack(library.getTrackId(track), library.getTrackTitle(track),
+                                    library.getTrackArtist(track), library.getTrackDuration(track));
+                }
+                groups.endAlbum();
+            }
+
+            private void addTracksFromBatch(AlbumTracks album, TrackGroups groups) {
+                TrackBatch batch = album.batch;
+                groups.beginAlbum(album.albumId, album.name, album.artwork);
+                for(int track = album.start; track < album.end; track ++) {
+                    groups.addTrack(batch.ids[track], batch.titles[track], batch.artists[track], batch.durations[track]);
+                }
+                groups.endAlbum();
+            }
+
+            /**
+             * Runs one album query and one track query for the albums in [start, end)
+             * and keeps the range of tracks in the slot of each album.
+             */
+            private void queryTracks(long[] albumIds, int start, int end, LongIntMap slots, AlbumTracks[] queried) {
+                StringBuilder ids = new StringBuilder();
+                for(int i = start; i < end; i ++) {
+                    if(i > start) {
+                        ids.append(',');
+                    }
+                    ids.append(albumIds[i]);
+                }
+
+                ContentResolver resolver = context.getContentResolver();
+                Cursor albumCursor = null;
+                Cursor trackCursor = null;
+
+                try {
+                    albumCursor = resolver.query(
+                                    MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
+                                    ALBUM_BATCH_PROJECTION,
+                                    MediaStore.Audio.Albums._ID + " IN (" + ids + ")", null,
+                                    null);
+                    if(albumCursor == null || isCancelled())
+                        return;
+
+                    LongIntMap albumPositions = new LongIntMap(albumCursor.getCount());
+                    String[] albumNames = new String[albumCursor.getCount()];
+                    String[] albumArts = new String[albumCursor.getCount()];
+                    BoundProjection album = BoundProjection.bind(albumCursor, ALBUM_BATCH_PROJECTION);
+                    while(albumCursor.moveToNext()) {
+                        int position = albumCursor.getPosition();
+                        albumPositions.put(album.getLong(ALBUM_BATCH_ID), position);
+                        albumNames[position] = album.getString(ALBUM_BATCH_NAME);
+                        albumArts[position] = album.getString(ALBUM_BATCH_ART);
+                    }
+
+                    trackCursor = resolver.query(
+                            MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                            TRACK_BATCH_PROJECTION,
+                            MediaStore.Audio.Media.ALBUM_ID + " IN (" + ids + ")", null,
+                            MediaStore.Audio.Media.ALBUM_ID + " ASC, " + MediaStore.Audio.Media.TRACK + " ASC");
+                    if(trackCursor == null)
+                        return;
+
+                    // Sorted by album, so the tracks of an album are a contiguous range of the batch.
+                    TrackBatch batch = new TrackBatch(trackCursor.getCount());
+                    BoundProjection track = BoundProjection.bind(trackCursor, TRACK_BATCH_PROJECTION);
+                    while(!isCancelled() && trackCursor.moveToNext()) {
+                        long albumId = track.getLong(TRACK_BATCH_ALBUM_ID);
+                        int position = albumPositions.get(albumId);
+                        int slot = slots.get(albumId);
+                        if(position == LongIntMap.NOT_FOUND || slot == LongIntMap.NOT_FOUND)
+                            continue;
+
+                        if(queried[slot] == null) {
+                            queried[slot] = new AlbumTracks(albumId, albumNames[position], albumArts[position], batch, batch.count);
                         }
 
-                        trackCursor = resolver.query(
+                        int row = batch.count ++;
+                        batch.ids[row] = track.getLong(TRACK_BATCH_ID);
+                        batch.titles[row] = track.getString(TRACK_BATCH_TITLE);
+                        batch.artists[row] = track.getString(TRACK_BATCH_ARTIST);
+                        batch.durations[row] = track.getLong(TRACK_BATCH_DURATION);
+                        queried[slot].end = batch.count;
+                    }
+
+                } finally {
+                    if(albumCursor != null) {
+                        albumCursor.close();
+                    }
+                    if(trackCursor != null) {
+                        trackCursor.close();
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * The columns of the tracks read by one batch query, instead of a JSONObject per track.
+     */
+    private static class TrackBatch {
+        public final long[] ids;
+        public final String[] titles;
+        public final String[] artists;
+        public final long[] durations;
+        public int count = 0;
+
+        public TrackBatch(int capacity) {
+            ids = new long[capacity];
+            titles = new String[capacity];
+            artists = new String[capacity];
+            durations = new long[capacity];
+        }
+    }
+
+    /**
+     * The tracks of an album queried from MediaStore, kept until its turn to be sent comes.
+     * They are the range [start, end) of the batch.
+     */
+    private static class AlbumTracks {
+        public final long albumId;
+        public final String name;
+        public final String artwork;
+        public final TrackBatch batch;
+        public final int start;
+        public int end;
+
+        public AlbumTracks(long albumId, String name, String artwork, TrackBatch batch, int start) {
+            this.albumId = albumId;
+            this.name = name;
+            this.artwork = artwork;
+            this.batch = batch;
+            this.start = start;
+            this.end = start;
+        }
+    }
+
+    /**
+     * Writes the tracks grouped per album and sends them in chunks with the callback kept alive.
+     */
+    private static class TrackGroups {
+        private final CallbackContext callbackContext;
+        private final JsonWriter writer = writers.get();
+        private final int albumsPerChunk;
+        private int albumsInChunk = 0;
+
+        public TrackGroups(CallbackContext callbackContext, int albumsPerChunk) {
+            this.callbackContext = callbackContext;
+            this.albumsPerChunk = albumsPerChunk;
+            beginChunk();
+        }
+
+        public void beginAlbum(long albumId, String name, String artwork) {
+            writer.beginObject()
+                  .name("id").value(albumId)
+                  .name("album").value(name)
+                  .name("artwork").value(artwork)
+                  .name("tracks").beginArray();
+        }
+
+        public void addTrack(long id, String title, String artist, long duration) {
+            writer.beginObject()
+                  .name("id").value(id)
+                  .name("title").value(title)
+                  .name("artist").value(artist)
+                  .name("duration").value(duration)
+                  .endObject();
+        }
+
+        public void endAlbum() {
+            writer.endArray().endObject();
+            albumsInChunk ++;
+
+            if(albumsInChunk >= albumsPerChunk) {
+                send(false);
+                beginChunk();
+            }
+        }
+
+        /**
+         * Sends the rest. The last chunk may be empty.
+         */
+        public void finish() {
+            send(true);
+        }
+
+        private void beginChunk() {
+            writer.reset().beginObject().name("albums").beginArray();
+            albumsInChunk = 0;
+        }
+
+        private void send(boolean isLast) {
+            writer.endArray().name("last").value(isLast).endObject();
+
+            PluginResult result = toPluginResult(writer.toString());
+            result.setKeepCallback(!isLast);
+            callbackContext.sendPluginResult(result);
+        }
+    }
+
+    /**
+     * Queries tracks of the whole library.
+     * args[0]: the query spec described in TrackQuery (optional)
+     * The result is {offset, total, tracks} where total is the number of matching tracks
+     * and each track has the requested fields only.
+     */
+    private boolean executeQueryTracks(JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        final TrackQuery query = TrackQuery.parse(args.optJSONObject(0));
+        final Context context = cordova.getActivity().getApplicationContext();
+
+        queries.submit(CHANNEL_QUERY_TRACKS, new CallbackQuery(callbackContext) {
+            @Override
+            protected void execute() {
+                ContentResolver resolver = context.getContentResolver();
+                Cursor cursor = null;
+                try {
+                    cursor = resolver.query(
                                 MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                                new String[] {
-                                        MediaStore.Audio.Media._ID,
-                                        MediaStore.Audio.Media.TITLE,
-                                        MediaStore.Audio.Media.ARTIST,
-                                        MediaStore.Audio.Media.ALBUM,
-                                        MediaStore.Audio.Media.DURATION,
-                                },
-                                MediaStore.Audio.Media.ALBUM_ID + "=?", new String[] {String.valueOf(albumId)},
-                                MediaStore.Audio.Media.TRACK + " ASC");
-
-                        if(trackCursor == null || !trackCursor.moveToFirst()) {
-                            callbackContext.error("The cursor is invalid.");
-                            return;
-                        }
+                                query.getProjection(),
+                                query.getSelection(), query.getSelectionArgs(),
+                                query.getSortOrder());
 
-                        JSONObject result = new JSONObject();
-                        result.put("album", CursorHelper.getString(albumCursor, MediaStore.Audio.Albums.ALBUM));
-                        result.put("artwork", CursorHelper.getString(albumCursor, MediaStore.Audio.Albums.ALBUM_ART));
+                    if(cursor == null) {
+                        callbackContext.error("The cursor is invalid.");
+                        return;
+                    }
 
-                        JSONArray tracks = new JSONArray();
+                    int total = cursor.getCount();
+                    int end = (query.getLimit() > 0) ? Math.min(total, query.getOffset() + query.getLimit()) : total;
+                    BoundProjection row = BoundProjection.bind(cursor, query.getProjection());
+                    JSONArray tracks = new JSONArray();
+                    if(cursor.moveToPosition(query.getOffset())) {
                         do {
-                            JSONObject obj = new JSONObject();
-                            obj.put("id", CursorHelper.getLong(trackCursor, MediaStore.Audio.Media._ID));
-                            obj.put("title", CursorHelper.getString(trackCursor, MediaStore.Audio.Media.TITLE));
-                            obj.put("artist", CursorHelper.getString(trackCursor, MediaStore.Audio.Media.ARTIST));
-                            obj.put("duration", CursorHelper.getLong(trackCursor, MediaStore.Audio.Media.DURATION));
+                            tracks.put(query.read(row));
+                        } while(!isCancelled() && cursor.getPosition() + 1 < end && cursor.moveToNext());
+                    }
+                    if(isCancelled())
+                        return;
 
-                            tracks.put(obj);
+                    JSONObject result = new JSONObject();
+                    result.put("offset", query.getOffset());
+                    result.put("total", total);
+                    result.put("tracks", tracks);
+                    callbackContext.success(result);
 
-                        } while(trackCursor.moveToNext());
+                } catch(JSONException e) {
+                    callbackContext.error(e.toString());
+                } finally {
+                    if(cursor != null) {
+                        cursor.close();
+                    }
+                }
+            }
+        });
+        return true;
+    }
 
-                        result.put("tracks", tracks);
-                        callbackContext.success(result);
+    private static final int DEFAULT_SEARCH_LIMIT = 50;
+    // The result array is allocated up front, so the limit from JavaScript is bounded.
+    private static final int MAX_SEARCH_LIMIT = 500;
 
-                    } catch(JSONException e) {
-                        callbackContext.error(e.toString());
-                    } finally {
-                        if(albumCursor != null) {
-                            albumCursor.close();
-                        }
-                        if(trackCursor != null) {
-                            trackCursor.close();
-                        }
+    /**
+     * Searches the titles, artists and album names for type-ahead.
+     * args[0]: the words typed so far
+     * args[1]: maximum number of tracks to return (default DEFAULT_SEARCH_LIMIT, at most MAX_SEARCH_LIMIT)
+     * The result is {total, tracks} where tracks matched by word prefixes come first.
+     */
+    private boolean executeSearch(JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        final String query = args.getString(0);
+        int limit = args.optInt(1, DEFAULT_SEARCH_LIMIT);
+        final int[] results = new int[(limit > 0) ? Math.min(limit, MAX_SEARCH_LIMIT) : DEFAULT_SEARCH_LIMIT];
+        final Context context = cordova.getActivity().getApplicationContext();
+
+        queries.submit(CHANNEL_SEARCH, new CallbackQuery(callbackContext) {
+            @Override
+            protected void execute() {
+                MediaLibrary.Snapshot library = MediaLibrary.getInstance(context).getSnapshot();
+                if(library == null) {
+                    callbackContext.error("The library has not been loaded yet.");
+                    return;
+                }
+
+                long start = SystemClock.elapsedRealtime();
+                SearchIndex index = library.getSearchIndex();
+                int total = index.search(query, results);
+                if(isCancelled())
+                    return;
+
+                int count = Math.min(total, results.length);
+                Log.d(TAG, "Searched " + index.getTrackCount() + " tracks in " +
+                           (SystemClock.elapsedRealtime() - start) + "ms, matches: " + total);
+
+                try {
+                    JSONArray tracks = new JSONArray();
+                    for(int i = 0; i < count; i ++) {
+                        int track = results[i];
+                        JSONObject obj = new JSONObject();
+                        obj.put("id", library.getTrackId(track));
+                        obj.put("title", library.getTrackTitle(track));
+                        obj.put("artist", library.getTrackArtist(track));
+                        obj.put("album", library.getTrackAlbum(track));
+                        obj.put("albumId", library.getTrackAlbumId(track));
+                        tracks.put(obj);
                     }
+
+                    JSONObject result = new JSONObject();
+                    result.put("total", total);
+                    result.put("tracks", tracks);
+                    callbackContext.success(result);
+
+                } catch(JSONException e) {
+                    callbackContext.error(e.toString());
                 }
-            });
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Returns the list thumbnails of albums, generating the missing ones.
+     * args[0]: the IDs of the albums, e.g. those of the visible rows
+     * The result is {thumbnails: [{id, thumbnail}]} where thumbnail is null for an album without artwork.
+     */
+    private boolean executeGetThumbnails(JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        JSONArray ids = args.getJSONArray(0);
+        if(ids.length() > MAX_IN_CLAUSE_IDS) {
+            callbackContext.error("Too many albums: " + ids.length());
             return true;
         }
 
-        return false;
+        final long[] albumIds = new long[ids.length()];
+        for(int i = 0; i < albumIds.length; i ++) {
+            albumIds[i] = ids.getLong(i);
+        }
+        final Context context = cordova.getActivity().getApplicationContext();
+
+        queries.submit(null, new CallbackQuery(callbackContext) {
+            @Override
+            protected void execute() {
+                String[] artworkPaths = new String[albumIds.length];
+                MediaLibrary.Snapshot library = MediaLibrary.getInstance(context).getSnapshot();
+                if(library != null) {
+                    for(int i = 0; i < albumIds.length; i ++) {
+                        int album = library.findAlbum(albumIds[i]);
+                        if(album != LongIntMap.NOT_FOUND) {
+                            artworkPaths[i] = library.getAlbumArt(album);
+                        }
+                    }
+                } else {
+                    readArtworkPaths(artworkPaths);
+                }
+
+                thumbnails.request(albumIds, artworkPaths, new ThumbnailCache.Callback() {
+                    @Override
+                    public void onThumbnails(long[] albumIds, String[] thumbnailPaths) {
+                        JsonWriter writer = writers.get().reset();
+                        writer.beginObject().name("thumbnails").beginArray();
+                        for(int i = 0; i < albumIds.length; i ++) {
+                            writer.beginObject()
+                                  .name("id").value(albumIds[i])
+                                  .name("thumbnail").value(thumbnailPaths[i])
+                                  .endObject();
+                        }
+                        writer.endArray().endObject();
+                        callbackContext.sendPluginResult(toPluginResult(writer.toString()));
+                    }
+                });
+            }
+
+            private void readArtworkPaths(String[] artworkPaths) {
+                StringBuilder ids = new StringBuilder();
+                for(int i = 0; i < albumIds.length; i ++) {
+                    if(i > 0) {
+                        ids.append(',');
+                    }
+                    ids.append(albumIds[i]);
+                }
+
+                Cursor cursor = null;
+                try {
+                    cursor = context.getContentResolver().query(
+                                MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
+                                ALBUM_BATCH_PROJECTION,
+                                MediaStore.Audio.Albums._ID + " IN (" + ids + ")", null,
+                                null);
+                    if(cursor == null)
+                        return;
+
+                    LongIntMap positions = new LongIntMap(albumIds.length);
+                    for(int i = 0; i < albumIds.length; i ++) {
+                        positions.put(albumIds[i], i);
+                    }
+                    BoundProjection album = BoundProjection.bind(cursor, ALBUM_BATCH_PROJECTION);
+                    while(cursor.moveToNext()) {
+                        int position = positions.get(album.getLong(ALBUM_BATCH_ID));
+                        if(position != LongIntMap.NOT_FOUND) {
+                            artworkPaths[position] = album.getString(ALBUM_BATCH_ART);
+                        }
+                    }
+
+                } finally {
+                    if(cursor != null) {
+                        cursor.close();
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    private boolean executeGetLibraryStats(CallbackContext callbackContext) throws JSONException {
+        MediaLibrary library = MediaLibrary.getInstance(cordova.getActivity().getApplicationContext());
+        JSONObject stats = new JSONObject();
+        stats.put("hits", library.getHitCount());
+        stats.put("misses", library.getMissCount());
+        stats.put("refreshes", library.getRefreshCount());
+        stats.put("lastRefreshTime", library.getLastRefreshTime());
+        stats.put("lastRefreshedRows", library.getLastRefreshedRows());
+        stats.put("queryQueueDepth", queries.getQueueDepth());
+        stats.put("queryWaitTime", queries.getWaitTime().getAverage());
+        stats.put("queryWaitTimeMax", queries.getWaitTime().getMax());
+        stats.put("supersededQueries", queries.getSupersededCount());
+        stats.put("rejectedQueries", queries.getRejectedCount());
+        stats.put("sharedQueries", inFlight.getSharedCount());
+        stats.put("thumbnailHits", thumbnails.getHitCount());
+        stats.put("thumbnailsGenerated", thumbnails.getGenerateCount());
+        stats.put("thumbnailsEvicted", thumbnails.getEvictCount());
+        stats.put("thumbnailBytes", thumbnails.getTotalBytes());
+        stats.put("thumbnailGenerateTime", thumbnails.getGenerateTime().getAverage());
+        stats.put("pendingThumbnails", thumbnails.getPendingCount());
+        BitmapPool bitmaps = BitmapPool.getInstance();
+        stats.put("bitmapBytes", bitmaps.getUsedBytes());
+        stats.put("bitmapReferredBytes", bitmaps.getReferredBytes());
+        stats.put("bitmapScratchBytes", bitmaps.getScratchBytes());
+        stats.put("bitmapMaxBytes", bitmaps.getMaxBytes());
+        stats.put("bitmapsEvicted", bitmaps.getEvictCount());
+        stats.put("bitmapsRefused", bitmaps.getRefuseCount());
+        callbackContext.success(stats);
+        return true;
     }
 }
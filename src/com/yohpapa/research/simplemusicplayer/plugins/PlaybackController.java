@@ -10,62 +10,113 @@ import android.content.Intent;
 import android.util.Log;
 
 import com.yohpapa.research.simplemusicplayer.PlaybackService;
-import com.yohpapa.research.simplemusicplayer.plugins.events.PauseEvent;
-import com.yohpapa.research.simplemusicplayer.plugins.events.PlayEvent;
-import com.yohpapa.research.simplemusicplayer.plugins.events.PlayPauseEvent;
-import com.yohpapa.research.simplemusicplayer.plugins.events.PlayStateChangedEvent;
-import com.yohpapa.research.simplemusicplayer.plugins.events.TrackChangedEvent;
+import com.yohpapa.research.simplemusicplayer.plugins.events.PlaybackEvents;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.LongIntMap;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.MediaLibrary;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.MetricsRegistry;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.StateBatcher;
+import com.yohpapa.research.simplemusicplayer.plugins.tools.TrackQueue;
 
 import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaArgs;
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import de.greenrobot.event.EventBus;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public class PlaybackController extends CordovaPlugin {
     private static final String TAG = PlaybackController.class.getSimpleName();
 
-    private EventBus eventBus = null;
+    private static final int BYTES_PER_TRACK_ID = 8;
+    private static final String METRICS_FILE_NAME = "metrics.json";
+
+    private static final long DEFAULT_PROGRESS_INTERVAL_MS = 500L;
+    private static final long MIN_PROGRESS_INTERVAL_MS = 100L;
+    private static final long MAX_PROGRESS_INTERVAL_MS = 10000L;
+
+    // About one frame, so the UI never lags behind by more than it can show.
+    private static final long STATE_BATCH_WINDOW_MS = 16L;
+
+    private final PlaybackEvents events = PlaybackEvents.getInstance();
 
     private long albumId = -1L;
     private long[] trackList = null;
+    private int trackListHandle = TrackQueue.INVALID_HANDLE;
     private int startIndex = 0;
 
-    private CallbackContext onPlayStateChanged = null;
-    private CallbackContext onTrackChanged = null;
-
-    private PlayStateChangedEvent lastPlayStateEvent = null;
-    private TrackChangedEvent lastTrackChangedEvent = null;
+    private volatile CallbackContext onPlayStateChanged = null;
+
+    // Touched on the main thread only, except for the callback and the interval.
+    private volatile CallbackContext onProgress = null;
+    private volatile long progressInterval = DEFAULT_PROGRESS_INTERVAL_MS;
+    private int lastProgressIndex = -1;
+    private int lastPosition = -1;
+    private int lastDuration = -1;
+    private int lastBuffered = -1;
+
+    private final StateBatcher stateBatcher = new StateBatcher(
+            STATE_BATCH_WINDOW_MS,
+            new StateBatcher.Sink() {
+                @Override
+                public void send(JSONObject message) {
+                    CallbackContext callback = onPlayStateChanged;
+                    if(callback == null)
+                        return;
+
+                    PluginResult result = new PluginResult(PluginResult.Status.OK, message);
+                    result.setKeepCallback(true);
+                    callback.sendPluginResult(result);
+                }
+            },
+            MetricsRegistry.getInstance().counter(MetricsRegistry.STATE_UPDATES),
+            MetricsRegistry.getInstance().counter(MetricsRegistry.STATE_MESSAGES));
 
     public PlaybackController() {
-        eventBus = EventBus.getDefault();
-        eventBus.register(this);
+        events.addStateListener(stateListener);
     }
 
     @Override
     public void onResume(boolean multitasking) {
         super.onResume(multitasking);
-        eventBus = EventBus.getDefault();
-        eventBus.register(this);
+        events.addStateListener(stateListener);
 
-        PlayStateChangedEvent stateChanged = (PlayStateChangedEvent)eventBus.removeStickyEvent(PlayStateChangedEvent.class);
-        if(stateChanged != null) {
-            eventBus.post(stateChanged);
+        // The state may have changed while the listener was removed.
+        int state = events.getLastState();
+        if(state >= 0) {
+            stateBatcher.update(albumId, state, events.getLastIndex());
         }
+        long trackId = events.getLastTrackId();
+        if(trackId != PlaybackEvents.NO_TRACK) {
+            stateBatcher.updateTrack(trackId, getTrackMetadata(trackId));
+        }
+        stateBatcher.invalidate();
 
-        TrackChangedEvent trackChanged =(TrackChangedEvent)eventBus.removeStickyEvent(TrackChangedEvent.class);
-        if(trackChanged != null) {
-            eventBus.post(trackChanged);
+        if(onProgress != null) {
+            resetProgress();
+            events.addProgressListener(progressListener, progressInterval);
         }
     }
 
     @Override
     public void onPause(boolean multitasking) {
         super.onPause(multitasking);
-        eventBus.unregister(this);
+        events.removeStateListener(stateListener);
+        // Nobody sees the progress while the WebView is paused.
+        events.removeProgressListener(progressListener);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        events.removeStateListener(stateListener);
+        stateBatcher.cancel();
+        events.removeProgressListener(progressListener);
     }
 
     /**
@@ -81,12 +132,16 @@ public class PlaybackController extends CordovaPlugin {
 
         if("setTracks".equals(action)) {
             return executeSetTracks(args, callbackContext);
+        } else if("setPackedTracks".equals(action)) {
+            return executeSetPackedTracks(args, callbackContext);
         } else if("setIndex".equals(action)) {
             return executeSetIndex(args, callbackContext);
         } else if("setPlayStateChangedCallback".equals(action)) {
             return executeSetPlayStateChangedCallback(callbackContext);
-        } else if("setTrackChangedCallback".equals(action)) {
-            return executeSetTrackChangedCallback(callbackContext);
+        } else if("setProgressCallback".equals(action)) {
+            return executeSetProgressCallback(args, callbackContext);
+        } else if("clearProgressCallback".equals(action)) {
+            return executeClearProgressCallback(callbackContext);
         } else if("playTrack".equals(action)) {
             return executePlayTrack(callbackContext);
         } else if("pauseTrack".equals(action)) {
@@ -99,6 +154,8 @@ public class PlaybackController extends CordovaPlugin {
             return true;
         } else if("getPlayState".equals(action)) {
             return executeGetPlayState(callbackContext);
+        } else if("getMetrics".equals(action)) {
+            return executeGetMetrics(args, callbackContext);
         }
 
         return false;
@@ -109,6 +166,25 @@ public class PlaybackController extends CordovaPlugin {
         for(int i = 0; i < trackList.length; i ++) {
             trackList[i] = args.getLong(i);
         }
+        trackListHandle = TrackQueue.register(trackList);
+        callbackContext.success();
+        return true;
+    }
+
+    /**
+     * args[0]: an ArrayBuffer of the track IDs packed as little endian 64 bit integers.
+     *          The bridge transfers it as a base64 string.
+     */
+    private boolean executeSetPackedTracks(JSONArray args, CallbackContext callbackContext) throws JSONException {
+        byte[] packed = new CordovaArgs(args).getArrayBuffer(0);
+        if(packed.length % BYTES_PER_TRACK_ID != 0) {
+            callbackContext.error("The packed track list is broken.");
+            return true;
+        }
+
+        trackList = new long[packed.length / BYTES_PER_TRACK_ID];
+        ByteBuffer.wrap(packed).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(trackList);
+        trackListHandle = TrackQueue.register(trackList);
         callbackContext.success();
         return true;
     }
@@ -121,7 +197,7 @@ public class PlaybackController extends CordovaPlugin {
         Intent intent = new Intent(context, PlaybackService.class);
         intent.setAction(PlaybackService.ACTION_SELECT);
         intent.putExtra(PlaybackService.PRM_START_INDEX, startIndex);
-        intent.putExtra(PlaybackService.PRM_TRACK_LIST, trackList);
+        intent.putExtra(PlaybackService.PRM_QUEUE_HANDLE, trackListHandle);
         ComponentName name = context.startService(intent);
         if(name != null) {
             callbackContext.success();
@@ -133,40 +209,105 @@ public class PlaybackController extends CordovaPlugin {
     }
 
     private boolean executePlayTrack(CallbackContext callbackContext) {
-        eventBus.post(new PlayEvent());
+        events.postPlay();
         callbackContext.success();
         return true;
     }
 
     private boolean executePauseTrack(CallbackContext callbackContext) {
-        eventBus.post(new PauseEvent());
+        events.postPause();
         callbackContext.success();
         return true;
     }
 
+    /**
+     * Sends {seq, albumId, state, index, track, full: true} first and then only the values which
+     * have changed, at most once per frame, e.g. {seq: 5, index: 3}. A message with a seq
+     * not greater than the one applied last is out of date.
+     * track is {id, title, artist, album, albumId, duration, artwork} and is sent again whenever
+     * the track changes, so that the UI does not need to look it up.
+     */
     private boolean executeSetPlayStateChangedCallback(CallbackContext callbackContext) {
         onPlayStateChanged = callbackContext;
+        stateBatcher.invalidate();
         return true;
     }
 
-    private boolean executeSetTrackChangedCallback(CallbackContext callbackContext) {
-        onTrackChanged = callbackContext;
+    /**
+     * Streams {index, position, duration, buffered} to the callback whenever one of them
+     * has changed, checking at most once per interval. The position and the duration are
+     * in milliseconds and buffered is a percentage of the track.
+     * args[0]: the interval in milliseconds (optional)
+     */
+    private boolean executeSetProgressCallback(JSONArray args, CallbackContext callbackContext) {
+        long interval = args.optLong(0, DEFAULT_PROGRESS_INTERVAL_MS);
+        progressInterval = Math.max(MIN_PROGRESS_INTERVAL_MS, Math.min(interval, MAX_PROGRESS_INTERVAL_MS));
+
+        CallbackContext previous = onProgress;
+        onProgress = callbackContext;
+        if(previous != null) {
+            closeProgressCallback(previous);
+        }
+
+        cordova.getActivity().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                resetProgress();
+            }
+        });
+        events.addProgressListener(progressListener, progressInterval);
+
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
+        return true;
+    }
+
+    private boolean executeClearProgressCallback(CallbackContext callbackContext) {
+        events.removeProgressListener(progressListener);
+
+        CallbackContext previous = onProgress;
+        onProgress = null;
+        if(previous != null) {
+            closeProgressCallback(previous);
+        }
+        callbackContext.success();
         return true;
     }
 
+    private static void closeProgressCallback(CallbackContext callbackContext) {
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(false);
+        callbackContext.sendPluginResult(result);
+    }
+
+    // Called on the main thread, so that the next progress is sent even if it has not changed.
+    private void resetProgress() {
+        lastProgressIndex = -1;
+        lastPosition = -1;
+        lastDuration = -1;
+        lastBuffered = -1;
+    }
+
     private boolean executeTogglePlayPause(CallbackContext callbackContext) {
-        eventBus.postSticky(new PlayPauseEvent());
+        events.postPlayPause();
         callbackContext.success();
         return true;
     }
 
     private boolean executeGetPlayState(CallbackContext callbackContext) {
         try {
-            if(lastPlayStateEvent != null) {
+            int state = events.getLastState();
+            if(state >= 0) {
                 JSONObject parameter = new JSONObject();
                 parameter.put("albumId", albumId);
-                parameter.put("state", lastPlayStateEvent.getState());
-                parameter.put("index", lastPlayStateEvent.getIndex());
+                parameter.put("state", state);
+                parameter.put("index", events.getLastIndex());
+                parameter.put("seq", stateBatcher.getSequence());
+                long trackId = events.getLastTrackId();
+                if(trackId != PlaybackEvents.NO_TRACK) {
+                    parameter.put("track", getTrackMetadata(trackId));
+                }
                 callbackContext.success(parameter);
             } else {
                 callbackContext.error("A last play state changed event does not exist.");
@@ -179,38 +320,118 @@ public class PlaybackController extends CordovaPlugin {
         }
     }
 
-    public void onEvent(PlayStateChangedEvent event) {
-        if(onPlayStateChanged != null) {
+    /**
+     * Returns the snapshot of the playback metrics. All arguments are optional.
+     * args[0]: true to also write the snapshot to metrics.json in the files directory
+     * args[1]: true to reset the metrics after taking the snapshot
+     */
+    private boolean executeGetMetrics(JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        final boolean dump = args.optBoolean(0, false);
+        final boolean reset = args.optBoolean(1, false);
+        final File file = new File(cordova.getActivity().getFilesDir(), METRICS_FILE_NAME);
+
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                MetricsRegistry metrics = MetricsRegistry.getInstance();
+                try {
+                    JSONObject snapshot = metrics.snapshot();
+                    if(dump) {
+                        metrics.dump(file);
+                        snapshot.put("file", file.getPath());
+                    }
+                    if(reset) {
+                        metrics.reset();
+                    }
+                    callbackContext.success(snapshot);
+
+                } catch(JSONException e) {
+                    Log.e(TAG, e.toString());
+                    callbackContext.error(e.toString());
+                } catch(IOException e) {
+                    Log.e(TAG, e.toString());
+                    callbackContext.error(e.toString());
+                }
+            }
+        });
+        return true;
+    }
+
+    private final PlaybackEvents.ProgressListener progressListener = new PlaybackEvents.ProgressListener() {
+        @Override
+        public void onProgress(int index, int position, int duration, int buffered) {
+            CallbackContext callback = onProgress;
+            if(callback == null)
+                return;
+
+            if(index == lastProgressIndex && position == lastPosition &&
+               duration == lastDuration && buffered == lastBuffered)
+                return;
+
+            lastProgressIndex = index;
+            lastPosition = position;
+            lastDuration = duration;
+            lastBuffered = buffered;
+
             try {
                 JSONObject parameter = new JSONObject();
-                parameter.put("albumId", albumId);
-                parameter.put("state", event.getState());
-                parameter.put("index", event.getIndex());
+                parameter.put("index", index);
+                parameter.put("position", position);
+                parameter.put("duration", duration);
+                parameter.put("buffered", buffered);
                 PluginResult result = new PluginResult(PluginResult.Status.OK, parameter);
                 result.setKeepCallback(true);
-                onPlayStateChanged.sendPluginResult(result);
+                callback.sendPluginResult(result);
 
-            } catch (JSONException e) {
+            } catch(JSONException e) {
                 Log.e(TAG, e.toString());
             }
         }
+    };
 
-        lastPlayStateEvent = event;
-    }
-
-    public void onEvent(TrackChangedEvent event) {
-        if(onTrackChanged != null) {
-            try {
-                JSONObject parameter = new JSONObject();
-                parameter.put("albumId", albumId);
-                parameter.put("index", event.getIndex());
-                onTrackChanged.success(parameter);
+    private final PlaybackEvents.StateListener stateListener = new PlaybackEvents.StateListener() {
+        @Override
+        public void onPlayStateChanged(int state, int index) {
+            stateBatcher.update(albumId, state, index);
+        }
 
-            } catch(JSONException e) {
-                Log.e(TAG, e.toString());
-            }
+        @Override
+        public void onTrackChanged(int index, long trackId) {
+            // A stopped playback has no track to show, so only the ID is updated.
+            JSONObject track = (trackId != PlaybackEvents.NO_TRACK) ? getTrackMetadata(trackId) : null;
+            stateBatcher.updateTrack(trackId, track);
         }
+    };
 
-        lastTrackChangedEvent = event;
+    /**
+     * Looks the track up in the in-memory library index, so it costs no query.
+     * @return {id, title, artist, album, albumId, duration, artwork} or {id} if the index
+     *         has not been loaded or does not have the track yet
+     */
+    private JSONObject getTrackMetadata(long trackId) {
+        JSONObject track = new JSONObject();
+        try {
+            track.put("id", trackId);
+            if(cordova == null)
+                return track;
+
+            MediaLibrary.Snapshot library = MediaLibrary.getInstance(cordova.getActivity()).getSnapshot();
+            int position = (library == null) ? LongIntMap.NOT_FOUND : library.findTrack(trackId);
+            if(position == LongIntMap.NOT_FOUND)
+                return track;
+
+            long trackAlbumId = library.getTrackAlbumId(position);
+            int album = library.findAlbum(trackAlbumId);
+            track.put("title", library.getTrackTitle(position));
+            track.put("artist", library.getTrackArtist(position));
+            track.put("album", library.getTrackAlbum(position));
+            track.put("albumId", trackAlbumId);
+            track.put("duration", library.getTrackDuration(position));
+            track.put("artwork", (album == LongIntMap.NOT_FOUND) ? null : library.getAlbumArt(album));
+
+        } catch(JSONException e) {
+            Log.e(TAG, e.toString());
+        }
+        return track;
     }
 }
@@ -1,43 +0,0 @@
-/**
- Licensed to the Apache Software Foundation (ASF) under one
- or more contributor license agreements.  See the NOTICE file
- distributed with this work for additional information
- regarding copyright ownership.  The ASF licenses this file
- to you under the Apache License, Version 2.0 (the
- "License"); you may not use this file except in compliance
- with the License.  You may obtain a copy of the License at
-
- http://www.apache.org/licenses/LICENSE-2.0
-
- Unless required by applicable law or agreed to in writing,
- software distributed under the License is distributed on an
- "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
- KIND, either express or implied.  See the License for the
- specific language governing permissions and limitations
- under the License.
- */
-
-package com.yohpapa.research.simplemusicplayer.plugins.events;
-
-public class PlayStateChangedEvent {
-
-    public static final int STATE_PLAYING = 0;
-    public static final int STATE_PAUSED = 1;
-    public static final int STATE_STOPPED = 2;
-
-    private final int state;
-    private final int index;
-
-    public PlayStateChangedEvent(int state, int index) {
-        this.state = state;
-        this.index = index;
-    }
-
-    public int getState() {
-        return state;
-    }
-
-    public int getIndex() {
-        return index;
-    }
-}
@@ -0,0 +1,362 @@
+/**
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package com.yohpapa.research.simplemusicplayer.plugins.events;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+/**
+ * Dispatches the playback commands from PlaybackController to PlaybackService
+ * and the state changes back, without any event object or reflection.
+ *
+ * Each kind of event is a method of a listener interface, so the subscribers
+ * are known at compile time and the arguments are passed as primitives.
+ * Commands are delivered on the main thread. A command posted from another
+ * thread travels in a Message, which Android takes from its own pool.
+ * State changes are delivered on the thread which posts them.
+ *
+ * The playback progress is not posted at all, since it changes continuously.
+ * A single ticker on the main thread reads it from the service and hands it
+ * to the progress listeners at the rate each of them asks for. The ticker
+ * only runs while there is a listener.
+ */
+public class PlaybackEvents {
+
+    public static final int STATE_PLAYING = 0;
+    public static final int STATE_PAUSED = 1;
+    public static final int STATE_STOPPED = 2;
+
+    private static final int NO_STATE = -1;
+    public static final long NO_TRACK = -1L;
+
+    private static final int COMMAND_NONE = -1;
+    private static final int COMMAND_PREPARE = 0;
+    private static final int COMMAND_PLAY = 1;
+    private static final int COMMAND_PAUSE = 2;
+    private static final int COMMAND_PLAY_PAUSE = 3;
+
+    /**
+     * Implemented by the service. Called on the main thread.
+     */
+    public interface CommandListener {
+        void onPrepare(long[] trackIds, int startIndex);
+        void onPlay();
+        void onPause();
+        void onPlayPause();
+    }
+
+    /**
+     * Implemented by the plugins which show the state. Called on the thread which posts the change.
+     */
+    public interface StateListener {
+        void onPlayStateChanged(int state, int index);
+        void onTrackChanged(int index, long trackId);
+    }
+
+    // The elements of the array filled by ProgressSource.
+    public static final int PROGRESS_INDEX = 0;
+    public static final int PROGRESS_POSITION = 1;
+    public static final int PROGRESS_DURATION = 2;
+    public static final int PROGRESS_BUFFERED = 3;
+    public static final int PROGRESS_SIZE = 4;
+
+    /**
+     * Implemented by the service. Called on the main thread.
+     */
+    public interface ProgressSource {
+        /**
+         * Fills the index of the track, the position and the duration in milliseconds
+         * and the buffered percentage of the track, e.g. progress[PROGRESS_POSITION].
+         * @return false if no track is ready to report its progress
+         */
+        boolean getProgress(int[] progress);
+    }
+
+    /**
+     * Implemented by the plugins which show the progress. Called on the main thread.
+     */
+    public interface ProgressListener {
+        void onProgress(int index, int position, int duration, int buffered);
+    }
+
+    private static class ProgressSubscription {
+        public final ProgressListener listener;
+        public final long intervalMs;
+        // Touched by the ticker only.
+        public long nextAt = 0L;
+
+        public ProgressSubscription(ProgressListener listener, long intervalMs) {
+            this.listener = listener;
+            this.intervalMs = intervalMs;
+        }
+    }
+
+    private static PlaybackEvents instance = null;
+
+    public static synchronized PlaybackEvents getInstance() {
+        if(instance == null) {
+            instance = new PlaybackEvents();
+        }
+        return instance;
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            dispatchCommand(msg.what, (long[])msg.obj, msg.arg1);
+        }
+    };
+
+    // Touched on the main thread only.
+    private CommandListener commandListener = null;
+    private int pendingCommand = COMMAND_NONE;
+
+    // Replaced as a whole, so that posting iterates without a lock.
+    private volatile StateListener[] stateListeners = new StateListener[0];
+
+    // The state in the upper half and the index in the lower half, so that both are read at once.
+    private volatile long lastPlayState = pack(NO_STATE, 0);
+    private volatile long lastTrackId = NO_TRACK;
+
+    // Touched on the main thread only.
+    private ProgressSource progressSource = null;
+    private final int[] progress = new int[PROGRESS_SIZE];
+
+    // Replaced as a whole like the state listeners.
+    private volatile ProgressSubscription[] progressSubscriptions = new ProgressSubscription[0];
+
+    private final Runnable progressTicker = new Runnable() {
+        @Override
+        public void run() {
+            tickProgress();
+        }
+    };
+
+    private PlaybackEvents() {}
+
+    /**
+     * Sets the listener of the commands or null. The last play, pause or toggle command
+     * posted while there has been no listener is delivered to it now.
+     * It must be called on the main thread.
+     */
+    public void setCommandListener(CommandListener listener) {
+        commandListener = listener;
+        if(listener == null || pendingCommand == COMMAND_NONE)
+            return;
+
+        int command = pendingCommand;
+        pendingCommand = COMMAND_NONE;
+        dispatchCommand(command, null, 0);
+    }
+
+    public void postPrepare(long[] trackIds, int startIndex) {
+        postCommand(COMMAND_PREPARE, trackIds, startIndex);
+    }
+
+    public void postPlay() {
+        postCommand(COMMAND_PLAY, null, 0);
+    }
+
+    public void postPause() {
+        postCommand(COMMAND_PAUSE, null, 0);
+    }
+
+    public void postPlayPause() {
+        postCommand(COMMAND_PLAY_PAUSE, null, 0);
+    }
+
+    private void postCommand(int command, long[] trackIds, int startIndex) {
+        if(Looper.myLooper() == Looper.getMainLooper()) {
+            dispatchCommand(command, trackIds, startIndex);
+        } else {
+            handler.obtainMessage(command, startIndex, 0, trackIds).sendToTarget();
+        }
+    }
+
+    private void dispatchCommand(int command, long[] trackIds, int startIndex) {
+        CommandListener listener = commandListener;
+        if(listener == null) {
+            // A track list is only meaningful to the running service.
+            if(command != COMMAND_PREPARE) {
+                pendingCommand = command;
+            }
+            return;
+        }
+
+        switch(command) {
+            case COMMAND_PREPARE:
+                listener.onPrepare(trackIds, startIndex);
+                break;
+            case COMMAND_PLAY:
+                listener.onPlay();
+                break;
+            case COMMAND_PAUSE:
+                listener.onPause();
+                break;
+            case COMMAND_PLAY_PAUSE:
+                listener.onPlayPause();
+                break;
+            default:
+                break;
+        }
+    }
+
+    public synchronized void addStateListener(StateListener listener) {
+        StateListener[] current = stateListeners;
+        for(StateListener registered : current) {
+            if(registered == listener)
+                return;
+        }
+
+        StateListener[] next = new StateListener[current.length + 1];
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = listener;
+        stateListeners = next;
+    }
+
+    public synchronized void removeStateListener(StateListener listener) {
+        StateListener[] current = stateListeners;
+        for(int i = 0; i < current.length; i ++) {
+            if(current[i] != listener)
+                continue;
+
+            StateListener[] next = new StateListener[current.length - 1];
+            System.arraycopy(current, 0, next, 0, i);
+            System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+            stateListeners = next;
+            return;
+        }
+    }
+
+    public void postPlayStateChanged(int state, int index) {
+        lastPlayState = pack(state, index);
+        for(StateListener listener : stateListeners) {
+            listener.onPlayStateChanged(state, index);
+        }
+    }
+
+    /**
+     * @param trackId the ID of the current track or NO_TRACK once the playback has been stopped
+     */
+    public void postTrackChanged(int index, long trackId) {
+        lastTrackId = trackId;
+        for(StateListener listener : stateListeners) {
+            listener.onTrackChanged(index, trackId);
+        }
+    }
+
+    /**
+     * @return the last posted play state or -1 if none has been posted yet
+     */
+    public int getLastState() {
+        return (int)(lastPlayState >> 32);
+    }
+
+    public int getLastIndex() {
+        return (int)lastPlayState;
+    }
+
+    /**
+     * @return the ID of the last announced track or NO_TRACK
+     */
+    public long getLastTrackId() {
+        return lastTrackId;
+    }
+
+    /**
+     * Sets the source of the progress or null. It must be called on the main thread.
+     */
+    public void setProgressSource(ProgressSource source) {
+        progressSource = source;
+    }
+
+    /**
+     * Adds the listener or changes its interval. It is called back on the main thread
+     * at most once per interval while a track is ready.
+     */
+    public synchronized void addProgressListener(ProgressListener listener, long intervalMs) {
+        ProgressSubscription[] current = progressSubscriptions;
+        int count = current.length;
+        for(ProgressSubscription subscription : current) {
+            if(subscription.listener == listener) {
+                count --;
+            }
+        }
+
+        ProgressSubscription[] next = new ProgressSubscription[count + 1];
+        int i = 0;
+        for(ProgressSubscription subscription : current) {
+            if(subscription.listener != listener) {
+                next[i ++] = subscription;
+            }
+        }
+        next[i] = new ProgressSubscription(listener, intervalMs);
+        progressSubscriptions = next;
+
+        // Restart the ticker, so that the new listener is called back right away.
+        handler.removeCallbacks(progressTicker);
+        handler.post(progressTicker);
+    }
+
+    public synchronized void removeProgressListener(ProgressListener listener) {
+        ProgressSubscription[] current = progressSubscriptions;
+        for(int i = 0; i < current.length; i ++) {
+            if(current[i].listener != listener)
+                continue;
+
+            ProgressSubscription[] next = new ProgressSubscription[current.length - 1];
+            System.arraycopy(current, 0, next, 0, i);
+            System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+            progressSubscriptions = next;
+            return;
+        }
+    }
+
+    private void tickProgress() {
+        ProgressSubscription[] subscriptions = progressSubscriptions;
+        if(subscriptions.length == 0)
+            return;
+
+        long now = SystemClock.uptimeMillis();
+        long nextTick = Long.MAX_VALUE;
+        ProgressSource source = progressSource;
+        boolean hasProgress = (source != null) && source.getProgress(progress);
+
+        for(ProgressSubscription subscription : subscriptions) {
+            if(now >= subscription.nextAt) {
+                if(hasProgress) {
+                    subscription.listener.onProgress(
+                            progress[PROGRESS_INDEX], progress[PROGRESS_POSITION],
+                            progress[PROGRESS_DURATION], progress[PROGRESS_BUFFERED]);
+                }
+                subscription.nextAt = now + subscription.intervalMs;
+            }
+            nextTick = Math.min(nextTick, subscription.nextAt);
+        }
+
+        handler.postAtTime(progressTicker, nextTick);
+    }
+
+    private static long pack(int state, int index) {
+        return ((long)state << 32) | (index & 0xffffffffL);
+    }
+}
@@ -0,0 +1,255 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Decodes artwork files into bitmaps of a target size.
+ * The bounds are read first and the file is subsampled by a power of two, so
+ * the full resolution image is never allocated. The intermediate bitmaps are
+ * pooled and reused through inBitmap where the platform allows it.
+ *
+ * The subsampled image can be up to four times as large as the target, so it is
+ * accounted in the BitmapPool as scratch bytes from before it is decoded until it
+ * is recycled, including while it waits here for reuse.
+ */
+public class ArtworkDecoder {
+    private static final String TAG = ArtworkDecoder.class.getSimpleName();
+
+    // Build.VERSION_CODES.KITKAT is not available in the current build target.
+    private static final int KITKAT = 19;
+    // Nor is Bitmap.getAllocationByteCount(), which is looked up once.
+    private static final Method GET_ALLOCATION_BYTE_COUNT = findAllocationByteCount();
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int MAX_POOL_SIZE = 2;
+
+    private static class Scratch {
+        public final Bitmap bitmap;
+        // As reserved in the BitmapPool.
+        public final long bytes;
+
+        public Scratch(Bitmap bitmap, long bytes) {
+            this.bitmap = bitmap;
+            this.bytes = bytes;
+        }
+    }
+
+    private final BitmapPool bitmaps;
+    private final List<Scratch> pool = new LinkedList<Scratch>();
+
+    private long decodeCount = 0L;
+    private long reuseCount = 0L;
+    private long lastDecodedBytes = 0L;
+    private long lastFullSizeBytes = 0L;
+
+    public ArtworkDecoder(BitmapPool bitmaps) {
+        this.bitmaps = bitmaps;
+    }
+
+    /**
+     * @return a new bitmap of the target size or null if the file cannot be decoded or
+     *         the BitmapPool has no room for the subsampled image.
+     *         The caller owns the returned bitmap and accounts for it.
+     */
+    public synchronized Bitmap decode(String path, int width, int height) {
+        if(TextUtils.isEmpty(path) || width <= 0 || height <= 0)
+            return null;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if(options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        int sampleSize = calculateSampleSize(options.outWidth, options.outHeight, width, height);
+        int sampledWidth = (options.outWidth + sampleSize - 1) / sampleSize;
+        int sampledHeight = (options.outHeight + sampleSize - 1) / sampleSize;
+        long sampledBytes = (long)sampledWidth * sampledHeight * BYTES_PER_PIXEL;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // Mutable bitmaps can go back to the pool after scaling.
+            options.inMutable = true;
+        }
+
+        Scratch reusable = takeReusable(sampledWidth, sampledHeight, sampleSize);
+        Bitmap decoded = null;
+        long decodedBytes = 0L;
+        if(reusable != null) {
+            options.inBitmap = reusable.bitmap;
+            try {
+                decoded = BitmapFactory.decodeFile(path, options);
+            } catch(IllegalArgumentException e) {
+                Log.d(TAG, "The pooled bitmap cannot be reused: " + e.toString());
+            }
+
+            if(decoded != null) {
+                reuseCount ++;
+                decodedBytes = reusable.bytes;
+            } else {
+                free(reusable);
+                options.inBitmap = null;
+            }
+        }
+        if(decoded == null) {
+            if(!reserveScratch(sampledBytes)) {
+                Log.d(TAG, "No room to decode " + path + " into " + sampledBytes + " bytes.");
+                return null;
+            }
+
+            decoded = BitmapFactory.decodeFile(path, options);
+            if(decoded == null) {
+                bitmaps.releaseScratch(sampledBytes);
+                return null;
+            }
+            decodedBytes = sampledBytes;
+        }
+
+        decodeCount ++;
+        lastFullSizeBytes = (long)options.outWidth * options.outHeight * BYTES_PER_PIXEL;
+        lastDecodedBytes = getAllocationBytes(decoded);
+
+        Bitmap scaled = decoded;
+        if(decoded.getWidth() != width || decoded.getHeight() != height) {
+            scaled = Bitmap.createScaledBitmap(decoded, width, height, true);
+        }
+        if(scaled != decoded) {
+            release(new Scratch(decoded, decodedBytes));
+        } else {
+            // Handed over to the caller.
+            bitmaps.releaseScratch(decodedBytes);
+        }
+        return scaled;
+    }
+
+    /**
+     * @return the largest power of two which keeps the sampled image at least as large as the target
+     */
+    public static int calculateSampleSize(int sourceWidth, int sourceHeight, int width, int height) {
+        int sampleSize = 1;
+        while(sourceWidth / (sampleSize * 2) >= width && sourceHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private Scratch takeReusable(int width, int height, int sampleSize) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB)
+            return null;
+
+        for(int i = 0; i < pool.size(); i ++) {
+            Scratch candidate = pool.get(i);
+            if(canReuse(candidate.bitmap, width, height, sampleSize)) {
+                pool.remove(i);
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static boolean canReuse(Bitmap candidate, int width, int height, int sampleSize) {
+        if(Build.VERSION.SDK_INT >= KITKAT) {
+            // A reused bitmap keeps its allocation, which may be larger than its current size.
+            return getAllocationBytes(candidate) >= (long)width * height * BYTES_PER_PIXEL;
+        }
+
+        // Until KitKat, only a bitmap of exactly the same size without subsampling can be reused.
+        return sampleSize == 1 && candidate.getWidth() == width && candidate.getHeight() == height;
+    }
+
+    private static Method findAllocationByteCount() {
+        if(Build.VERSION.SDK_INT < KITKAT)
+            return null;
+
+        try {
+            return Bitmap.class.getMethod("getAllocationByteCount");
+        } catch(NoSuchMethodException e) {
+            Log.e(TAG, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * @return the bytes of the memory behind the bitmap, which is what inBitmap can fill
+     */
+    private static long getAllocationBytes(Bitmap bitmap) {
+        if(GET_ALLOCATION_BYTE_COUNT != null) {
+            try {
+                return ((Integer)GET_ALLOCATION_BYTE_COUNT.invoke(bitmap)).longValue();
+            } catch(Exception e) {
+                Log.e(TAG, e.toString());
+            }
+        }
+        return (long)bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    // Gives up the bitmaps kept for reuse before it refuses to decode.
+    private boolean reserveScratch(long bytes) {
+        if(bitmaps.reserveScratch(bytes))
+            return true;
+
+        if(pool.isEmpty())
+            return false;
+
+        clear();
+        return bitmaps.reserveScratch(bytes);
+    }
+
+    private void release(Scratch scratch) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || !scratch.bitmap.isMutable()) {
+            free(scratch);
+            return;
+        }
+
+        pool.add(scratch);
+        if(pool.size() > MAX_POOL_SIZE) {
+            free(pool.remove(0));
+        }
+    }
+
+    private void free(Scratch scratch) {
+        scratch.bitmap.recycle();
+        bitmaps.releaseScratch(scratch.bytes);
+    }
+
+    /**
+     * Recycles the bitmaps kept for reuse and gives their bytes back to the BitmapPool.
+     */
+    public synchronized void clear() {
+        for(Scratch scratch : pool) {
+            free(scratch);
+        }
+        pool.clear();
+    }
+
+    public synchronized long getDecodeCount() {
+        return decodeCount;
+    }
+
+    public synchronized long getReuseCount() {
+        return reuseCount;
+    }
+
+    /**
+     * @return the bytes allocated for the last subsampled decode
+     */
+    public synchronized long getLastDecodedBytes() {
+        return lastDecodedBytes;
+    }
+
+    /**
+     * @return the bytes a full resolution decode of the last file would have allocated
+     */
+    public synchronized long getLastFullSizeBytes() {
+        return lastFullSizeBytes;
+    }
+}
@@ -0,0 +1,291 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The one place which owns decoded bitmaps in the process, e.g. artwork shown
+ * by the notification and by any other surface.
+ *
+ * Every holder of a bitmap has a reference to it: acquire() and put() hand out
+ * one, retain() adds one and release() gives one back. A bitmap nobody refers
+ * to stays cached while it fits in the byte budget and is recycled when it is
+ * evicted in least recently used order. A bitmap which is referred to is never
+ * recycled, so a new bitmap which would push the total over the budget is
+ * refused instead.
+ *
+ * The bitmaps which are only used on the way to another one, e.g. the subsampled
+ * image a decoder scales down, are not cached but still count against the budget
+ * as scratch bytes while they live.
+ */
+public class BitmapPool {
+    private static final String TAG = BitmapPool.class.getSimpleName();
+
+    // The share of the heap the pool may use unless it is configured.
+    private static final int DEFAULT_HEAP_DIVISOR = 8;
+
+    private static BitmapPool instance = null;
+
+    public static synchronized BitmapPool getInstance() {
+        if(instance == null) {
+            instance = new BitmapPool(Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_DIVISOR);
+        }
+        return instance;
+    }
+
+    private static class Entry {
+        public final String key;
+        public final Bitmap bitmap;
+        public final long bytes;
+        public int references = 0;
+
+        public Entry(String key, Bitmap bitmap) {
+            this.key = key;
+            this.bitmap = bitmap;
+            this.bytes = (long)bitmap.getRowBytes() * bitmap.getHeight();
+        }
+    }
+
+    // In access order, so the first idle entry is the least recently used one.
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final Map<Bitmap, Entry> owners = new IdentityHashMap<Bitmap, Entry>();
+
+    private long maxBytes;
+    private long usedBytes = 0L;
+    private long referredBytes = 0L;
+    private long scratchBytes = 0L;
+
+    private long hits = 0L;
+    private long misses = 0L;
+    private long evictCount = 0L;
+    private long refuseCount = 0L;
+
+    BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Changes the budget and evicts the idle bitmaps over it.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim(0L);
+    }
+
+    /**
+     * @return the cached bitmap with a new reference to it or null
+     */
+    public synchronized Bitmap acquire(String key) {
+        Entry entry = entries.get(key);
+        if(entry == null) {
+            misses ++;
+            return null;
+        }
+
+        hits ++;
+        addReference(entry);
+        return entry.bitmap;
+    }
+
+    /**
+     * Makes room for a bitmap before it is decoded.
+     * @return false if the bitmaps referred to leave no room for it
+     */
+    public synchronized boolean reserve(long bytes) {
+        return trim(bytes);
+    }
+
+    /**
+     * Accounts for a bitmap which is not handed over to the pool. It cannot be evicted,
+     * so the bytes stay in use until releaseScratch() gives them back.
+     * @return false if the bitmaps referred to leave no room for it, in which case nothing is accounted
+     */
+    public synchronized boolean reserveScratch(long bytes) {
+        if(!trim(bytes)) {
+            refuseCount ++;
+            Log.d(TAG, "Refused " + bytes + " scratch bytes. " + this);
+            return false;
+        }
+
+        usedBytes += bytes;
+        scratchBytes += bytes;
+        return true;
+    }
+
+    /**
+     * Gives back the bytes of reserveScratch() once the bitmap has been recycled or handed over.
+     */
+    public synchronized void releaseScratch(long bytes) {
+        usedBytes -= bytes;
+        scratchBytes -= bytes;
+        trim(0L);
+    }
+
+    /**
+     * Hands the bitmap over to the pool.
+     * @return the bitmap cached for the key with a new reference to it. It is not always
+     *         the given one, which is recycled if another one has been put first.
+     *         null if the bitmap does not fit in the budget, in which case it is recycled.
+     */
+    public synchronized Bitmap put(String key, Bitmap bitmap) {
+        Entry cached = entries.get(key);
+        if(cached != null) {
+            if(cached.bitmap != bitmap) {
+                bitmap.recycle();
+            }
+            addReference(cached);
+            return cached.bitmap;
+        }
+
+        Entry entry = new Entry(key, bitmap);
+        if(!trim(entry.bytes)) {
+            refuseCount ++;
+            Log.d(TAG, "Refused " + entry.bytes + " bytes for " + key + ". " + this);
+            bitmap.recycle();
+            return null;
+        }
+
+        entries.put(key, entry);
+        owners.put(bitmap, entry);
+        usedBytes += entry.bytes;
+        addReference(entry);
+        return bitmap;
+    }
+
+    /**
+     * Adds a reference to a bitmap handed out by the pool. null is ignored.
+     */
+    public synchronized void retain(Bitmap bitmap) {
+        if(bitmap == null)
+            return;
+
+        Entry entry = owners.get(bitmap);
+        if(entry == null) {
+            Log.e(TAG, "Retained a bitmap which does not belong to the pool.");
+            return;
+        }
+        addReference(entry);
+    }
+
+    /**
+     * Gives back a reference. The bitmap must not be used through it any more. null is ignored.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if(bitmap == null)
+            return;
+
+        Entry entry = owners.get(bitmap);
+        if(entry == null || entry.references == 0) {
+            Log.e(TAG, "Released a bitmap which is not referred to.");
+            return;
+        }
+
+        entry.references --;
+        if(entry.references == 0) {
+            referredBytes -= entry.bytes;
+            trim(0L);
+        }
+    }
+
+    private void addReference(Entry entry) {
+        if(entry.references == 0) {
+            referredBytes += entry.bytes;
+        }
+        entry.references ++;
+    }
+
+    /**
+     * Evicts idle bitmaps until the given bytes fit in the budget.
+     * @return whether they fit
+     */
+    private boolean trim(long bytes) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while(usedBytes + bytes > maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if(entry.references > 0)
+                continue;
+
+            iterator.remove();
+            evict(entry);
+        }
+        return usedBytes + bytes <= maxBytes;
+    }
+
+    /**
+     * Evicts all the bitmaps nobody refers to, e.g. when the system is low on memory.
+     */
+    public synchronized void evictIdle() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while(iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if(entry.references == 0) {
+                iterator.remove();
+                evict(entry);
+            }
+        }
+    }
+
+    private void evict(Entry entry) {
+        owners.remove(entry.bitmap);
+        usedBytes -= entry.bytes;
+        evictCount ++;
+        if(!entry.bitmap.isRecycled()) {
+            entry.bitmap.recycle();
+        }
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return the bytes of the bitmaps which are referred to and cannot be evicted
+     */
+    public synchronized long getReferredBytes() {
+        return referredBytes;
+    }
+
+    /**
+     * @return the bytes of the bitmaps which live outside the pool, e.g. in a decoder
+     */
+    public synchronized long getScratchBytes() {
+        return scratchBytes;
+    }
+
+    public synchronized int getBitmapCount() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictCount() {
+        return evictCount;
+    }
+
+    public synchronized long getRefuseCount() {
+        return refuseCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "used: " + usedBytes + "/" + maxBytes + " bytes (referred: " + referredBytes + ", scratch: " + scratchBytes + ")" +
+               ", bitmaps: " + entries.size() +
+               ", hits: " + hits + ", misses: " + misses +
+               ", evicted: " + evictCount + ", refused: " + refuseCount;
+    }
+}
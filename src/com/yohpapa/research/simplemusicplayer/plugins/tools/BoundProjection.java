@@ -0,0 +1,63 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import android.database.Cursor;
+
+/**
+ * A projection whose column indices are resolved once per cursor.
+ * Unlike CursorHelper, the accessors take the position of the column in the projection
+ * and do not look up the column name on every call.
+ */
+public class BoundProjection {
+
+    private final Cursor cursor;
+    private final int[] indices;
+
+    private BoundProjection(Cursor cursor, int[] indices) {
+        this.cursor = cursor;
+        this.indices = indices;
+    }
+
+    /**
+     * @param cursor the cursor queried with the projection
+     * @param projection the projection passed to the query
+     * @return the bound projection or null if the cursor is not available
+     */
+    public static BoundProjection bind(Cursor cursor, String[] projection) {
+        if(cursor == null || cursor.isClosed() || projection == null)
+            return null;
+
+        int[] indices = new int[projection.length];
+        for(int i = 0; i < projection.length; i ++) {
+            indices[i] = cursor.getColumnIndex(projection[i]);
+        }
+        return new BoundProjection(cursor, indices);
+    }
+
+    public Cursor getCursor() {
+        return cursor;
+    }
+
+    public String getString(int column) {
+        int index = indices[column];
+        if(index < 0)
+            return null;
+
+        return cursor.getString(index);
+    }
+
+    public long getLong(int column) {
+        int index = indices[column];
+        if(index < 0)
+            return -1L;
+
+        return cursor.getLong(index);
+    }
+
+    public int getInt(int column) {
+        int index = indices[column];
+        if(index < 0)
+            return -1;
+
+        return cursor.getInt(index);
+    }
+}
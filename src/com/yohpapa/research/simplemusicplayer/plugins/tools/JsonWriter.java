@@ -0,0 +1,161 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+/**
+ * Writes JSON text straight into a reusable char buffer.
+ * Unlike building a tree of JSONObject, no map and no boxed value is allocated per row.
+ * The buffer keeps its capacity across reset() unless it has grown too large.
+ *
+ * It only checks the nesting depth. The caller is responsible for well-formed output.
+ */
+public class JsonWriter {
+
+    private static final int MAX_DEPTH = 16;
+    private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final int initialCapacity;
+    private StringBuilder buffer;
+
+    // Whether the current object or array already has an element, per depth.
+    private final boolean[] hasElements = new boolean[MAX_DEPTH];
+    private int depth = 0;
+    private boolean isAfterName = false;
+
+    public JsonWriter(int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.buffer = new StringBuilder(initialCapacity);
+    }
+
+    public JsonWriter reset() {
+        if(buffer.capacity() > MAX_RETAINED_CAPACITY) {
+            buffer = new StringBuilder(initialCapacity);
+        } else {
+            buffer.setLength(0);
+        }
+        depth = 0;
+        hasElements[0] = false;
+        isAfterName = false;
+        return this;
+    }
+
+    public JsonWriter beginObject() {
+        return begin('{');
+    }
+
+    public JsonWriter endObject() {
+        return end('}');
+    }
+
+    public JsonWriter beginArray() {
+        return begin('[');
+    }
+
+    public JsonWriter endArray() {
+        return end(']');
+    }
+
+    private JsonWriter begin(char bracket) {
+        if(depth + 1 >= MAX_DEPTH)
+            throw new IllegalStateException("Too deep: " + depth);
+
+        separate();
+        buffer.append(bracket);
+        depth ++;
+        hasElements[depth] = false;
+        return this;
+    }
+
+    private JsonWriter end(char bracket) {
+        if(depth == 0)
+            throw new IllegalStateException("Nothing to end.");
+
+        buffer.append(bracket);
+        depth --;
+        return this;
+    }
+
+    public JsonWriter name(String name) {
+        separate();
+        writeString(name);
+        buffer.append(':');
+        isAfterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) {
+        separate();
+        if(value == null) {
+            buffer.append("null");
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+        separate();
+        buffer.append(value);
+        return this;
+    }
+
+    public JsonWriter value(boolean value) {
+        separate();
+        buffer.append(value);
+        return this;
+    }
+
+    private void separate() {
+        if(isAfterName) {
+            isAfterName = false;
+            return;
+        }
+        if(hasElements[depth]) {
+            buffer.append(',');
+        }
+        hasElements[depth] = true;
+    }
+
+    private void writeString(String value) {
+        buffer.append('"');
+        for(int i = 0; i < value.length(); i ++) {
+            char c = value.charAt(i);
+            switch(c) {
+                case '"':
+                    buffer.append("\\\"");
+                    break;
+                case '\\':
+                    buffer.append("\\\\");
+                    break;
+                case '\n':
+                    buffer.append("\\n");
+                    break;
+                case '\r':
+                    buffer.append("\\r");
+                    break;
+                case '\t':
+                    buffer.append("\\t");
+                    break;
+                default:
+                    // Line and paragraph separators are not allowed in JavaScript string literals.
+                    if(c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        buffer.append("\\u")
+                              .append(HEX[(c >> 12) & 0xf]).append(HEX[(c >> 8) & 0xf])
+                              .append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+                    } else {
+                        buffer.append(c);
+                    }
+                    break;
+            }
+        }
+        buffer.append('"');
+    }
+
+    public int length() {
+        return buffer.length();
+    }
+
+    @Override
+    public String toString() {
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,86 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+/**
+ * A histogram of latencies in milliseconds with power of two buckets.
+ * Bucket i counts the values in [2^(i-1), 2^i), bucket 0 counts the values under 1ms
+ * and the last one everything above.
+ */
+public class LatencyHistogram {
+
+    private static final int NUMBER_OF_BUCKETS = 16;
+
+    private final long[] buckets = new long[NUMBER_OF_BUCKETS];
+    private long count = 0L;
+    private long sum = 0L;
+    private long max = 0L;
+
+    public synchronized void record(long latencyMs) {
+        if(latencyMs < 0L) {
+            latencyMs = 0L;
+        }
+
+        buckets[getBucket(latencyMs)] ++;
+        count ++;
+        sum += latencyMs;
+        if(latencyMs > max) {
+            max = latencyMs;
+        }
+    }
+
+    private static int getBucket(long latencyMs) {
+        int bucket = 0;
+        while(latencyMs > 0L && bucket < NUMBER_OF_BUCKETS - 1) {
+            latencyMs >>= 1;
+            bucket ++;
+        }
+        return bucket;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getAverage() {
+        return (count == 0L) ? 0L : sum / count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * @return the upper bound of the bucket which contains the percentile
+     */
+    public synchronized long getPercentile(int percentile) {
+        if(count == 0L)
+            return 0L;
+
+        long rank = (count * percentile + 99L) / 100L;
+        long seen = 0L;
+        for(int i = 0; i < NUMBER_OF_BUCKETS; i ++) {
+            seen += buckets[i];
+            if(seen >= rank) {
+                return (i == NUMBER_OF_BUCKETS - 1) ? max : (1L << i);
+            }
+        }
+        return max;
+    }
+
+    public synchronized void reset() {
+        for(int i = 0; i < NUMBER_OF_BUCKETS; i ++) {
+            buckets[i] = 0L;
+        }
+        count = 0L;
+        sum = 0L;
+        max = 0L;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "count: " + count +
+               ", average: " + getAverage() + "ms" +
+               ", p50: <" + getPercentile(50) + "ms" +
+               ", p90: <" + getPercentile(90) + "ms" +
+               ", max: " + max + "ms";
+    }
+}
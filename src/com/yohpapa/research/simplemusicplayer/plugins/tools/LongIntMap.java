@@ -0,0 +1,84 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing map from long keys (media IDs) to int values (positions)
+ * which does not box either of them.
+ * Created for MediaLibrary to look up IDs without any allocation.
+ */
+public class LongIntMap {
+
+    public static final int NOT_FOUND = -1;
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+
+    public LongIntMap(int expectedSize) {
+        int capacity = 4;
+        while(capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        Arrays.fill(keys, EMPTY);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    public void put(long key, int value) {
+        if(key == EMPTY)
+            throw new IllegalArgumentException("The key is reserved.");
+
+        if((size + 1) * 2 > keys.length) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            allocate(keys.length * 2);
+            size = 0;
+            for(int i = 0; i < oldKeys.length; i ++) {
+                if(oldKeys[i] != EMPTY) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        int slot = hash(key) & mask;
+        while(keys[slot] != EMPTY) {
+            if(keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        size ++;
+    }
+
+    public int get(long key) {
+        int slot = hash(key) & mask;
+        while(keys[slot] != EMPTY) {
+            if(keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NOT_FOUND;
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,481 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-wide in-memory index of the albums and tracks in MediaStore.
+ * It is loaded once and refreshed in background when MediaStore notifies changes.
+ * Only the rows whose modification date has changed are read again on a refresh.
+ * Readers take an immutable Snapshot, so lookups never touch the ContentResolver.
+ */
+public class MediaLibrary {
+    private static final String TAG = MediaLibrary.class.getSimpleName();
+
+    private static final long REFRESH_DELAY_MS = 500L;
+    private static final int MAX_IN_CLAUSE_IDS = 500;
+
+    private static MediaLibrary instance = null;
+
+    public static synchronized MediaLibrary getInstance(Context context) {
+        if(instance == null) {
+            instance = new MediaLibrary(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private final Context context;
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final AtomicBoolean refreshPending = new AtomicBoolean(false);
+    private volatile Snapshot snapshot = null;
+
+    private final AtomicLong hits = new AtomicLong(0L);
+    private final AtomicLong misses = new AtomicLong(0L);
+    private final AtomicLong refreshCount = new AtomicLong(0L);
+    private volatile long lastRefreshTime = 0L;
+    private volatile int lastRefreshedRows = 0;
+
+    private MediaLibrary(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Loads the index in background and starts observing MediaStore.
+     * It is safe to call this more than once.
+     */
+    public void start() {
+        if(!started.compareAndSet(false, true))
+            return;
+
+        ContentResolver resolver = context.getContentResolver();
+        resolver.registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, observer);
+        resolver.registerContentObserver(MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI, true, observer);
+        requestRefresh(0L);
+    }
+
+    private final ContentObserver observer = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            // The media scanner notifies changes in bursts, so they are coalesced into one refresh.
+            requestRefresh(REFRESH_DELAY_MS);
+        }
+    };
+
+    private void requestRefresh(long delay) {
+        if(!refreshPending.compareAndSet(false, true))
+            return;
+
+        refresher.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refreshPending.set(false);
+                refresh();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the latest snapshot or null if the index has not been loaded yet.
+     *         Callers must fall back to the ContentResolver when it is null.
+     */
+    public Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if(current == null) {
+            misses.incrementAndGet();
+        }
+        return current;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /**
+     * @return the time in milliseconds the last load or refresh took
+     */
+    public long getLastRefreshTime() {
+        return lastRefreshTime;
+    }
+
+    /**
+     * @return the number of track rows read with their details by the last load or refresh
+     */
+    public int getLastRefreshedRows() {
+        return lastRefreshedRows;
+    }
+
+    // --------------------------------------------------------------------------------------------
+    // Loading block
+    // --------------------------------------------------------------------------------------------
+
+    private static final String[] ALBUM_PROJECTION = new String[] {
+        MediaStore.Audio.Albums._ID,
+        MediaStore.Audio.Albums.ALBUM,
+        MediaStore.Audio.Albums.ARTIST,
+        MediaStore.Audio.Albums.NUMBER_OF_SONGS,
+        MediaStore.Audio.Albums.ALBUM_ART,
+    };
+    private static final int ALBUM_ID = 0;
+    private static final int ALBUM_NAME = 1;
+    private static final int ALBUM_ARTIST = 2;
+    private static final int ALBUM_NUMBER_OF_SONGS = 3;
+    private static final int ALBUM_ART = 4;
+
+    // Cheap columns read for every track on every refresh to find out what has changed.
+    private static final String[] TRACK_KEY_PROJECTION = new String[] {
+        MediaStore.Audio.Media._ID,
+        MediaStore.Audio.Media.ALBUM_ID,
+        MediaStore.Audio.Media.DATE_MODIFIED,
+    };
+    private static final int TRACK_KEY_ID = 0;
+    private static final int TRACK_KEY_ALBUM_ID = 1;
+    private static final int TRACK_KEY_DATE_MODIFIED = 2;
+
+    // Columns read only for new or modified tracks.
+    private static final String[] TRACK_DETAIL_PROJECTION = new String[] {
+        MediaStore.Audio.Media._ID,
+        MediaStore.Audio.Media.TITLE,
+        MediaStore.Audio.Media.ARTIST,
+        MediaStore.Audio.Media.ALBUM,
+        MediaStore.Audio.Media.DURATION,
+    };
+    private static final int TRACK_DETAIL_ID = 0;
+    private static final int TRACK_DETAIL_TITLE = 1;
+    private static final int TRACK_DETAIL_ARTIST = 2;
+    private static final int TRACK_DETAIL_ALBUM = 3;
+    private static final int TRACK_DETAIL_DURATION = 4;
+
+    private void refresh() {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            Snapshot next = load(snapshot);
+            if(next != null) {
+                snapshot = next;
+            }
+        } catch(RuntimeException e) {
+            // The external storage may be unmounted while loading. Keep the last snapshot.
+            Log.e(TAG, e.toString());
+        }
+        lastRefreshTime = SystemClock.elapsedRealtime() - start;
+        refreshCount.incrementAndGet();
+        Log.d(TAG, "refresh time: " + lastRefreshTime + "ms, rows: " + lastRefreshedRows);
+    }
+
+    private Snapshot load(Snapshot previous) {
+        ContentResolver resolver = context.getContentResolver();
+        Map<String, String> strings = new HashMap<String, String>();
+        Snapshot next = new Snapshot();
+
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(
+                        MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
+                        ALBUM_PROJECTION,
+                        null, null, MediaStore.Audio.Albums.ALBUM + " ASC");
+            if(cursor == null)
+                return null;
+
+            int count = cursor.getCount();
+            next.allocateAlbums(count);
+            BoundProjection albums = BoundProjection.bind(cursor, ALBUM_PROJECTION);
+            for(int i = 0; cursor.moveToNext(); i ++) {
+                next.albumIds[i] = albums.getLong(ALBUM_ID);
+                next.albumNames[i] = intern(strings, albums.getString(ALBUM_NAME));
+                next.albumArtists[i] = intern(strings, albums.getString(ALBUM_ARTIST));
+                next.albumNumTracks[i] = albums.getInt(ALBUM_NUMBER_OF_SONGS);
+                next.albumArts[i] = albums.getString(ALBUM_ART);
+                next.albumPositions.put(next.albumIds[i], i);
+            }
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+
+        int missing = 0;
+        // The previous position of each unchanged track, whose words the search index reuses.
+        int[] previousPositions = null;
+        try {
+            cursor = resolver.query(
+                        MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                        TRACK_KEY_PROJECTION,
+                        null, null,
+                        MediaStore.Audio.Media.ALBUM_ID + " ASC, " + MediaStore.Audio.Media.TRACK + " ASC");
+            if(cursor == null)
+                return null;
+
+            int count = cursor.getCount();
+            next.allocateTracks(count);
+            previousPositions = new int[count];
+            BoundProjection tracks = BoundProjection.bind(cursor, TRACK_KEY_PROJECTION);
+            for(int i = 0; cursor.moveToNext(); i ++) {
+                long id = tracks.getLong(TRACK_KEY_ID);
+                long albumId = tracks.getLong(TRACK_KEY_ALBUM_ID);
+                long modified = tracks.getLong(TRACK_KEY_DATE_MODIFIED);
+                next.trackIds[i] = id;
+                next.trackAlbumIds[i] = albumId;
+                next.trackModified[i] = modified;
+                next.trackPositions.put(id, i);
+
+                int old = (previous == null) ? LongIntMap.NOT_FOUND : previous.trackPositions.get(id);
+                if(old != LongIntMap.NOT_FOUND &&
+                   previous.trackModified[old] == modified &&
+                   previous.trackAlbumIds[old] == albumId &&
+                   previous.trackTitles[old] != null) {
+                    next.trackTitles[i] = previous.trackTitles[old];
+                    next.trackArtists[i] = previous.trackArtists[old];
+                    next.trackAlbums[i] = previous.trackAlbums[old];
+                    next.trackDurations[i] = previous.trackDurations[old];
+                    previousPositions[i] = old;
+                } else {
+                    previousPositions[i] = SearchIndex.CHANGED;
+                    missing ++;
+                }
+            }
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+
+        next.buildAlbumTrackRanges();
+
+        if(missing == next.trackIds.length) {
+            loadTrackDetails(resolver, null, next, strings);
+        } else if(missing > 0) {
+            StringBuilder ids = new StringBuilder();
+            int inClause = 0;
+            for(int i = 0; i < next.trackIds.length; i ++) {
+                if(next.trackTitles[i] != null)
+                    continue;
+
+                if(inClause > 0) {
+                    ids.append(',');
+                }
+                ids.append(next.trackIds[i]);
+                inClause ++;
+
+                if(inClause == MAX_IN_CLAUSE_IDS) {
+                    loadTrackDetails(resolver, ids.toString(), next, strings);
+                    ids.setLength(0);
+                    inClause = 0;
+                }
+            }
+            if(inClause > 0) {
+                loadTrackDetails(resolver, ids.toString(), next, strings);
+            }
+        }
+
+        long indexStart = SystemClock.elapsedRealtime();
+        next.searchIndex = SearchIndex.build(
+                                new String[][] {next.trackTitles, next.trackArtists, next.trackAlbums},
+                                (previous == null) ? null : previous.searchIndex, previousPositions);
+        Log.d(TAG, "search index time: " + (SystemClock.elapsedRealtime() - indexStart) + "ms" +
+                   ", words: " + next.searchIndex.getWordCount() + ", postings: " + next.searchIndex.getPostingCount());
+
+        lastRefreshedRows = missing;
+        return next;
+    }
+
+    private static void loadTrackDetails(ContentResolver resolver, String ids, Snapshot next, Map<String, String> strings) {
+        String selection = null;
+        if(ids != null) {
+            selection = MediaStore.Audio.Media._ID + " IN (" + ids + ")";
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(
+                        MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                        TRACK_DETAIL_PROJECTION,
+                        selection, null, null);
+            if(cursor == null)
+                return;
+
+            BoundProjection tracks = BoundProjection.bind(cursor, TRACK_DETAIL_PROJECTION);
+            while(cursor.moveToNext()) {
+                int position = next.trackPositions.get(tracks.getLong(TRACK_DETAIL_ID));
+                if(position == LongIntMap.NOT_FOUND)
+                    continue;
+
+                next.trackTitles[position] = tracks.getString(TRACK_DETAIL_TITLE);
+                next.trackArtists[position] = intern(strings, tracks.getString(TRACK_DETAIL_ARTIST));
+                next.trackAlbums[position] = intern(strings, tracks.getString(TRACK_DETAIL_ALBUM));
+                next.trackDurations[position] = tracks.getLong(TRACK_DETAIL_DURATION);
+            }
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    // Artist and album names are repeated on many rows, so only one instance of each is kept.
+    private static String intern(Map<String, String> strings, String value) {
+        if(value == null)
+            return null;
+
+        String interned = strings.get(value);
+        if(interned == null) {
+            strings.put(value, value);
+            interned = value;
+        }
+        return interned;
+    }
+
+    // --------------------------------------------------------------------------------------------
+    // Snapshot block
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * An immutable view of the library. Albums are ordered by their names and
+     * tracks are ordered by their album IDs and track numbers,
+     * so the tracks of an album are found in a contiguous range.
+     */
+    public final class Snapshot {
+
+        private long[] albumIds;
+        private String[] albumNames;
+        private String[] albumArtists;
+        private int[] albumNumTracks;
+        private String[] albumArts;
+        private int[] albumTrackStarts;
+        private int[] albumTrackEnds;
+        private LongIntMap albumPositions;
+
+        private long[] trackIds;
+        private long[] trackAlbumIds;
+        private long[] trackModified;
+        private String[] trackTitles;
+        private String[] trackArtists;
+        private String[] trackAlbums;
+        private long[] trackDurations;
+        private LongIntMap trackPositions;
+
+        private SearchIndex searchIndex;
+
+        private Snapshot() {}
+
+        private void allocateAlbums(int count) {
+            albumIds = new long[count];
+            albumNames = new String[count];
+            albumArtists = new String[count];
+            albumNumTracks = new int[count];
+            albumArts = new String[count];
+            albumTrackStarts = new int[count];
+            albumTrackEnds = new int[count];
+            albumPositions = new LongIntMap(count);
+        }
+
+        private void allocateTracks(int count) {
+            trackIds = new long[count];
+            trackAlbumIds = new long[count];
+            trackModified = new long[count];
+            trackTitles = new String[count];
+            trackArtists = new String[count];
+            trackAlbums = new String[count];
+            trackDurations = new long[count];
+            trackPositions = new LongIntMap(count);
+        }
+
+        private void buildAlbumTrackRanges() {
+            int start = 0;
+            for(int i = 0; i <= trackIds.length; i ++) {
+                if(i < trackIds.length && trackAlbumIds[i] == trackAlbumIds[start])
+                    continue;
+
+                if(start < trackIds.length) {
+                    int album = albumPositions.get(trackAlbumIds[start]);
+                    if(album != LongIntMap.NOT_FOUND) {
+                        albumTrackStarts[album] = start;
+                        albumTrackEnds[album] = i;
+                    }
+                }
+                start = i;
+            }
+        }
+
+        public int getAlbumCount() {
+            return albumIds.length;
+        }
+
+        /**
+         * @return the position of the album or LongIntMap.NOT_FOUND
+         */
+        public int findAlbum(long albumId) {
+            return count(albumPositions.get(albumId));
+        }
+
+        public long getAlbumId(int album) { return albumIds[album]; }
+        public String getAlbumName(int album) { return albumNames[album]; }
+        public String getAlbumArtist(int album) { return albumArtists[album]; }
+        public int getAlbumNumTracks(int album) { return albumNumTracks[album]; }
+        public String getAlbumArt(int album) { return albumArts[album]; }
+
+        /**
+         * @return the position of the first track of the album
+         */
+        public int getAlbumTrackStart(int album) { return albumTrackStarts[album]; }
+
+        /**
+         * @return the position next to the last track of the album
+         */
+        public int getAlbumTrackEnd(int album) { return albumTrackEnds[album]; }
+
+        public int getTrackCount() {
+            return trackIds.length;
+        }
+
+        /**
+         * @return the position of the track or LongIntMap.NOT_FOUND
+         */
+        public int findTrack(long trackId) {
+            return count(trackPositions.get(trackId));
+        }
+
+        public long getTrackId(int track) { return trackIds[track]; }
+        public long getTrackAlbumId(int track) { return trackAlbumIds[track]; }
+        public String getTrackTitle(int track) { return trackTitles[track]; }
+        public String getTrackArtist(int track) { return trackArtists[track]; }
+        public String getTrackAlbum(int track) { return trackAlbums[track]; }
+        public long getTrackDuration(int track) { return trackDurations[track]; }
+
+        /**
+         * @return the index whose results are the positions of the tracks in this snapshot
+         */
+        public SearchIndex getSearchIndex() {
+            return searchIndex;
+        }
+
+        private int count(int position) {
+            if(position == LongIntMap.NOT_FOUND) {
+                misses.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+            return position;
+        }
+    }
+}
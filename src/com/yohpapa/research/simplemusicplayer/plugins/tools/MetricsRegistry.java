@@ -0,0 +1,264 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Named counters and latency histograms shared by the whole process, so that
+ * the service records them and a plugin reads them without any binding.
+ *
+ * The hot paths look a metric up once and keep it. Recording into it is a few
+ * atomic operations without any lock or allocation.
+ */
+public class MetricsRegistry {
+
+    // From prepareAsync to onPrepared of the current player.
+    public static final String PREPARE = "prepare";
+    // From seekTo to onSeekComplete.
+    public static final String SEEK = "seek";
+    // From a play command to MediaPlayer.start.
+    public static final String COMMAND_TO_START = "command_to_start";
+    // From the first deferred command to the player being ready to run it.
+    public static final String COMMAND_QUEUED = "command_queued";
+    // From the end of a track or a skip to the next one being announced.
+    public static final String TRACK_CHANGE = "track_change";
+    // Building and posting the foreground notification.
+    public static final String NOTIFICATION_BUILD = "notification_build";
+    // Looking up the title, the artist, the album and the artwork of a track.
+    public static final String METADATA_LOOKUP = "metadata_lookup";
+    // Decoding the artwork of an album, which is part of the metadata lookup.
+    public static final String ARTWORK_DECODE = "artwork_decode";
+
+    public static final String PLAYER_ERRORS = "player_errors";
+    public static final String NOTIFICATIONS_SKIPPED = "notifications_skipped";
+    // Play state changes received by PlaybackController and the messages it sent for them.
+    public static final String STATE_UPDATES = "state_updates";
+    public static final String STATE_MESSAGES = "state_messages";
+
+    private static MetricsRegistry instance = null;
+
+    public static synchronized MetricsRegistry getInstance() {
+        if(instance == null) {
+            instance = new MetricsRegistry();
+        }
+        return instance;
+    }
+
+    /**
+     * A latency histogram in microseconds with log-linear buckets like HdrHistogram.
+     * Every power of two is split into 8 buckets, so a percentile is off by 12.5% at most.
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+        // About 35 minutes. Longer values are counted in the last bucket.
+        private static final int MAX_EXPONENT = 30;
+        private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong count = new AtomicLong(0L);
+        private final AtomicLong sum = new AtomicLong(0L);
+        private final AtomicLong max = new AtomicLong(0L);
+
+        public void record(long valueUs) {
+            if(valueUs < 0L) {
+                valueUs = 0L;
+            }
+
+            buckets.incrementAndGet(getBucket(valueUs));
+            count.incrementAndGet();
+            sum.addAndGet(valueUs);
+
+            long current = max.get();
+            while(valueUs > current && !max.compareAndSet(current, valueUs)) {
+                current = max.get();
+            }
+        }
+
+        /**
+         * @param startNs a value of System.nanoTime()
+         */
+        public void recordSince(long startNs) {
+            record((System.nanoTime() - startNs) / 1000L);
+        }
+
+        static int getBucket(long value) {
+            if(value < SUB_BUCKET_COUNT)
+                return (int)value;
+
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if(exponent > MAX_EXPONENT)
+                return BUCKET_COUNT - 1;
+
+            int shift = exponent - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKET_COUNT + (int)(value >>> shift) - SUB_BUCKET_COUNT;
+        }
+
+        /**
+         * @return the largest value which falls in the bucket
+         */
+        static long getHighestValue(int bucket) {
+            if(bucket < SUB_BUCKET_COUNT)
+                return bucket;
+
+            int shift = bucket / SUB_BUCKET_COUNT - 1;
+            long lowest = (long)(SUB_BUCKET_COUNT + bucket % SUB_BUCKET_COUNT) << shift;
+            return lowest + (1L << shift) - 1L;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMean() {
+            long n = count.get();
+            return (n == 0L) ? 0L : sum.get() / n;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param percentile e.g. 99.9
+         */
+        public long getPercentile(double percentile) {
+            long n = count.get();
+            if(n == 0L)
+                return 0L;
+
+            long rank = Math.max(1L, (long)Math.ceil(n * percentile / 100.0));
+            long seen = 0L;
+            for(int i = 0; i < BUCKET_COUNT; i ++) {
+                seen += buckets.get(i);
+                if(seen >= rank)
+                    return Math.min(getHighestValue(i), max.get());
+            }
+            return max.get();
+        }
+
+        public void reset() {
+            for(int i = 0; i < BUCKET_COUNT; i ++) {
+                buckets.set(i, 0L);
+            }
+            count.set(0L);
+            sum.set(0L);
+            max.set(0L);
+        }
+
+        public JSONObject toJson() throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("count", getCount());
+            obj.put("meanUs", getMean());
+            obj.put("p50Us", getPercentile(50.0));
+            obj.put("p90Us", getPercentile(90.0));
+            obj.put("p99Us", getPercentile(99.0));
+            obj.put("maxUs", getMax());
+            return obj;
+        }
+
+        @Override
+        public String toString() {
+            return "count: " + getCount() +
+                   ", mean: " + getMean() + "us" +
+                   ", p50: " + getPercentile(50.0) + "us" +
+                   ", p99: " + getPercentile(99.0) + "us" +
+                   ", max: " + getMax() + "us";
+        }
+    }
+
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private volatile long resetAt = SystemClock.elapsedRealtime();
+
+    private MetricsRegistry() {}
+
+    public Histogram histogram(String name) {
+        synchronized(histograms) {
+            Histogram histogram = histograms.get(name);
+            if(histogram == null) {
+                histogram = new Histogram();
+                histograms.put(name, histogram);
+            }
+            return histogram;
+        }
+    }
+
+    public AtomicLong counter(String name) {
+        synchronized(counters) {
+            AtomicLong counter = counters.get(name);
+            if(counter == null) {
+                counter = new AtomicLong(0L);
+                counters.put(name, counter);
+            }
+            return counter;
+        }
+    }
+
+    /**
+     * @return {periodMs, histograms: {name: {count, meanUs, p50Us, p90Us, p99Us, maxUs}}, counters: {name: value}}
+     */
+    public JSONObject snapshot() throws JSONException {
+        JSONObject histogramValues = new JSONObject();
+        for(Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            histogramValues.put(entry.getKey(), entry.getValue().toJson());
+        }
+
+        JSONObject counterValues = new JSONObject();
+        for(Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            counterValues.put(entry.getKey(), entry.getValue().get());
+        }
+
+        JSONObject snapshot = new JSONObject();
+        snapshot.put("periodMs", SystemClock.elapsedRealtime() - resetAt);
+        snapshot.put("histograms", histogramValues);
+        snapshot.put("counters", counterValues);
+        return snapshot;
+    }
+
+    /**
+     * Writes the snapshot to the file. The file is replaced only when it has been written completely.
+     */
+    public void dump(File file) throws IOException {
+        String text;
+        try {
+            text = snapshot().toString(2);
+        } catch(JSONException e) {
+            throw new IOException(e.toString());
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+        if(!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot rename " + temp + " to " + file);
+        }
+    }
+
+    public void reset() {
+        for(Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        for(AtomicLong counter : counters.values()) {
+            counter.set(0L);
+        }
+        resetAt = SystemClock.elapsedRealtime();
+    }
+}
@@ -0,0 +1,153 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Playback commands deferred until the player is ready.
+ * Any thread can post a command without locking. The single consumer drains them
+ * and collapses superseded ones, e.g. play, pause, play is executed as one play.
+ * Each command is tagged with the track it was posted for and is dropped if
+ * another track has become current by the time it is drained.
+ */
+public class PlaybackCommandQueue {
+
+    public static final int COMMAND_PLAY = 0;
+    public static final int COMMAND_PAUSE = 1;
+    public static final int COMMAND_TOGGLE = 2;
+    public static final int COMMAND_ANNOUNCE_TRACK = 3;
+
+    /**
+     * The tag of commands posted while no track has been selected yet.
+     */
+    public static final long ANY_TRACK = -1L;
+
+    public interface Executor {
+        long getCurrentTrackId();
+        void play();
+        void pause();
+        void toggle();
+        void announceTrack();
+    }
+
+    private static final class Command {
+        private final int type;
+        private final long trackId;
+
+        private Command(int type, long trackId) {
+            this.type = type;
+            this.trackId = trackId;
+        }
+    }
+
+    private static final int PLAY_STATE_NONE = -1;
+
+    private final ConcurrentLinkedQueue<Command> commands = new ConcurrentLinkedQueue<Command>();
+
+    private final AtomicLong postedCount = new AtomicLong(0L);
+    private long executedCount = 0L;
+    private long collapsedCount = 0L;
+    private long droppedCount = 0L;
+
+    public void post(int type, long trackId) {
+        commands.offer(new Command(type, trackId));
+        postedCount.incrementAndGet();
+    }
+
+    public boolean isEmpty() {
+        return commands.isEmpty();
+    }
+
+    public void clear() {
+        commands.clear();
+    }
+
+    /**
+     * Executes the net effect of the posted commands. It must be called from the consumer thread only.
+     * @return the number of executed commands
+     */
+    public int drain(Executor executor) {
+        long currentTrackId = executor.getCurrentTrackId();
+        int playState = PLAY_STATE_NONE;
+        boolean announce = false;
+        int drained = 0;
+
+        Command command;
+        while((command = commands.poll()) != null) {
+            if(command.trackId != ANY_TRACK && command.trackId != currentTrackId) {
+                droppedCount ++;
+                continue;
+            }
+
+            drained ++;
+            switch(command.type) {
+                case COMMAND_PLAY:
+                case COMMAND_PAUSE:
+                    playState = command.type;
+                    break;
+
+                case COMMAND_TOGGLE:
+                    playState = toggle(playState);
+                    break;
+
+                case COMMAND_ANNOUNCE_TRACK:
+                    announce = true;
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        int executed = 0;
+        if(playState == COMMAND_PLAY) {
+            executor.play();
+            executed ++;
+        } else if(playState == COMMAND_PAUSE) {
+            executor.pause();
+            executed ++;
+        } else if(playState == COMMAND_TOGGLE) {
+            executor.toggle();
+            executed ++;
+        }
+
+        if(announce) {
+            executor.announceTrack();
+            executed ++;
+        }
+
+        executedCount += executed;
+        collapsedCount += drained - executed;
+        return executed;
+    }
+
+    private static int toggle(int playState) {
+        switch(playState) {
+            case COMMAND_PLAY:
+                return COMMAND_PAUSE;
+            case COMMAND_PAUSE:
+                return COMMAND_PLAY;
+            case COMMAND_TOGGLE:
+                // Toggling twice leaves the state as it is.
+                return PLAY_STATE_NONE;
+            default:
+                return COMMAND_TOGGLE;
+        }
+    }
+
+    public long getPostedCount() {
+        return postedCount.get();
+    }
+
+    public long getExecutedCount() {
+        return executedCount;
+    }
+
+    public long getCollapsedCount() {
+        return collapsedCount;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+}
@@ -0,0 +1,168 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A memory mapped file which keeps the playback queue, the current index and
+ * the position so that they survive the process death.
+ *
+ * Layout (little endian):
+ *   0: magic (int)
+ *   4: version (int)
+ *   8: valid flag (int)
+ *  12: number of tracks (int)
+ *  16: index and position packed into one long so that they are written at once
+ *  24: track IDs (long[])
+ *
+ * Updating the position is a single store into the mapped page without any system call.
+ * The kernel writes the page back even if the process is killed.
+ */
+public class PlaybackSnapshot {
+    private static final String TAG = PlaybackSnapshot.class.getSimpleName();
+
+    private static final int MAGIC = 0x534d5053;
+    private static final int VERSION = 1;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_VALID = 8;
+    private static final int OFFSET_COUNT = 12;
+    private static final int OFFSET_STATE = 16;
+    private static final int HEADER_SIZE = 24;
+    private static final int BYTES_PER_TRACK_ID = 8;
+
+    private final File file;
+    private RandomAccessFile randomAccessFile = null;
+    private MappedByteBuffer buffer = null;
+
+    private long[] trackIds = null;
+    private int index = -1;
+    private int position = -1;
+
+    public PlaybackSnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the snapshot written by the previous process.
+     * @return false if there is no valid snapshot
+     */
+    public synchronized boolean restore() {
+        if(!file.exists() || file.length() < HEADER_SIZE)
+            return false;
+
+        try {
+            map(file.length());
+            if(buffer.getInt(OFFSET_MAGIC) != MAGIC ||
+               buffer.getInt(OFFSET_VERSION) != VERSION ||
+               buffer.getInt(OFFSET_VALID) == 0)
+                return false;
+
+            int count = buffer.getInt(OFFSET_COUNT);
+            if(count <= 0 || HEADER_SIZE + (long)count * BYTES_PER_TRACK_ID > buffer.capacity())
+                return false;
+
+            long state = buffer.getLong(OFFSET_STATE);
+            int restoredIndex = (int)(state >> 32);
+            if(restoredIndex < 0 || restoredIndex >= count)
+                return false;
+
+            long[] restoredTrackIds = new long[count];
+            for(int i = 0; i < count; i ++) {
+                restoredTrackIds[i] = buffer.getLong(HEADER_SIZE + i * BYTES_PER_TRACK_ID);
+            }
+
+            trackIds = restoredTrackIds;
+            index = restoredIndex;
+            position = (int)state;
+            return true;
+
+        } catch(IOException e) {
+            Log.e(TAG, e.toString());
+            return false;
+        }
+    }
+
+    public synchronized long[] getTrackIds() {
+        return trackIds;
+    }
+
+    public synchronized int getIndex() {
+        return index;
+    }
+
+    public synchronized int getPosition() {
+        return position;
+    }
+
+    public synchronized void saveQueue(long[] trackIds, int index, int position) {
+        if(trackIds == null)
+            return;
+
+        try {
+            map(HEADER_SIZE + (long)trackIds.length * BYTES_PER_TRACK_ID);
+
+            // Invalidate first so that a half written queue is never restored.
+            buffer.putInt(OFFSET_VALID, 0);
+            buffer.putInt(OFFSET_MAGIC, MAGIC);
+            buffer.putInt(OFFSET_VERSION, VERSION);
+            buffer.putInt(OFFSET_COUNT, trackIds.length);
+            buffer.putLong(OFFSET_STATE, pack(index, position));
+            for(int i = 0; i < trackIds.length; i ++) {
+                buffer.putLong(HEADER_SIZE + i * BYTES_PER_TRACK_ID, trackIds[i]);
+            }
+            buffer.putInt(OFFSET_VALID, 1);
+
+        } catch(IOException e) {
+            Log.e(TAG, e.toString());
+        }
+    }
+
+    public synchronized void savePosition(int index, int position) {
+        if(buffer == null)
+            return;
+
+        buffer.putLong(OFFSET_STATE, pack(index, position));
+    }
+
+    public synchronized void clear() {
+        if(buffer == null)
+            return;
+
+        buffer.putInt(OFFSET_VALID, 0);
+    }
+
+    public synchronized void close() {
+        buffer = null;
+        if(randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch(IOException e) {
+                Log.e(TAG, e.toString());
+            }
+            randomAccessFile = null;
+        }
+    }
+
+    private void map(long size) throws IOException {
+        if(buffer != null && buffer.capacity() >= size)
+            return;
+
+        if(randomAccessFile == null) {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+        }
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static long pack(int index, int position) {
+        return ((long)index << 32) | (position & 0xffffffffL);
+    }
+}
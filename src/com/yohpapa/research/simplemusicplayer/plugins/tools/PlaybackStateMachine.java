@@ -0,0 +1,280 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+/**
+ * The state of the playback as a table driven state machine.
+ * It does not depend on Android. The player is driven through PlayerPort,
+ * so the machine can be run on a plain JVM with a fake player.
+ *
+ * Each input is looked up in a table of (state, event) and either ignored or
+ * moves the machine to the next state and runs one action on the port.
+ * The state is updated before the action runs, so the port may feed
+ * further inputs from its callbacks.
+ */
+public class PlaybackStateMachine {
+
+    public interface PlayerPort {
+        /**
+         * Starts preparing the track asynchronously.
+         * @return false if the track cannot be set to the player
+         */
+        boolean prepare(long trackId);
+        void seekTo(int position);
+        void start();
+        void pause();
+        void release();
+
+        /**
+         * Called whenever the player gets ready to accept play and pause.
+         */
+        void onReady();
+    }
+
+    public static final int STATE_RELEASED = 0;
+    public static final int STATE_IDLE = 1;
+    public static final int STATE_PREPARING = 2;
+    public static final int STATE_SEEKING = 3;
+    public static final int STATE_PAUSED = 4;
+    public static final int STATE_PLAYING = 5;
+    private static final int NUMBER_OF_STATES = 6;
+
+    public static final int NO_POSITION = -1;
+
+    private static final int EVENT_ACQUIRE = 0;
+    private static final int EVENT_PREPARE = 1;
+    private static final int EVENT_PREPARED = 2;
+    private static final int EVENT_PREPARED_TO_RESTORE = 3;
+    private static final int EVENT_SEEK_COMPLETE = 4;
+    private static final int EVENT_PLAY = 5;
+    private static final int EVENT_PAUSE = 6;
+    private static final int EVENT_COMPLETE = 7;
+    private static final int EVENT_HAND_OVER_PLAYING = 8;
+    private static final int EVENT_HAND_OVER_PAUSED = 9;
+    private static final int EVENT_ERROR = 10;
+    private static final int EVENT_RELEASE = 11;
+    private static final int EVENT_SEEK = 12;
+    private static final int NUMBER_OF_EVENTS = 13;
+
+    private static final int ACTION_NONE = 0;
+    private static final int ACTION_PREPARE = 1;
+    private static final int ACTION_SEEK = 2;
+    private static final int ACTION_READY = 3;
+    private static final int ACTION_START = 4;
+    private static final int ACTION_PAUSE = 5;
+    private static final int ACTION_RELEASE = 6;
+
+    // Each entry packs the next state and the action. IGNORED means the event is not accepted.
+    private static final int IGNORED = -1;
+    private static final int ACTION_BITS = 8;
+    private static final int ACTION_MASK = (1 << ACTION_BITS) - 1;
+    private static final int[][] TRANSITIONS = new int[NUMBER_OF_STATES][NUMBER_OF_EVENTS];
+
+    static {
+        for(int[] row : TRANSITIONS) {
+            for(int i = 0; i < row.length; i ++) {
+                row[i] = IGNORED;
+            }
+        }
+
+        define(STATE_RELEASED, EVENT_ACQUIRE, STATE_IDLE, ACTION_NONE);
+
+        for(int state = STATE_IDLE; state < NUMBER_OF_STATES; state ++) {
+            define(state, EVENT_PREPARE, STATE_PREPARING, ACTION_PREPARE);
+            define(state, EVENT_ERROR, STATE_IDLE, ACTION_NONE);
+            define(state, EVENT_RELEASE, STATE_RELEASED, ACTION_RELEASE);
+        }
+
+        define(STATE_PREPARING, EVENT_PREPARED, STATE_PAUSED, ACTION_READY);
+        define(STATE_PREPARING, EVENT_PREPARED_TO_RESTORE, STATE_SEEKING, ACTION_SEEK);
+
+        define(STATE_SEEKING, EVENT_SEEK_COMPLETE, STATE_PAUSED, ACTION_READY);
+
+        define(STATE_PAUSED, EVENT_PLAY, STATE_PLAYING, ACTION_START);
+        define(STATE_PAUSED, EVENT_SEEK, STATE_PAUSED, ACTION_SEEK);
+        define(STATE_PAUSED, EVENT_SEEK_COMPLETE, STATE_PAUSED, ACTION_READY);
+        define(STATE_PAUSED, EVENT_COMPLETE, STATE_PAUSED, ACTION_NONE);
+        define(STATE_PAUSED, EVENT_HAND_OVER_PLAYING, STATE_PLAYING, ACTION_NONE);
+        define(STATE_PAUSED, EVENT_HAND_OVER_PAUSED, STATE_PAUSED, ACTION_NONE);
+
+        define(STATE_PLAYING, EVENT_PAUSE, STATE_PAUSED, ACTION_PAUSE);
+        define(STATE_PLAYING, EVENT_SEEK, STATE_PLAYING, ACTION_SEEK);
+        define(STATE_PLAYING, EVENT_SEEK_COMPLETE, STATE_PLAYING, ACTION_READY);
+        define(STATE_PLAYING, EVENT_COMPLETE, STATE_PAUSED, ACTION_NONE);
+        define(STATE_PLAYING, EVENT_HAND_OVER_PLAYING, STATE_PLAYING, ACTION_NONE);
+        define(STATE_PLAYING, EVENT_HAND_OVER_PAUSED, STATE_PAUSED, ACTION_NONE);
+    }
+
+    private static void define(int state, int event, int next, int action) {
+        TRANSITIONS[state][event] = (next << ACTION_BITS) | action;
+    }
+
+    private final PlayerPort port;
+
+    private int state = STATE_RELEASED;
+    private int positionToRestore = NO_POSITION;
+    private int seekPosition = 0;
+    private long trackId = -1L;
+
+    private long transitionCount = 0L;
+    private long ignoredCount = 0L;
+
+    public PlaybackStateMachine(PlayerPort port) {
+        this.port = port;
+    }
+
+    /**
+     * Notifies that a new player has been created.
+     */
+    public boolean acquire() {
+        return fire(EVENT_ACQUIRE);
+    }
+
+    /**
+     * Prepares the track and seeks to the position once it has been prepared.
+     * @param position NO_POSITION to start from the beginning
+     */
+    public boolean prepare(long trackId, int position) {
+        if(state == STATE_RELEASED) {
+            // Keep the position saved on release.
+            ignoredCount ++;
+            return false;
+        }
+
+        this.trackId = trackId;
+        positionToRestore = position;
+        return fire(EVENT_PREPARE);
+    }
+
+    public boolean onPrepared() {
+        if(positionToRestore == NO_POSITION)
+            return fire(EVENT_PREPARED);
+
+        seekPosition = positionToRestore;
+        return fire(EVENT_PREPARED_TO_RESTORE);
+    }
+
+    /**
+     * Seeks the ready player and keeps playing or pausing. The ready action runs
+     * again when the seek completes.
+     */
+    public boolean seekTo(int position) {
+        seekPosition = position;
+        return fire(EVENT_SEEK);
+    }
+
+    public boolean onSeekComplete() {
+        if(state == STATE_SEEKING) {
+            positionToRestore = NO_POSITION;
+        }
+        return fire(EVENT_SEEK_COMPLETE);
+    }
+
+    public boolean play() {
+        return fire(EVENT_PLAY);
+    }
+
+    public boolean pause() {
+        return fire(EVENT_PAUSE);
+    }
+
+    public boolean onCompletion() {
+        return fire(EVENT_COMPLETE);
+    }
+
+    /**
+     * Notifies that another player which has already prepared the next track has taken over.
+     */
+    public boolean handOver(long trackId, boolean isPlaying) {
+        this.trackId = trackId;
+        positionToRestore = NO_POSITION;
+        return fire(isPlaying ? EVENT_HAND_OVER_PLAYING : EVENT_HAND_OVER_PAUSED);
+    }
+
+    public boolean onError() {
+        return fire(EVENT_ERROR);
+    }
+
+    /**
+     * Releases the player and keeps the position to restore when the track is prepared again.
+     */
+    public boolean release(int position) {
+        if(state != STATE_RELEASED) {
+            positionToRestore = position;
+        }
+        return fire(EVENT_RELEASE);
+    }
+
+    private boolean fire(int event) {
+        int transition = TRANSITIONS[state][event];
+        if(transition == IGNORED) {
+            ignoredCount ++;
+            return false;
+        }
+
+        state = transition >> ACTION_BITS;
+        transitionCount ++;
+
+        switch(transition & ACTION_MASK) {
+            case ACTION_PREPARE:
+                if(!port.prepare(trackId)) {
+                    fire(EVENT_ERROR);
+                    return false;
+                }
+                break;
+
+            case ACTION_SEEK:
+                port.seekTo(seekPosition);
+                break;
+
+            case ACTION_READY:
+                port.onReady();
+                break;
+
+            case ACTION_START:
+                port.start();
+                break;
+
+            case ACTION_PAUSE:
+                port.pause();
+                break;
+
+            case ACTION_RELEASE:
+                port.release();
+                break;
+
+            default:
+                break;
+        }
+        return true;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public boolean isReleased() {
+        return state == STATE_RELEASED;
+    }
+
+    /**
+     * @return true if the player accepts play and pause now
+     */
+    public boolean isReady() {
+        return state == STATE_PAUSED || state == STATE_PLAYING;
+    }
+
+    public boolean isPlaying() {
+        return state == STATE_PLAYING;
+    }
+
+    public int getPositionToRestore() {
+        return positionToRestore;
+    }
+
+    public long getTransitionCount() {
+        return transitionCount;
+    }
+
+    public long getIgnoredCount() {
+        return ignoredCount;
+    }
+}
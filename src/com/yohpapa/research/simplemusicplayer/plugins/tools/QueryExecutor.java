@@ -0,0 +1,180 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs library queries on a few dedicated threads with a bounded queue.
+ *
+ * A query may be submitted on a channel, e.g. one per screen. A new query on the
+ * same channel supersedes the previous one: it is removed from the queue if it
+ * has not started yet and cancelled otherwise. A running query is expected to
+ * check isCancelled() between rows and to close its cursor as soon as it is set.
+ */
+public class QueryExecutor {
+    private static final String TAG = QueryExecutor.class.getSimpleName();
+
+    public static abstract class Query implements Runnable {
+        private volatile boolean isCancelled = false;
+        private final AtomicBoolean isCancelNotified = new AtomicBoolean(false);
+        private QueryExecutor executor = null;
+        private String channel = null;
+        private long submittedAt = 0L;
+
+        public boolean isCancelled() {
+            return isCancelled;
+        }
+
+        @Override
+        public final void run() {
+            executor.onStart(this);
+            try {
+                if(!isCancelled) {
+                    execute();
+                }
+            } finally {
+                executor.onFinish(this);
+            }
+
+            // A query superseded only after it sent its result has nothing left to cancel.
+            if(isCancelled && !isDelivered()) {
+                notifyCancelled();
+            }
+        }
+
+        private void notifyCancelled() {
+            if(isCancelNotified.compareAndSet(false, true)) {
+                onCancelled();
+            }
+        }
+
+        protected abstract void execute();
+
+        /**
+         * @return whether execute() has sent the final result, so that onCancelled is not called after it
+         */
+        protected boolean isDelivered() {
+            return false;
+        }
+
+        /**
+         * Called on the cancelling thread as soon as the query has been cancelled or superseded,
+         * whether or not it is running.
+         */
+        protected void onCancel() {}
+
+        /**
+         * Called once when the query has been cancelled, superseded or rejected
+         * before it sent its result.
+         */
+        protected void onCancelled() {}
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final Map<String, Query> latest = new HashMap<String, Query>();
+
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+    private final AtomicLong supersededCount = new AtomicLong(0L);
+    private final AtomicLong rejectedCount = new AtomicLong(0L);
+
+    /**
+     * @param threads the number of threads which run queries concurrently
+     * @param capacity the number of queries which may wait for a thread
+     */
+    public QueryExecutor(int threads, int capacity) {
+        executor = new ThreadPoolExecutor(
+                        threads, threads, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(capacity));
+    }
+
+    /**
+     * @param channel the channel on which the query supersedes the previous one or null
+     */
+    public void submit(String channel, Query query) {
+        query.executor = this;
+        query.channel = channel;
+        query.submittedAt = SystemClock.elapsedRealtime();
+
+        if(channel != null) {
+            Query previous;
+            synchronized(latest) {
+                previous = latest.put(channel, query);
+            }
+            if(previous != null) {
+                supersededCount.incrementAndGet();
+                cancel(previous);
+            }
+        }
+
+        try {
+            executor.execute(query);
+        } catch(RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            Log.d(TAG, "The query queue is full. depth: " + getQueueDepth());
+            query.isCancelled = true;
+            onFinish(query);
+            query.notifyCancelled();
+        }
+    }
+
+    private void cancel(Query query) {
+        query.isCancelled = true;
+        query.onCancel();
+
+        // A query which has not started yet is not run at all.
+        if(executor.remove(query)) {
+            onFinish(query);
+            query.notifyCancelled();
+        }
+    }
+
+    private void onStart(Query query) {
+        waitTime.record(SystemClock.elapsedRealtime() - query.submittedAt);
+    }
+
+    private void onFinish(Query query) {
+        if(query.channel == null)
+            return;
+
+        synchronized(latest) {
+            if(latest.get(query.channel) == query) {
+                latest.remove(query.channel);
+            }
+        }
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public LatencyHistogram getWaitTime() {
+        return waitTime;
+    }
+
+    public long getSupersededCount() {
+        return supersededCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public void shutdown() {
+        synchronized(latest) {
+            for(Query query : latest.values()) {
+                query.isCancelled = true;
+            }
+            latest.clear();
+        }
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,470 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A type-ahead search index over the titles, artists and album names of tracks.
+ *
+ * The words of all tracks are kept in a sorted table and each word has a posting
+ * list of the positions of the tracks which contain it, all on primitive arrays.
+ * A query term matches the words it is a prefix of, found by binary search, and
+ * the words it is a substring of. Substrings are looked up in a second table of
+ * the character bigrams of the words, so the word table is never scanned.
+ * Every term has to match. Tracks matched by prefixes only come first in the results.
+ *
+ * The word IDs of each track are kept as well, so that a rebuild after a refresh
+ * only tokenizes the tracks which have changed. The word and bigram tables are
+ * reused as they are when no word has been added or removed, and otherwise merged
+ * with the added words in linear time. The posting lists are always rebuilt from
+ * the word IDs of the tracks, since the positions of the tracks may all have moved.
+ *
+ * It does not depend on Android, so it can be built from a synthetic corpus.
+ */
+public class SearchIndex {
+
+    private static final String[] NO_WORDS = new String[0];
+    private static final int[] NO_IDS = new int[0];
+    private static final long[] NO_ENTRIES = new long[0];
+
+    /**
+     * The previous position of a track which is new or whose fields have changed.
+     */
+    public static final int CHANGED = -1;
+
+    private final int trackCount;
+    private final String[] words;
+    private final int[] postingStarts;
+    private final int[] postings;
+
+    // The IDs of the words of each track, sorted per track.
+    private final int[] trackWordStarts;
+    private final int[] trackWords;
+
+    // Sorted bigrams of two chars packed into an int and the IDs of the words which contain them.
+    private final int[] bigrams;
+    private final int[] bigramStarts;
+    private final int[] bigramWords;
+
+    private SearchIndex(int trackCount, String[] words, int[] trackWordStarts, int[] trackWords,
+                        int[] bigrams, int[] bigramStarts, int[] bigramWords) {
+        this.trackCount = trackCount;
+        this.words = words;
+        this.trackWordStarts = trackWordStarts;
+        this.trackWords = trackWords;
+        this.bigrams = bigrams;
+        this.bigramStarts = bigramStarts;
+        this.bigramWords = bigramWords;
+
+        // Tracks are visited in order, so every posting list is sorted.
+        postingStarts = new int[words.length + 1];
+        for(int id : trackWords) {
+            postingStarts[id + 1] ++;
+        }
+        for(int id = 0; id < words.length; id ++) {
+            postingStarts[id + 1] += postingStarts[id];
+        }
+        postings = new int[trackWords.length];
+        int[] filled = new int[words.length];
+        for(int track = 0; track < trackCount; track ++) {
+            for(int i = trackWordStarts[track]; i < trackWordStarts[track + 1]; i ++) {
+                int id = trackWords[i];
+                postings[postingStarts[id] + filled[id]] = track;
+                filled[id] ++;
+            }
+        }
+    }
+
+    private static int getBigram(String word, int index) {
+        return (word.charAt(index) << 16) | word.charAt(index + 1);
+    }
+
+    public static SearchIndex build(String[][] fields) {
+        return build(fields, null, null);
+    }
+
+    /**
+     * @param fields the arrays of field values indexed by track position, e.g. titles, artists and albums.
+     *               They must have the same length.
+     * @param previous the index of the previous library or null
+     * @param previousPositions the position of each track in the previous index if none of its
+     *                          field values has changed, or CHANGED. Null if previous is null.
+     */
+    public static SearchIndex build(String[][] fields, SearchIndex previous, int[] previousPositions) {
+        int trackCount = (fields.length == 0) ? 0 : fields[0].length;
+        String[] previousWords = (previous == null) ? NO_WORDS : previous.words;
+
+        // The words of the changed tracks, which are only known by their text until the table is merged.
+        String[][] changedWords = new String[trackCount][];
+        int[] previousCounts = new int[previousWords.length];
+        Set<String> added = new HashSet<String>();
+        int wordCount = 0;
+        for(int track = 0; track < trackCount; track ++) {
+            int old = (previous == null) ? CHANGED : previousPositions[track];
+            if(old != CHANGED) {
+                for(int i = previous.trackWordStarts[old]; i < previous.trackWordStarts[old + 1]; i ++) {
+                    previousCounts[previous.trackWords[i]] ++;
+                }
+                wordCount += previous.trackWordStarts[old + 1] - previous.trackWordStarts[old];
+                continue;
+            }
+
+            String[] trackWords = tokenize(fields, track);
+            for(String word : trackWords) {
+                int id = Arrays.binarySearch(previousWords, word);
+                if(id >= 0) {
+                    previousCounts[id] ++;
+                } else {
+                    added.add(word);
+                }
+            }
+            changedWords[track] = trackWords;
+            wordCount += trackWords.length;
+        }
+
+        // The words of the previous table which are still used keep their order.
+        int[] previousToNew = new int[previousWords.length];
+        int keptCount = 0;
+        for(int id = 0; id < previousWords.length; id ++) {
+            previousToNew[id] = (previousCounts[id] > 0) ? keptCount ++ : -1;
+        }
+        boolean isSameTable = previous != null && added.isEmpty() && keptCount == previousWords.length;
+
+        String[] words;
+        int[] addedIds;
+        String[] addedWords = added.toArray(new String[added.size()]);
+        Arrays.sort(addedWords);
+        if(isSameTable) {
+            words = previousWords;
+            addedIds = NO_IDS;
+        } else {
+            words = new String[keptCount + addedWords.length];
+            addedIds = new int[addedWords.length];
+            int next = 0;
+            int a = 0;
+            for(int id = 0; id <= previousWords.length; id ++) {
+                if(id < previousWords.length && previousToNew[id] < 0)
+                    continue;
+
+                while(a < addedWords.length && (id == previousWords.length || addedWords[a].compareTo(previousWords[id]) < 0)) {
+                    addedIds[a] = next;
+                    words[next ++] = addedWords[a ++];
+                }
+                if(id < previousWords.length) {
+                    previousToNew[id] = next;
+                    words[next ++] = previousWords[id];
+                }
+            }
+        }
+
+        int[] trackWordStarts = new int[trackCount + 1];
+        int[] trackWords = new int[wordCount];
+        int position = 0;
+        for(int track = 0; track < trackCount; track ++) {
+            trackWordStarts[track] = position;
+            int start = position;
+            if(changedWords[track] == null) {
+                int old = previousPositions[track];
+                for(int i = previous.trackWordStarts[old]; i < previous.trackWordStarts[old + 1]; i ++) {
+                    trackWords[position ++] = previousToNew[previous.trackWords[i]];
+                }
+            } else {
+                for(String word : changedWords[track]) {
+                    trackWords[position ++] = Arrays.binarySearch(words, word);
+                }
+                Arrays.sort(trackWords, start, position);
+            }
+        }
+        trackWordStarts[trackCount] = position;
+
+        if(isSameTable) {
+            return new SearchIndex(trackCount, words, trackWordStarts, trackWords,
+                                   previous.bigrams, previous.bigramStarts, previous.bigramWords);
+        }
+
+        // The entries of the kept words stay sorted, since their IDs keep their order.
+        long[] keptEntries = NO_ENTRIES;
+        if(previous != null) {
+            keptEntries = new long[previous.bigramWords.length];
+            int count = 0;
+            for(int key = 0; key < previous.bigrams.length; key ++) {
+                for(int i = previous.bigramStarts[key]; i < previous.bigramStarts[key + 1]; i ++) {
+                    int id = previousToNew[previous.bigramWords[i]];
+                    if(id >= 0) {
+                        keptEntries[count ++] = toEntry(previous.bigrams[key], id);
+                    }
+                }
+            }
+            long[] kept = new long[count];
+            System.arraycopy(keptEntries, 0, kept, 0, count);
+            keptEntries = kept;
+        }
+
+        long[] addedEntries = getEntries(addedWords, addedIds);
+        long[] entries = merge(keptEntries, addedEntries);
+
+        int keyCount = 0;
+        int entryCount = 0;
+        for(int i = 0; i < entries.length; i ++) {
+            if(i > 0 && entries[i] == entries[i - 1])
+                continue;
+            entryCount ++;
+            if(i == 0 || (entries[i] >>> 32) != (entries[i - 1] >>> 32)) {
+                keyCount ++;
+            }
+        }
+
+        int[] bigrams = new int[keyCount];
+        int[] bigramStarts = new int[keyCount + 1];
+        int[] bigramWords = new int[entryCount];
+        int key = -1;
+        position = 0;
+        for(int i = 0; i < entries.length; i ++) {
+            if(i > 0 && entries[i] == entries[i - 1])
+                continue;
+            if(i == 0 || (entries[i] >>> 32) != (entries[i - 1] >>> 32)) {
+                key ++;
+                bigrams[key] = (int)(entries[i] >>> 32);
+                bigramStarts[key] = position;
+            }
+            bigramWords[position ++] = (int)entries[i];
+        }
+        bigramStarts[keyCount] = position;
+
+        return new SearchIndex(trackCount, words, trackWordStarts, trackWords, bigrams, bigramStarts, bigramWords);
+    }
+
+    // The bigram in the upper half and the word ID in the lower half.
+    private static long toEntry(int bigram, int id) {
+        return ((long)bigram << 32) | id;
+    }
+
+    /**
+     * @return the sorted bigram entries of the words, which may have duplicates
+     */
+    private static long[] getEntries(String[] words, int[] ids) {
+        int count = 0;
+        for(String word : words) {
+            count += Math.max(0, word.length() - 1);
+        }
+        long[] entries = new long[count];
+        int position = 0;
+        for(int i = 0; i < words.length; i ++) {
+            String word = words[i];
+            for(int j = 0; j + 1 < word.length(); j ++) {
+                entries[position ++] = toEntry(getBigram(word, j), ids[i]);
+            }
+        }
+        Arrays.sort(entries);
+        return entries;
+    }
+
+    private static long[] merge(long[] a, long[] b) {
+        long[] merged = new long[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int position = 0;
+        while(i < a.length && j < b.length) {
+            merged[position ++] = (a[i] <= b[j]) ? a[i ++] : b[j ++];
+        }
+        while(i < a.length) {
+            merged[position ++] = a[i ++];
+        }
+        while(j < b.length) {
+            merged[position ++] = b[j ++];
+        }
+        return merged;
+    }
+
+    /**
+     * @return the words of all the field values of the track without duplicates
+     */
+    private static String[] tokenize(String[][] fields, int track) {
+        if(fields.length == 1)
+            return tokenize(fields[0][track]);
+
+        List<String> words = new ArrayList<String>();
+        for(String[] field : fields) {
+            for(String word : tokenize(field[track])) {
+                if(!words.contains(word)) {
+                    words.add(word);
+                }
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    /**
+     * Splits the text into lower case words of letters and digits.
+     */
+    public static String[] tokenize(String text) {
+        if(text == null || text.length() == 0)
+            return NO_WORDS;
+
+        String lower = text.toLowerCase(Locale.US);
+        List<String> words = null;
+        int start = -1;
+        for(int i = 0; i <= lower.length(); i ++) {
+            boolean isWordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if(isWordChar) {
+                if(start < 0) {
+                    start = i;
+                }
+                continue;
+            }
+
+            if(start >= 0) {
+                if(words == null) {
+                    words = new ArrayList<String>();
+                }
+                String word = lower.substring(start, i);
+                if(!words.contains(word)) {
+                    words.add(word);
+                }
+                start = -1;
+            }
+        }
+        return (words == null) ? NO_WORDS : words.toArray(new String[words.size()]);
+    }
+
+    /**
+     * @param query the words typed so far
+     * @param results receives the positions of the matching tracks, prefix matches first
+     * @return the number of all matching tracks, which may be larger than the results
+     */
+    public int search(String query, int[] results) {
+        String[] terms = tokenize(query);
+        if(terms.length == 0 || trackCount == 0)
+            return 0;
+
+        long[] matches = null;
+        long[] prefixMatches = null;
+        for(String term : terms) {
+            long[] prefixes = new long[(trackCount + 63) >>> 6];
+            int start = lowerBound(term);
+            int end = start;
+            while(end < words.length && words[end].startsWith(term)) {
+                addPostings(end, prefixes);
+                end ++;
+            }
+
+            long[] all = prefixes.clone();
+            int bigram = findRarestBigram(term);
+            if(bigram >= 0) {
+                for(int i = bigramStarts[bigram]; i < bigramStarts[bigram + 1]; i ++) {
+                    int id = bigramWords[i];
+                    if(id >= start && id < end)
+                        continue;
+
+                    if(words[id].indexOf(term) > 0) {
+                        addPostings(id, all);
+                    }
+                }
+            }
+
+            matches = (matches == null) ? all : and(matches, all);
+            prefixMatches = (prefixMatches == null) ? prefixes : and(prefixMatches, prefixes);
+        }
+
+        int count = collect(prefixMatches, null, results, 0);
+        collect(matches, prefixMatches, results, count);
+
+        int total = 0;
+        for(long bits : matches) {
+            total += Long.bitCount(bits);
+        }
+        return total;
+    }
+
+    /**
+     * @return the position of the bigram of the term contained in the fewest words or -1.
+     *         A single char term has no bigram and matches prefixes only.
+     */
+    private int findRarestBigram(String term) {
+        int rarest = -1;
+        for(int i = 0; i + 1 < term.length(); i ++) {
+            int position = Arrays.binarySearch(bigrams, getBigram(term, i));
+            if(position < 0)
+                return -1;
+
+            if(rarest < 0 || bigramStarts[position + 1] - bigramStarts[position] < bigramStarts[rarest + 1] - bigramStarts[rarest]) {
+                rarest = position;
+            }
+        }
+        return rarest;
+    }
+
+    private int lowerBound(String term) {
+        int low = 0;
+        int high = words.length;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(words[middle].compareTo(term) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void addPostings(int id, long[] bits) {
+        for(int i = postingStarts[id]; i < postingStarts[id + 1]; i ++) {
+            int track = postings[i];
+            bits[track >>> 6] |= 1L << (track & 63);
+        }
+    }
+
+    private static long[] and(long[] a, long[] b) {
+        for(int i = 0; i < a.length; i ++) {
+            a[i] &= b[i];
+        }
+        return a;
+    }
+
+    /**
+     * Appends the tracks in bits and not in excluded to the results from the offset.
+     * @return the offset next to the last appended track
+     */
+    private static int collect(long[] bits, long[] excluded, int[] results, int offset) {
+        for(int i = 0; i < bits.length && offset < results.length; i ++) {
+            long word = bits[i];
+            if(excluded != null) {
+                word &= ~excluded[i];
+            }
+            while(word != 0L && offset < results.length) {
+                int bit = Long.numberOfTrailingZeros(word);
+                results[offset ++] = (i << 6) + bit;
+                word &= word - 1L;
+            }
+        }
+        return offset;
+    }
+
+    public int getTrackCount() {
+        return trackCount;
+    }
+
+    public int getWordCount() {
+        return words.length;
+    }
+
+    public int getPostingCount() {
+        return postings.length;
+    }
+
+    /**
+     * @return the words of the track, e.g. to check an index against another one
+     */
+    public String[] getTrackWords(int track) {
+        String[] trackWords = new String[trackWordStarts[track + 1] - trackWordStarts[track]];
+        for(int i = 0; i < trackWords.length; i ++) {
+            trackWords[i] = words[this.trackWords[trackWordStarts[track] + i]];
+        }
+        return trackWords;
+    }
+}
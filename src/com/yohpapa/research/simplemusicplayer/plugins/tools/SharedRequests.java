@@ -0,0 +1,117 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets identical requests in flight share one query.
+ * A request may join a group only before its first result, so that it does not miss
+ * the first pages of a paged or chunked response, and never once the query of the
+ * group has been cancelled or superseded, so that it does not receive the cancellation
+ * meant for the earlier requests.
+ *
+ * @param <T> the request which the results are sent to
+ */
+public class SharedRequests<T> {
+
+    public class Group {
+        private final String key;
+        private final List<T> targets = new ArrayList<T>();
+        private boolean isStarted = false;
+        private boolean isFinished = false;
+        private boolean isCancelled = false;
+
+        private Group(String key, T leader) {
+            this.key = key;
+            this.targets.add(leader);
+        }
+
+        // Called with groups locked.
+        private boolean join(T follower) {
+            if(isStarted || isCancelled)
+                return false;
+
+            targets.add(follower);
+            return true;
+        }
+
+        /**
+         * @param isFinal whether the result is the last one of the query
+         * @return the requests to send the result to or null if the final result has already been sent
+         */
+        public List<T> deliver(boolean isFinal) {
+            synchronized(groups) {
+                if(isFinished)
+                    return null;
+
+                isStarted = true;
+                if(isFinal) {
+                    isFinished = true;
+                    leave();
+                }
+                return new ArrayList<T>(targets);
+            }
+        }
+
+        public boolean isFinished() {
+            synchronized(groups) {
+                return isFinished;
+            }
+        }
+
+        /**
+         * No request joins the group any more. The requests which have joined it
+         * still receive the results, including the cancellation.
+         */
+        public void cancel() {
+            synchronized(groups) {
+                isCancelled = true;
+                leave();
+            }
+        }
+
+        /**
+         * Removes the group, e.g. when its query has been rejected before it started.
+         */
+        public void leave() {
+            synchronized(groups) {
+                if(groups.get(key) == this) {
+                    groups.remove(key);
+                }
+            }
+        }
+    }
+
+    private final Map<String, Group> groups = new HashMap<String, Group>();
+    private final AtomicLong sharedCount = new AtomicLong(0L);
+
+    /**
+     * @return the group to run the query for or null if the request has joined an identical query in flight
+     */
+    public Group share(String key, T request) {
+        synchronized(groups) {
+            Group group = groups.get(key);
+            if(group != null && group.join(request)) {
+                sharedCount.incrementAndGet();
+                return null;
+            }
+
+            group = new Group(key, request);
+            groups.put(key, group);
+            return group;
+        }
+    }
+
+    public int size() {
+        synchronized(groups) {
+            return groups.size();
+        }
+    }
+
+    public long getSharedCount() {
+        return sharedCount.get();
+    }
+}
@@ -0,0 +1,168 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces the play state changes sent to the web UI, so that a burst of them,
+ * e.g. while Next is held down, crosses the bridge as one message per window.
+ *
+ * A message only has the values which differ from the previous message and a
+ * sequence number which grows by one per message, e.g. {seq: 12, index: 4}.
+ * The track is sent along with the state whenever its ID changes, so that a
+ * skip is a single message, e.g. {seq: 13, index: 5, track: {id: 42, ...}}.
+ * A full message has all the values and "full": true. It is sent first and
+ * after invalidate(), e.g. when the receiver may have missed some messages.
+ * A window whose changes cancel each other out sends nothing.
+ */
+public class StateBatcher {
+    private static final String TAG = StateBatcher.class.getSimpleName();
+
+    public interface Sink {
+        /**
+         * Called on the main thread.
+         */
+        void send(JSONObject message);
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final long windowMs;
+    private final Sink sink;
+
+    // Guarded by this.
+    private boolean hasValue = false;
+    private boolean isScheduled = false;
+    private boolean isFull = true;
+    private long albumId = -1L;
+    private int state = -1;
+    private int index = -1;
+    private long trackId = -1L;
+    private JSONObject track = null;
+
+    private long sentAlbumId = -1L;
+    private int sentState = -1;
+    private int sentIndex = -1;
+    private long sentTrackId = -1L;
+    private int sequence = 0;
+
+    private final AtomicLong updateCount;
+    private final AtomicLong messageCount;
+
+    private final Runnable flusher = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param windowMs how long the changes are collected before they are sent
+     */
+    public StateBatcher(long windowMs, Sink sink, AtomicLong updateCount, AtomicLong messageCount) {
+        this.windowMs = windowMs;
+        this.sink = sink;
+        this.updateCount = updateCount;
+        this.messageCount = messageCount;
+    }
+
+    public synchronized void update(long albumId, int state, int index) {
+        this.albumId = albumId;
+        this.state = state;
+        this.index = index;
+        hasValue = true;
+        updateCount.incrementAndGet();
+        schedule();
+    }
+
+    /**
+     * @param track the metadata of the track which is sent as it is
+     */
+    public synchronized void updateTrack(long trackId, JSONObject track) {
+        this.trackId = trackId;
+        this.track = track;
+        hasValue = true;
+        updateCount.incrementAndGet();
+        schedule();
+    }
+
+    /**
+     * Makes the next message a full one.
+     */
+    public synchronized void invalidate() {
+        isFull = true;
+        if(hasValue) {
+            schedule();
+        }
+    }
+
+    /**
+     * @return the sequence number of the last message
+     */
+    public synchronized int getSequence() {
+        return sequence;
+    }
+
+    public synchronized void cancel() {
+        handler.removeCallbacks(flusher);
+        isScheduled = false;
+    }
+
+    // Called with this locked.
+    private void schedule() {
+        if(isScheduled)
+            return;
+
+        isScheduled = true;
+        handler.postDelayed(flusher, windowMs);
+    }
+
+    private void flush() {
+        JSONObject message = new JSONObject();
+        try {
+            synchronized(this) {
+                isScheduled = false;
+                if(!hasValue)
+                    return;
+
+                if(isFull || albumId != sentAlbumId) {
+                    message.put("albumId", albumId);
+                }
+                if(isFull || state != sentState) {
+                    message.put("state", state);
+                }
+                if(isFull || index != sentIndex) {
+                    message.put("index", index);
+                }
+                if(track != null && (isFull || trackId != sentTrackId)) {
+                    message.put("track", track);
+                }
+                if(message.length() == 0)
+                    return;
+
+                if(isFull) {
+                    message.put("full", true);
+                }
+                sequence ++;
+                message.put("seq", sequence);
+
+                isFull = false;
+                sentAlbumId = albumId;
+                sentState = state;
+                sentIndex = index;
+                sentTrackId = trackId;
+            }
+        } catch(JSONException e) {
+            Log.e(TAG, e.toString());
+            return;
+        }
+
+        messageCount.incrementAndGet();
+        sink.send(message);
+    }
+}
@@ -0,0 +1,334 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Generates list sized album artwork thumbnails into an app private directory,
+ * so that the album list never loads the full size artwork files.
+ *
+ * A thumbnail file is named after the album ID and a hash of the artwork path,
+ * so a replaced artwork gets a new file. The files are evicted in least recently
+ * used order when their total size exceeds the limit.
+ *
+ * Thumbnails are generated lazily on a background thread. The most recent
+ * request is served first, since it is for the rows which are visible now.
+ */
+public class ThumbnailCache {
+    private static final String TAG = ThumbnailCache.class.getSimpleName();
+
+    private static final String SUFFIX = ".jpg";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int JPEG_QUALITY = 85;
+    private static final int BYTES_PER_PIXEL = 4;
+
+    public interface Callback {
+        /**
+         * @param thumbnailPaths the paths of the thumbnails in the order of the album IDs.
+         *                       An album without artwork has null.
+         */
+        void onThumbnails(long[] albumIds, String[] thumbnailPaths);
+    }
+
+    private static class Request {
+        public final long[] albumIds;
+        public final String[] artworkPaths;
+        public final Callback callback;
+
+        public Request(long[] albumIds, String[] artworkPaths, Callback callback) {
+            this.albumIds = albumIds;
+            this.artworkPaths = artworkPaths;
+            this.callback = callback;
+        }
+    }
+
+    private final File directory;
+    private final int size;
+    private final long maxBytes;
+
+    private final BitmapPool bitmaps;
+    private final ArtworkDecoder decoder;
+    private final ExecutorService generator = Executors.newSingleThreadExecutor();
+    private final LinkedList<Request> pending = new LinkedList<Request>();
+
+    // Sizes of the thumbnail files by name, in access order.
+    private final Map<String, Long> files = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalBytes = 0L;
+    private boolean isLoaded = false;
+
+    private long hits = 0L;
+    private long generateCount = 0L;
+    private long evictCount = 0L;
+    private final LatencyHistogram generateTime = new LatencyHistogram();
+
+    /**
+     * @param directory the directory which holds nothing but the thumbnails
+     * @param size the width and height of the thumbnails in pixels
+     * @param maxBytes the total size of the thumbnail files to keep
+     * @param bitmaps the pool which accounts for the bitmaps while a thumbnail is generated
+     */
+    public ThumbnailCache(File directory, int size, long maxBytes, BitmapPool bitmaps) {
+        this.directory = directory;
+        this.size = size;
+        this.maxBytes = maxBytes;
+        this.bitmaps = bitmaps;
+        this.decoder = new ArtworkDecoder(bitmaps);
+    }
+
+    /**
+     * @return the path of the thumbnail of the artwork or null if it has not been generated yet
+     *         or its file has gone, in which case it is generated again on the next request
+     */
+    public String getCachedPath(long albumId, String artworkPath) {
+        if(TextUtils.isEmpty(artworkPath))
+            return null;
+
+        String name = getName(albumId, artworkPath);
+        File file = new File(directory, name);
+        synchronized(files) {
+            if(!isLoaded || files.get(name) == null)
+                return null;
+
+            // The system may have cleared the cache directory.
+            if(!file.exists()) {
+                remove(name);
+                return null;
+            }
+
+            hits ++;
+        }
+        return file.getPath();
+    }
+
+    /**
+     * Generates the missing thumbnails in the background and calls back with all of them.
+     * The callback is called on the generator thread.
+     */
+    public void request(long[] albumIds, String[] artworkPaths, Callback callback) {
+        synchronized(pending) {
+            pending.addFirst(new Request(albumIds, artworkPaths, callback));
+        }
+
+        generator.execute(new Runnable() {
+            @Override
+            public void run() {
+                Request request;
+                synchronized(pending) {
+                    request = pending.poll();
+                }
+                if(request != null) {
+                    generate(request);
+                }
+            }
+        });
+    }
+
+    private void generate(Request request) {
+        load();
+
+        String[] thumbnailPaths = new String[request.albumIds.length];
+        for(int i = 0; i < request.albumIds.length; i ++) {
+            thumbnailPaths[i] = getOrGenerate(request.albumIds[i], request.artworkPaths[i]);
+        }
+        request.callback.onThumbnails(request.albumIds, thumbnailPaths);
+    }
+
+    private String getOrGenerate(long albumId, String artworkPath) {
+        String path = getCachedPath(albumId, artworkPath);
+        if(TextUtils.isEmpty(artworkPath))
+            return null;
+
+        if(path != null)
+            return path;
+
+        // The thumbnail lives until it has been written, so it counts against the bitmap budget.
+        long thumbnailBytes = (long)size * size * BYTES_PER_PIXEL;
+        if(!bitmaps.reserveScratch(thumbnailBytes)) {
+            Log.d(TAG, "No room for the thumbnail of " + albumId + ". " + bitmaps);
+            return null;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        Bitmap thumbnail = decoder.decode(artworkPath, size, size);
+        if(thumbnail == null) {
+            bitmaps.releaseScratch(thumbnailBytes);
+            return null;
+        }
+
+        String name = getName(albumId, artworkPath);
+        File file = new File(directory, name);
+        File temp = new File(directory, name + TEMP_SUFFIX);
+        FileOutputStream out = null;
+        boolean isWritten = false;
+        try {
+            out = new FileOutputStream(temp);
+            isWritten = thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } catch(IOException e) {
+            Log.e(TAG, e.toString());
+        } finally {
+            thumbnail.recycle();
+            bitmaps.releaseScratch(thumbnailBytes);
+            if(out != null) {
+                try {
+                    out.close();
+                } catch(IOException e) {
+                    Log.e(TAG, e.toString());
+                    isWritten = false;
+                }
+            }
+        }
+
+        // The WebView never sees a partially written file.
+        if(!isWritten || !temp.renameTo(file)) {
+            temp.delete();
+            return null;
+        }
+
+        long time = SystemClock.elapsedRealtime() - start;
+        generateTime.record(time);
+        synchronized(files) {
+            generateCount ++;
+            add(name, file.length());
+            trim();
+        }
+        Log.d(TAG, "Generated the thumbnail of " + albumId + " in " + time + "ms");
+        return file.getPath();
+    }
+
+    private static String getName(long albumId, String artworkPath) {
+        return albumId + "_" + Integer.toHexString(artworkPath.hashCode()) + SUFFIX;
+    }
+
+    /**
+     * Reads the existing files, oldest first. It is called on the generator thread only.
+     */
+    private void load() {
+        synchronized(files) {
+            if(isLoaded)
+                return;
+        }
+
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Cannot create " + directory);
+        }
+
+        File[] existing = directory.listFiles();
+        if(existing == null) {
+            existing = new File[0];
+        }
+        Arrays.sort(existing, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return (l < r) ? -1 : ((l == r) ? 0 : 1);
+            }
+        });
+
+        synchronized(files) {
+            for(File file : existing) {
+                if(file.getName().endsWith(SUFFIX)) {
+                    add(file.getName(), file.length());
+                } else {
+                    file.delete();
+                }
+            }
+            trim();
+            isLoaded = true;
+        }
+    }
+
+    // Called with files locked.
+    private void add(String name, long bytes) {
+        Long previous = files.put(name, bytes);
+        if(previous != null) {
+            totalBytes -= previous;
+        }
+        totalBytes += bytes;
+    }
+
+    // Called with files locked.
+    private void remove(String name) {
+        Long bytes = files.remove(name);
+        if(bytes != null) {
+            totalBytes -= bytes;
+        }
+    }
+
+    // Called with files locked.
+    private void trim() {
+        List<String> evicted = null;
+        Iterator<Map.Entry<String, Long>> iterator = files.entrySet().iterator();
+        while(totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            totalBytes -= eldest.getValue();
+            iterator.remove();
+            if(evicted == null) {
+                evicted = new ArrayList<String>();
+            }
+            evicted.add(eldest.getKey());
+        }
+        if(evicted == null)
+            return;
+
+        for(String name : evicted) {
+            new File(directory, name).delete();
+        }
+        evictCount += evicted.size();
+    }
+
+    public int getPendingCount() {
+        synchronized(pending) {
+            return pending.size();
+        }
+    }
+
+    public long getHitCount() {
+        synchronized(files) {
+            return hits;
+        }
+    }
+
+    public long getGenerateCount() {
+        synchronized(files) {
+            return generateCount;
+        }
+    }
+
+    public long getEvictCount() {
+        synchronized(files) {
+            return evictCount;
+        }
+    }
+
+    public long getTotalBytes() {
+        synchronized(files) {
+            return totalBytes;
+        }
+    }
+
+    public LatencyHistogram getGenerateTime() {
+        return generateTime;
+    }
+
+    public void shutdown() {
+        generator.shutdownNow();
+        decoder.clear();
+    }
+}
@@ -0,0 +1,188 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reads the beginning of the tracks which are likely to be played next, so that
+ * their pages are already in the page cache when MediaPlayer opens them.
+ * The reads run on one background thread and stay within an I/O budget per time window.
+ *
+ * It also records the prepare latency separately for prefetched and cold tracks.
+ */
+public class TrackPrefetcher {
+    private static final String TAG = TrackPrefetcher.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_REMEMBERED_TRACKS = 8;
+
+    private final ContentResolver resolver;
+    private final int readAheadBytes;
+    private final long budgetBytes;
+    private final long budgetWindowMs;
+
+    private final ExecutorService reader = Executors.newSingleThreadExecutor();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    // Tracks which have been requested, in the order of the requests.
+    private final Map<Long, Boolean> prefetched = new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > MAX_REMEMBERED_TRACKS;
+        }
+    };
+
+    private long windowStartedAt = 0L;
+    private long windowBytes = 0L;
+    private volatile long prefetchCount = 0L;
+    private volatile long overBudgetCount = 0L;
+
+    private final LatencyHistogram warmLatency = new LatencyHistogram();
+    private final LatencyHistogram coldLatency = new LatencyHistogram();
+
+    /**
+     * @param readAheadBytes the bytes read from the beginning of each track
+     * @param budgetBytes the bytes which may be read within one window
+     * @param budgetWindowMs the length of the window
+     */
+    public TrackPrefetcher(Context context, int readAheadBytes, long budgetBytes, long budgetWindowMs) {
+        this.resolver = context.getContentResolver();
+        this.readAheadBytes = readAheadBytes;
+        this.budgetBytes = budgetBytes;
+        this.budgetWindowMs = budgetWindowMs;
+    }
+
+    /**
+     * Reads the beginning of the track in the background unless it has been read recently.
+     */
+    public void prefetch(final long trackId) {
+        synchronized(prefetched) {
+            if(prefetched.containsKey(trackId))
+                return;
+
+            prefetched.put(trackId, Boolean.FALSE);
+        }
+
+        reader.execute(new Runnable() {
+            @Override
+            public void run() {
+                read(trackId);
+            }
+        });
+    }
+
+    private void read(long trackId) {
+        if(!reserve()) {
+            overBudgetCount ++;
+            Log.d(TAG, "The prefetch of " + trackId + " is over the budget.");
+            synchronized(prefetched) {
+                prefetched.remove(trackId);
+            }
+            return;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        Uri uri = ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, trackId);
+        InputStream in = null;
+        int total = 0;
+        try {
+            in = resolver.openInputStream(uri);
+            if(in == null)
+                return;
+
+            while(total < readAheadBytes) {
+                int read = in.read(buffer, 0, Math.min(buffer.length, readAheadBytes - total));
+                if(read < 0)
+                    break;
+                total += read;
+            }
+
+            synchronized(prefetched) {
+                if(prefetched.containsKey(trackId)) {
+                    prefetched.put(trackId, Boolean.TRUE);
+                }
+            }
+            prefetchCount ++;
+
+        } catch(IOException e) {
+            Log.e(TAG, e.toString());
+        } finally {
+            if(in != null) {
+                try {
+                    in.close();
+                } catch(IOException e) {
+                    Log.e(TAG, e.toString());
+                }
+            }
+        }
+        Log.d(TAG, "Prefetched " + total + " bytes of " + trackId + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    /**
+     * Reserves the read ahead bytes from the budget of the current window.
+     * It is called from the reader thread only.
+     */
+    private boolean reserve() {
+        long now = SystemClock.elapsedRealtime();
+        if(now - windowStartedAt >= budgetWindowMs) {
+            windowStartedAt = now;
+            windowBytes = 0L;
+        }
+
+        if(windowBytes + readAheadBytes > budgetBytes)
+            return false;
+
+        windowBytes += readAheadBytes;
+        return true;
+    }
+
+    public boolean isPrefetched(long trackId) {
+        synchronized(prefetched) {
+            Boolean isRead = prefetched.get(trackId);
+            return isRead != null && isRead;
+        }
+    }
+
+    /**
+     * Records how long it took to prepare the track.
+     */
+    public void recordPrepareLatency(long trackId, long latencyMs) {
+        if(isPrefetched(trackId)) {
+            warmLatency.record(latencyMs);
+        } else {
+            coldLatency.record(latencyMs);
+        }
+    }
+
+    public LatencyHistogram getWarmLatency() {
+        return warmLatency;
+    }
+
+    public LatencyHistogram getColdLatency() {
+        return coldLatency;
+    }
+
+    public long getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    public long getOverBudgetCount() {
+        return overBudgetCount;
+    }
+
+    public void shutdown() {
+        reader.shutdownNow();
+    }
+}
@@ -0,0 +1,242 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import android.provider.MediaStore;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Translates a track query from the web side into one MediaStore.Audio.Media query.
+ * Only the fields the caller has asked for are projected, and field names are
+ * looked up in a fixed table so that no caller string reaches the SQL except
+ * as a bound argument.
+ *
+ * The spec is a JSON object whose members are all optional:
+ *   fields: ["title", "artist", ...] (default all). "id" is always returned.
+ *   artist, album: exact match
+ *   minDuration, maxDuration: in milliseconds
+ *   titlePrefix: the beginning of the title
+ *   sort: ["artist", "-duration"] where a leading '-' sorts descending (default "title")
+ *   offset: the first row to return (default 0)
+ *   limit: the maximum number of rows to return (default 0, no limit)
+ */
+public class TrackQuery {
+
+    private static final int TYPE_STRING = 0;
+    private static final int TYPE_LONG = 1;
+    private static final int TYPE_INT = 2;
+
+    private static final String[] FIELDS = new String[] {
+        "id", "title", "artist", "album", "albumId", "duration", "track", "year",
+    };
+    private static final String[] COLUMNS = new String[] {
+        MediaStore.Audio.Media._ID,
+        MediaStore.Audio.Media.TITLE,
+        MediaStore.Audio.Media.ARTIST,
+        MediaStore.Audio.Media.ALBUM,
+        MediaStore.Audio.Media.ALBUM_ID,
+        MediaStore.Audio.Media.DURATION,
+        MediaStore.Audio.Media.TRACK,
+        MediaStore.Audio.Media.YEAR,
+    };
+    private static final int[] TYPES = new int[] {
+        TYPE_LONG, TYPE_STRING, TYPE_STRING, TYPE_STRING, TYPE_LONG, TYPE_LONG, TYPE_INT, TYPE_INT,
+    };
+    private static final int FIELD_ID = 0;
+    private static final int FIELD_TITLE = 1;
+
+    private static final char LIKE_ESCAPE = '\\';
+
+    private final int[] fields;
+    private final String[] projection;
+    private final String selection;
+    private final String[] selectionArgs;
+    private final String sortOrder;
+    private final int offset;
+    private final int limit;
+
+    private TrackQuery(int[] fields, String selection, String[] selectionArgs, String sortOrder, int offset, int limit) {
+        this.fields = fields;
+        this.projection = new String[fields.length];
+        for(int i = 0; i < fields.length; i ++) {
+            projection[i] = COLUMNS[fields[i]];
+        }
+        this.selection = selection;
+        this.selectionArgs = selectionArgs;
+        this.sortOrder = sortOrder;
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    /**
+     * @throws JSONException if the spec has an unknown field or sort key
+     */
+    public static TrackQuery parse(JSONObject spec) throws JSONException {
+        if(spec == null) {
+            spec = new JSONObject();
+        }
+
+        StringBuilder selection = new StringBuilder();
+        List<String> args = new ArrayList<String>();
+        if(spec.has("artist")) {
+            addCondition(selection, args, MediaStore.Audio.Media.ARTIST + "=?", spec.getString("artist"));
+        }
+        if(spec.has("album")) {
+            addCondition(selection, args, MediaStore.Audio.Media.ALBUM + "=?", spec.getString("album"));
+        }
+        if(spec.has("minDuration")) {
+            addCondition(selection, args, MediaStore.Audio.Media.DURATION + ">=?", String.valueOf(spec.getLong("minDuration")));
+        }
+        if(spec.has("maxDuration")) {
+            addCondition(selection, args, MediaStore.Audio.Media.DURATION + "<=?", String.valueOf(spec.getLong("maxDuration")));
+        }
+        if(spec.has("titlePrefix")) {
+            addCondition(selection, args,
+                         MediaStore.Audio.Media.TITLE + " LIKE ? ESCAPE '" + LIKE_ESCAPE + "'",
+                         escapeLike(spec.getString("titlePrefix")) + "%");
+        }
+
+        return new TrackQuery(
+                    parseFields(spec.optJSONArray("fields")),
+                    (selection.length() == 0) ? null : selection.toString(),
+                    args.isEmpty() ? null : args.toArray(new String[args.size()]),
+                    parseSortOrder(spec.optJSONArray("sort")),
+                    Math.max(0, spec.optInt("offset", 0)),
+                    spec.optInt("limit", 0));
+    }
+
+    private static int[] parseFields(JSONArray names) throws JSONException {
+        if(names == null) {
+            int[] all = new int[FIELDS.length];
+            for(int i = 0; i < all.length; i ++) {
+                all[i] = i;
+            }
+            return all;
+        }
+
+        // The ID comes first and every field appears only once.
+        boolean[] isRequested = new boolean[FIELDS.length];
+        isRequested[FIELD_ID] = true;
+        int count = 1;
+        for(int i = 0; i < names.length(); i ++) {
+            int field = findField(names.getString(i));
+            if(!isRequested[field]) {
+                isRequested[field] = true;
+                count ++;
+            }
+        }
+
+        int[] fields = new int[count];
+        int position = 0;
+        for(int field = 0; field < FIELDS.length; field ++) {
+            if(isRequested[field]) {
+                fields[position ++] = field;
+            }
+        }
+        return fields;
+    }
+
+    private static int findField(String name) throws JSONException {
+        for(int i = 0; i < FIELDS.length; i ++) {
+            if(FIELDS[i].equals(name))
+                return i;
+        }
+        throw new JSONException("Unknown field: " + name);
+    }
+
+    private static void addCondition(StringBuilder selection, List<String> args, String condition, String arg) {
+        if(selection.length() > 0) {
+            selection.append(" AND ");
+        }
+        selection.append(condition);
+        args.add(arg);
+    }
+
+    private static String escapeLike(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for(int i = 0; i < value.length(); i ++) {
+            char c = value.charAt(i);
+            if(c == '%' || c == '_' || c == LIKE_ESCAPE) {
+                escaped.append(LIKE_ESCAPE);
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    private static String parseSortOrder(JSONArray keys) throws JSONException {
+        StringBuilder sortOrder = new StringBuilder();
+        if(keys == null || keys.length() == 0) {
+            sortOrder.append(COLUMNS[FIELD_TITLE]).append(" ASC");
+        } else {
+            for(int i = 0; i < keys.length(); i ++) {
+                String key = keys.getString(i);
+                boolean isDescending = key.startsWith("-");
+                int field = findField(isDescending ? key.substring(1) : key);
+
+                if(i > 0) {
+                    sortOrder.append(", ");
+                }
+                sortOrder.append(COLUMNS[field]).append(isDescending ? " DESC" : " ASC");
+            }
+        }
+
+        // Keeps the order of equal rows stable across pages.
+        sortOrder.append(", ").append(COLUMNS[FIELD_ID]).append(" ASC");
+        return sortOrder.toString();
+    }
+
+    public String[] getProjection() {
+        return projection;
+    }
+
+    public String getSelection() {
+        return selection;
+    }
+
+    public String[] getSelectionArgs() {
+        return selectionArgs;
+    }
+
+    public String getSortOrder() {
+        return sortOrder;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the maximum number of rows or 0 or less if there is no limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param row a cursor queried with getProjection() and bound to it
+     * @return the current row with the requested fields
+     */
+    public JSONObject read(BoundProjection row) throws JSONException {
+        JSONObject obj = new JSONObject();
+        for(int column = 0; column < fields.length; column ++) {
+            int field = fields[column];
+            switch(TYPES[field]) {
+                case TYPE_LONG:
+                    obj.put(FIELDS[field], row.getLong(column));
+                    break;
+                case TYPE_INT:
+                    obj.put(FIELDS[field], row.getInt(column));
+                    break;
+                default:
+                    obj.put(FIELDS[field], row.getString(column));
+                    break;
+            }
+        }
+        return obj;
+    }
+}
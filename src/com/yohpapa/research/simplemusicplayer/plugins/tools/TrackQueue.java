@@ -0,0 +1,36 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+/**
+ * Holds the latest track ID list in the process so that it can be handed to
+ * PlaybackService by a handle instead of being parcelled into every intent.
+ */
+public class TrackQueue {
+
+    public static final int INVALID_HANDLE = -1;
+
+    private static int latestHandle = INVALID_HANDLE;
+    private static long[] latestTrackIds = null;
+
+    /**
+     * @return the handle to look the track IDs up later
+     */
+    public static synchronized int register(long[] trackIds) {
+        latestHandle ++;
+        if(latestHandle == INVALID_HANDLE) {
+            latestHandle ++;
+        }
+        latestTrackIds = trackIds;
+        return latestHandle;
+    }
+
+    /**
+     * @return the track IDs or null if the handle is not the latest one
+     *         or the process has been restarted since it was registered.
+     */
+    public static synchronized long[] get(int handle) {
+        if(handle == INVALID_HANDLE || handle != latestHandle)
+            return null;
+
+        return latestTrackIds;
+    }
+}
@@ -0,0 +1,99 @@
+package android.os;
+
+/**
+ * Stands in for the framework class on a plain JVM, where android.jar only has stubs
+ * which throw. It comes before android.jar on the classpath of the JVM tests.
+ * The messages wait in the Looper until the test runs them.
+ */
+public class Handler {
+
+    private final Looper looper;
+
+    public Handler() {
+        this(Looper.myLooper());
+    }
+
+    public Handler(Looper looper) {
+        if(looper == null)
+            throw new RuntimeException("Can't create handler inside thread that has not called Looper.prepare()");
+
+        this.looper = looper;
+    }
+
+    public final Looper getLooper() {
+        return looper;
+    }
+
+    public void handleMessage(Message msg) {}
+
+    public void dispatchMessage(Message msg) {
+        if(msg.callback != null) {
+            msg.callback.run();
+        } else {
+            handleMessage(msg);
+        }
+    }
+
+    public final Message obtainMessage() {
+        Message msg = Message.obtain();
+        msg.target = this;
+        return msg;
+    }
+
+    public final Message obtainMessage(int what) {
+        return obtainMessage(what, 0, 0, null);
+    }
+
+    public final Message obtainMessage(int what, Object obj) {
+        return obtainMessage(what, 0, 0, obj);
+    }
+
+    public final Message obtainMessage(int what, int arg1, int arg2, Object obj) {
+        Message msg = obtainMessage();
+        msg.what = what;
+        msg.arg1 = arg1;
+        msg.arg2 = arg2;
+        msg.obj = obj;
+        return msg;
+    }
+
+    public final boolean sendMessage(Message msg) {
+        return sendMessageAtTime(msg, SystemClock.uptimeMillis());
+    }
+
+    public final boolean sendEmptyMessage(int what) {
+        return sendMessage(obtainMessage(what));
+    }
+
+    public final boolean sendMessageDelayed(Message msg, long delayMillis) {
+        return sendMessageAtTime(msg, SystemClock.uptimeMillis() + Math.max(0L, delayMillis));
+    }
+
+    public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+        msg.target = this;
+        looper.enqueue(msg, uptimeMillis);
+        return true;
+    }
+
+    public final boolean post(Runnable r) {
+        return postAtTime(r, SystemClock.uptimeMillis());
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        return postAtTime(r, SystemClock.uptimeMillis() + Math.max(0L, delayMillis));
+    }
+
+    public final boolean postAtTime(Runnable r, long uptimeMillis) {
+        Message msg = obtainMessage();
+        msg.callback = r;
+        return sendMessageAtTime(msg, uptimeMillis);
+    }
+
+    public final void removeCallbacks(Runnable r) {
+        looper.remove(this, r, 0);
+    }
+
+    public final void removeMessages(int what) {
+        looper.remove(this, null, what);
+    }
+}
@@ -0,0 +1,101 @@
+package android.os;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stands in for the framework class on a plain JVM, where android.jar only has stubs
+ * which throw. It comes before android.jar on the classpath of the JVM tests.
+ *
+ * The main thread is the thread which loads the class. Nothing loops by itself:
+ * a test runs the messages on the main thread with runUntilIdle() or advance().
+ * The time of SystemClock.uptimeMillis() is virtual and only moves in advance(),
+ * so that delayed messages run in order without sleeping.
+ */
+public class Looper {
+
+    private static final Looper main = new Looper(Thread.currentThread());
+
+    public static Looper getMainLooper() {
+        return main;
+    }
+
+    public static Looper myLooper() {
+        return (Thread.currentThread() == main.thread) ? main : null;
+    }
+
+    private final Thread thread;
+    // Sorted by time, in the order of sending for the same time.
+    private final List<Message> queue = new ArrayList<Message>();
+    private long now = 0L;
+
+    private Looper(Thread thread) {
+        this.thread = thread;
+    }
+
+    public Thread getThread() {
+        return thread;
+    }
+
+    synchronized long now() {
+        return now;
+    }
+
+    synchronized void enqueue(Message msg, long when) {
+        msg.when = when;
+        int i = queue.size();
+        while(i > 0 && queue.get(i - 1).when > when) {
+            i --;
+        }
+        queue.add(i, msg);
+    }
+
+    synchronized void remove(Handler handler, Runnable callback, int what) {
+        for(int i = queue.size() - 1; i >= 0; i --) {
+            Message msg = queue.get(i);
+            if(msg.target != handler)
+                continue;
+
+            if(callback != null ? msg.callback == callback : (msg.callback == null && msg.what == what)) {
+                queue.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Runs the messages which are due now, including those they send for now.
+     */
+    public void runUntilIdle() {
+        advance(0L);
+    }
+
+    /**
+     * Moves the time forward, running each message which falls due at its own time.
+     */
+    public void advance(long ms) {
+        long until;
+        synchronized(this) {
+            until = now + ms;
+        }
+
+        while(true) {
+            Message msg;
+            synchronized(this) {
+                if(queue.isEmpty() || queue.get(0).when > until)
+                    break;
+
+                msg = queue.remove(0);
+                now = Math.max(now, msg.when);
+            }
+            msg.target.dispatchMessage(msg);
+        }
+
+        synchronized(this) {
+            now = until;
+        }
+    }
+
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,29 @@
+package android.os;
+
+/**
+ * Stands in for the framework class on a plain JVM, where android.jar only has stubs
+ * which throw. It comes before android.jar on the classpath of the JVM tests.
+ */
+public final class Message {
+
+    public int what;
+    public int arg1;
+    public int arg2;
+    public Object obj;
+
+    Handler target;
+    Runnable callback;
+    long when;
+
+    public static Message obtain() {
+        return new Message();
+    }
+
+    public Handler getTarget() {
+        return target;
+    }
+
+    public void sendToTarget() {
+        target.sendMessage(this);
+    }
+}
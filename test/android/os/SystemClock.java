@@ -0,0 +1,19 @@
+package android.os;
+
+/**
+ * Stands in for the framework class on a plain JVM, where android.jar only has stubs
+ * which throw. It comes before android.jar on the classpath of the JVM tests.
+ */
+public class SystemClock {
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    /**
+     * The virtual time of the main Looper, which a test moves with Looper.advance().
+     */
+    public static long uptimeMillis() {
+        return Looper.getMainLooper().now();
+    }
+}
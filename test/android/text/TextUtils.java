@@ -0,0 +1,12 @@
+package android.text;
+
+/**
+ * Stands in for the framework class on a plain JVM, where android.jar only has stubs
+ * which throw. It comes before android.jar on the classpath of the JVM tests.
+ */
+public class TextUtils {
+
+    public static boolean isEmpty(CharSequence str) {
+        return str == null || str.length() == 0;
+    }
+}
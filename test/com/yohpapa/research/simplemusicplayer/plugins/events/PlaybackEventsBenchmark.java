@@ -0,0 +1,280 @@
+/**
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package com.yohpapa.research.simplemusicplayer.plugins.events;
+
+import android.os.Looper;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * Checks the delivery of PlaybackEvents and compares its state listener path with
+ * the EventBus post() of a PlayStateChangedEvent, which PlaybackService made before.
+ *
+ * Both deliver to one subscriber on the posting thread. The allocation is measured
+ * per thread with com.sun.management.ThreadMXBean. The main Looper is the stand-in
+ * in test/android/os, which runs the posted messages when the test says so.
+ *
+ * java PlaybackEventsBenchmark
+ */
+public class PlaybackEventsBenchmark {
+
+    private static final int EVENTS = 1000000;
+    private static final int WARMUP_ROUNDS = 10;
+    private static final int ROUNDS = 15;
+
+    /**
+     * The event which PlaybackService posted to EventBus before PlaybackEvents.
+     */
+    public static class PlayStateChangedEvent {
+        private final int state;
+        private final int index;
+
+        public PlayStateChangedEvent(int state, int index) {
+            this.state = state;
+            this.index = index;
+        }
+
+        public int getState() {
+            return state;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+    }
+
+    // EventBus finds onEvent by reflection, so the class and the method must be public.
+    public static class BusSubscriber {
+        public long sum = 0L;
+
+        public void onEvent(PlayStateChangedEvent event) {
+            sum += event.getState() + event.getIndex();
+        }
+    }
+
+    private static class StateRecorder implements PlaybackEvents.StateListener {
+        public long sum = 0L;
+        public int calls = 0;
+        public int state = -1;
+        public int index = -1;
+        public int trackIndex = -1;
+        public long trackId = 0L;
+
+        @Override
+        public void onPlayStateChanged(int state, int index) {
+            sum += state + index;
+            calls ++;
+            this.state = state;
+            this.index = index;
+        }
+
+        @Override
+        public void onTrackChanged(int index, long trackId) {
+            calls ++;
+            this.trackIndex = index;
+            this.trackId = trackId;
+        }
+    }
+
+    private static class CommandRecorder implements PlaybackEvents.CommandListener {
+        public final StringBuilder log = new StringBuilder();
+        public Thread thread = null;
+
+        @Override
+        public void onPrepare(long[] trackIds, int startIndex) {
+            record("prepare" + Arrays.toString(trackIds) + "@" + startIndex);
+        }
+
+        @Override
+        public void onPlay() {
+            record("play");
+        }
+
+        @Override
+        public void onPause() {
+            record("pause");
+        }
+
+        @Override
+        public void onPlayPause() {
+            record("playpause");
+        }
+
+        private void record(String command) {
+            thread = Thread.currentThread();
+            log.append(command).append(';');
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        // The thread which touches Looper first is the main thread.
+        check(Looper.myLooper() == Looper.getMainLooper(), "The test does not run on the main Looper");
+
+        PlaybackEvents events = PlaybackEvents.getInstance();
+        testStateListeners(events);
+        testCommands(events);
+        benchmark(events);
+    }
+
+    private static void testStateListeners(PlaybackEvents events) {
+        check(events.getLastState() == -1, "A state before any was posted: " + events.getLastState());
+        check(events.getLastTrackId() == PlaybackEvents.NO_TRACK, "A track before any was posted");
+
+        StateRecorder first = new StateRecorder();
+        StateRecorder second = new StateRecorder();
+        events.addStateListener(first);
+        events.addStateListener(first);
+        events.addStateListener(second);
+
+        events.postPlayStateChanged(PlaybackEvents.STATE_PLAYING, 3);
+        check(first.calls == 1, "A listener added twice was called " + first.calls + " times");
+        check(first.state == PlaybackEvents.STATE_PLAYING && first.index == 3, "first: " + first.state + "@" + first.index);
+        check(second.state == PlaybackEvents.STATE_PLAYING && second.index == 3, "second: " + second.state + "@" + second.index);
+        check(events.getLastState() == PlaybackEvents.STATE_PLAYING && events.getLastIndex() == 3,
+              "last: " + events.getLastState() + "@" + events.getLastIndex());
+
+        events.postTrackChanged(3, 42L);
+        check(first.trackIndex == 3 && first.trackId == 42L, "track: " + first.trackId + "@" + first.trackIndex);
+        check(events.getLastTrackId() == 42L, "last track: " + events.getLastTrackId());
+
+        events.removeStateListener(first);
+        events.postPlayStateChanged(PlaybackEvents.STATE_PAUSED, 4);
+        events.postTrackChanged(-1, PlaybackEvents.NO_TRACK);
+        check(first.calls == 2, "A removed listener was called");
+        check(second.state == PlaybackEvents.STATE_PAUSED && second.index == 4, "second: " + second.state + "@" + second.index);
+        check(second.trackId == PlaybackEvents.NO_TRACK, "The stop did not reach the listener");
+        check(events.getLastTrackId() == PlaybackEvents.NO_TRACK, "last track after the stop: " + events.getLastTrackId());
+
+        events.removeStateListener(second);
+    }
+
+    private static void testCommands(final PlaybackEvents events) throws InterruptedException {
+        // A command before the service listens is kept for it, but a track list is not.
+        events.postPrepare(new long[] {1L}, 0);
+        events.postPause();
+        events.postPlay();
+        CommandRecorder recorder = new CommandRecorder();
+        events.setCommandListener(recorder);
+        checkLog(recorder, "play;");
+
+        // A command on the main thread is delivered right away.
+        events.postPlayPause();
+        checkLog(recorder, "play;playpause;");
+
+        // A command from another thread waits for the main Looper.
+        Thread poster = new Thread() {
+            @Override
+            public void run() {
+                events.postPrepare(new long[] {7L, 8L}, 1);
+                events.postPause();
+            }
+        };
+        poster.start();
+        poster.join();
+        checkLog(recorder, "play;playpause;");
+        check(Looper.getMainLooper().getQueueSize() == 2, "queued: " + Looper.getMainLooper().getQueueSize());
+
+        Looper.getMainLooper().runUntilIdle();
+        checkLog(recorder, "play;playpause;prepare[7, 8]@1;pause;");
+        check(recorder.thread == Looper.getMainLooper().getThread(), "A command was delivered on " + recorder.thread);
+
+        events.setCommandListener(null);
+    }
+
+    private static void benchmark(PlaybackEvents events) {
+        EventBus bus = new EventBus();
+        BusSubscriber subscriber = new BusSubscriber();
+        bus.register(subscriber);
+        StateRecorder listener = new StateRecorder();
+        events.addStateListener(listener);
+
+        for(int round = 0; round < WARMUP_ROUNDS; round ++) {
+            postToBus(bus);
+            postToListeners(events);
+        }
+        check(subscriber.sum == listener.sum, "EventBus delivered " + subscriber.sum + ", PlaybackEvents " + listener.sum);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long[] busTimes = new long[ROUNDS];
+        long[] listenerTimes = new long[ROUNDS];
+        long busBytes = 0L;
+        long listenerBytes = 0L;
+        for(int round = 0; round < ROUNDS; round ++) {
+            long allocated = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            postToBus(bus);
+            busTimes[round] = System.nanoTime() - start;
+            busBytes += threads.getThreadAllocatedBytes(threadId) - allocated;
+
+            allocated = threads.getThreadAllocatedBytes(threadId);
+            start = System.nanoTime();
+            postToListeners(events);
+            listenerTimes[round] = System.nanoTime() - start;
+            listenerBytes += threads.getThreadAllocatedBytes(threadId) - allocated;
+        }
+        check(subscriber.sum == listener.sum, "EventBus delivered " + subscriber.sum + ", PlaybackEvents " + listener.sum);
+
+        bus.unregister(subscriber);
+        events.removeStateListener(listener);
+
+        long busMedian = median(busTimes);
+        long listenerMedian = median(listenerTimes);
+        System.out.println(EVENTS + " state changes to one subscriber");
+        System.out.println(String.format("EventBus:       %.1f ns, %.1f bytes allocated per event",
+                                         (double)busMedian / EVENTS, (double)busBytes / ROUNDS / EVENTS));
+        System.out.println(String.format("PlaybackEvents: %.1f ns, %.1f bytes allocated per event",
+                                         (double)listenerMedian / EVENTS, (double)listenerBytes / ROUNDS / EVENTS));
+        System.out.println(String.format("speedup: %.1fx", (double)busMedian / listenerMedian));
+
+        // The listener path must not allocate per event. A few bytes per round are the measurement itself.
+        check(listenerBytes / ROUNDS < EVENTS / 100, "PlaybackEvents allocated " + listenerBytes / ROUNDS + " bytes per round");
+    }
+
+    private static void postToBus(EventBus bus) {
+        for(int i = 0; i < EVENTS; i ++) {
+            bus.post(new PlayStateChangedEvent(i & 1, i));
+        }
+    }
+
+    private static void postToListeners(PlaybackEvents events) {
+        for(int i = 0; i < EVENTS; i ++) {
+            events.postPlayStateChanged(i & 1, i);
+        }
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static void checkLog(CommandRecorder recorder, String expected) {
+        check(expected.equals(recorder.log.toString()), "Commands " + recorder.log + ", expected " + expected);
+    }
+
+    private static void check(boolean condition, String message) {
+        if(!condition)
+            throw new AssertionError(message);
+    }
+}
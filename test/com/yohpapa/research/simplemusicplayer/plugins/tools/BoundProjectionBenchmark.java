@@ -0,0 +1,104 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+/**
+ * Compares reading every field of a 100k row cursor through CursorHelper,
+ * which looks the column up by name per field, with BoundProjection,
+ * which resolves the columns once per cursor.
+ *
+ * Both loops must read the same values, so the benchmark fails if they do not.
+ */
+public class BoundProjectionBenchmark {
+
+    private static final int ROWS = 100000;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    // The columns of a track row as ListManager queries them, in a different order
+    // than the cursor has them so that the lookup is not a lucky first match.
+    private static final String[] CURSOR_COLUMNS = new String[] {
+        "_id", "album_id", "artist", "album", "track", "duration", "title",
+    };
+    private static final String[] PROJECTION = new String[] {
+        "_id", "title", "artist", "album", "duration", "track",
+    };
+    private static final int ID = 0;
+    private static final int TITLE = 1;
+    private static final int ARTIST = 2;
+    private static final int ALBUM = 3;
+    private static final int DURATION = 4;
+    private static final int TRACK = 5;
+
+    private static final FakeCursor.Rows ROW_VALUES = new FakeCursor.Rows() {
+        @Override
+        public Object get(int row, int column) {
+            switch(column) {
+                case 0: return (long)row;
+                case 1: return (long)(row / 12);
+                case 2: return "Artist " + (row % 97);
+                case 3: return "Album " + (row / 12);
+                case 4: return (long)(row % 12 + 1);
+                case 5: return (long)(180000 + row % 60000);
+                case 6: return "Title " + row;
+                default: return null;
+            }
+        }
+    };
+
+    public static void main(String[] args) {
+        FakeCursor cursor = new FakeCursor(CURSOR_COLUMNS, ROWS, ROW_VALUES);
+
+        long helperChecksum = 0L;
+        long boundChecksum = 0L;
+        for(int i = 0; i < WARMUP_ROUNDS; i ++) {
+            helperChecksum = readWithHelper(cursor);
+            boundChecksum = readWithBoundProjection(cursor);
+        }
+        if(helperChecksum != boundChecksum)
+            throw new AssertionError("The values differ: " + helperChecksum + " != " + boundChecksum);
+
+        long helperNs = Long.MAX_VALUE;
+        long boundNs = Long.MAX_VALUE;
+        for(int i = 0; i < ROUNDS; i ++) {
+            long start = System.nanoTime();
+            readWithHelper(cursor);
+            helperNs = Math.min(helperNs, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            readWithBoundProjection(cursor);
+            boundNs = Math.min(boundNs, System.nanoTime() - start);
+        }
+
+        System.out.println("CursorHelper:    " + helperNs / ROWS + " ns/row");
+        System.out.println("BoundProjection: " + boundNs / ROWS + " ns/row");
+        System.out.println("Speedup:         " + String.format("%.2f", (double)helperNs / boundNs) + "x");
+    }
+
+    private static long readWithHelper(FakeCursor cursor) {
+        long checksum = 0L;
+        cursor.moveToPosition(-1);
+        while(cursor.moveToNext()) {
+            checksum += CursorHelper.getLong(cursor, "_id");
+            checksum += CursorHelper.getString(cursor, "title").length();
+            checksum += CursorHelper.getString(cursor, "artist").length();
+            checksum += CursorHelper.getString(cursor, "album").length();
+            checksum += CursorHelper.getLong(cursor, "duration");
+            checksum += CursorHelper.getInt(cursor, "track");
+        }
+        return checksum;
+    }
+
+    private static long readWithBoundProjection(FakeCursor cursor) {
+        BoundProjection row = BoundProjection.bind(cursor, PROJECTION);
+        long checksum = 0L;
+        cursor.moveToPosition(-1);
+        while(cursor.moveToNext()) {
+            checksum += row.getLong(ID);
+            checksum += row.getString(TITLE).length();
+            checksum += row.getString(ARTIST).length();
+            checksum += row.getString(ALBUM).length();
+            checksum += row.getLong(DURATION);
+            checksum += row.getInt(TRACK);
+        }
+        return checksum;
+    }
+}
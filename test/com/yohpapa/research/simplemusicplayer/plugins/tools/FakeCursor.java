@@ -0,0 +1,148 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * An in-memory Cursor like MatrixCursor which runs on a plain JVM.
+ * The rows are generated from the row number, so a large cursor costs no memory.
+ */
+public class FakeCursor implements Cursor {
+
+    public interface Rows {
+        /**
+         * @return the value of the cell, which is a String, a Long or null
+         */
+        Object get(int row, int column);
+    }
+
+    private final String[] columns;
+    private final int count;
+    private final Rows rows;
+    private int position = -1;
+    private boolean isClosed = false;
+
+    public FakeCursor(String[] columns, int count, Rows rows) {
+        this.columns = columns;
+        this.count = count;
+        this.rows = rows;
+    }
+
+    private Object get(int column) {
+        if(position < 0 || position >= count)
+            throw new IllegalStateException("No row at " + position);
+        if(column < 0 || column >= columns.length)
+            throw new IllegalArgumentException("No column " + column);
+
+        return rows.get(position, column);
+    }
+
+    @Override public int getCount() { return count; }
+    @Override public int getPosition() { return position; }
+    @Override public boolean move(int offset) { return moveToPosition(position + offset); }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        if(position < 0) {
+            this.position = -1;
+            return false;
+        }
+        if(position >= count) {
+            this.position = count;
+            return false;
+        }
+        this.position = position;
+        return true;
+    }
+
+    @Override public boolean moveToFirst() { return moveToPosition(0); }
+    @Override public boolean moveToLast() { return moveToPosition(count - 1); }
+    @Override public boolean moveToNext() { return moveToPosition(position + 1); }
+    @Override public boolean moveToPrevious() { return moveToPosition(position - 1); }
+    @Override public boolean isFirst() { return count > 0 && position == 0; }
+    @Override public boolean isLast() { return count > 0 && position == count - 1; }
+    @Override public boolean isBeforeFirst() { return count == 0 || position == -1; }
+    @Override public boolean isAfterLast() { return count == 0 || position == count; }
+
+    @Override
+    public int getColumnIndex(String name) {
+        for(int i = 0; i < columns.length; i ++) {
+            if(columns[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String name) {
+        int index = getColumnIndex(name);
+        if(index < 0)
+            throw new IllegalArgumentException("No column " + name);
+        return index;
+    }
+
+    @Override public String getColumnName(int column) { return columns[column]; }
+    @Override public String[] getColumnNames() { return columns; }
+    @Override public int getColumnCount() { return columns.length; }
+
+    @Override
+    public String getString(int column) {
+        Object value = get(column);
+        return (value == null) ? null : value.toString();
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object value = get(column);
+        if(value == null)
+            return 0L;
+        if(value instanceof Number)
+            return ((Number)value).longValue();
+        return Long.parseLong(value.toString());
+    }
+
+    @Override public int getInt(int column) { return (int)getLong(column); }
+    @Override public short getShort(int column) { return (short)getLong(column); }
+    @Override public float getFloat(int column) { return (float)getDouble(column); }
+
+    @Override
+    public double getDouble(int column) {
+        Object value = get(column);
+        if(value == null)
+            return 0.0;
+        if(value instanceof Number)
+            return ((Number)value).doubleValue();
+        return Double.parseDouble(value.toString());
+    }
+
+    @Override
+    public int getType(int column) {
+        Object value = get(column);
+        if(value == null)
+            return FIELD_TYPE_NULL;
+        return (value instanceof Number) ? FIELD_TYPE_INTEGER : FIELD_TYPE_STRING;
+    }
+
+    @Override public boolean isNull(int column) { return get(column) == null; }
+    @Override public byte[] getBlob(int column) { throw new UnsupportedOperationException(); }
+    @Override public void copyStringToBuffer(int column, CharArrayBuffer buffer) { throw new UnsupportedOperationException(); }
+
+    @Override public void deactivate() {}
+    @Override public boolean requery() { return false; }
+    @Override public void close() { isClosed = true; }
+    @Override public boolean isClosed() { return isClosed; }
+
+    @Override public void registerContentObserver(ContentObserver observer) {}
+    @Override public void unregisterContentObserver(ContentObserver observer) {}
+    @Override public void registerDataSetObserver(DataSetObserver observer) {}
+    @Override public void unregisterDataSetObserver(DataSetObserver observer) {}
+    @Override public void setNotificationUri(ContentResolver resolver, Uri uri) {}
+    @Override public boolean getWantsAllOnMoveCalls() { return false; }
+    @Override public Bundle getExtras() { return null; }
+    @Override public Bundle respond(Bundle extras) { return null; }
+}
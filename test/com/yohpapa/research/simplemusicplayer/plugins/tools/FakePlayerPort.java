@@ -0,0 +1,67 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+/**
+ * A PlayerPort which records the calls instead of driving a MediaPlayer.
+ * The callbacks of the player, e.g. onPrepared, are fed by the test.
+ */
+public class FakePlayerPort implements PlaybackStateMachine.PlayerPort {
+
+    public interface ReadyListener {
+        void onReady();
+    }
+
+    public boolean failPrepare = false;
+    public ReadyListener readyListener = null;
+
+    public int prepareCalls = 0;
+    public int seekCalls = 0;
+    public int startCalls = 0;
+    public int pauseCalls = 0;
+    public int releaseCalls = 0;
+    public int readyCalls = 0;
+
+    public long preparedTrackId = -1L;
+    public int seekPosition = -1;
+    public long startedAt = 0L;
+
+    @Override
+    public boolean prepare(long trackId) {
+        prepareCalls ++;
+        preparedTrackId = trackId;
+        return !failPrepare;
+    }
+
+    @Override
+    public void seekTo(int position) {
+        seekCalls ++;
+        seekPosition = position;
+    }
+
+    @Override
+    public void start() {
+        startCalls ++;
+        startedAt = System.nanoTime();
+    }
+
+    @Override
+    public void pause() {
+        pauseCalls ++;
+    }
+
+    @Override
+    public void release() {
+        releaseCalls ++;
+    }
+
+    @Override
+    public void onReady() {
+        readyCalls ++;
+        if(readyListener != null) {
+            readyListener.onReady();
+        }
+    }
+
+    public int getCallCount() {
+        return prepareCalls + seekCalls + startCalls + pauseCalls + releaseCalls + readyCalls;
+    }
+}
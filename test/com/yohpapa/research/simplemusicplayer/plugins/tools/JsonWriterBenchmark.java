@@ -0,0 +1,381 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks the escaping and nesting of JsonWriter by parsing its output back, and compares
+ * the time and the allocation of writing 10k track rows with the JSONObject tree which
+ * ListManager built before.
+ *
+ * The JSONObject on the JVM is the stand-in in test/org/json, which keeps boxed values
+ * in a LinkedHashMap like the framework's. The allocation is measured per thread with
+ * com.sun.management.ThreadMXBean.
+ *
+ * java JsonWriterBenchmark [seed]
+ */
+public class JsonWriterBenchmark {
+
+    private static final int ROWS = 10000;
+    private static final int WARMUP_ROUNDS = 30;
+    private static final int ROUNDS = 30;
+    private static final int RANDOM_STRINGS = 20000;
+
+    public static void main(String[] args) throws JSONException {
+        long seed = (args.length > 0) ? Long.parseLong(args[0]) : System.nanoTime();
+        System.out.println("seed: " + seed);
+
+        testEscaping();
+        testNesting();
+        testRandomStrings(new Random(seed));
+        testReset();
+        benchmark(new Random(seed));
+        System.out.println("JsonWriterBenchmark passed");
+    }
+
+    private static void testEscaping() {
+        checkString("plain", "\"plain\"");
+        checkString("say \"hi\"", "\"say \\\"hi\\\"\"");
+        checkString("C:\\music", "\"C:\\\\music\"");
+        checkString("a\nb\rc\td", "\"a\\nb\\rc\\td\"");
+        checkString("\u0000\u0001\u001f", "\"\\u0000\\u0001\\u001f\"");
+        checkString("\b\f", "\"\\u0008\\u000c\"");
+        // Valid in JSON, but they end a JavaScript string literal.
+        checkString("line\u2028paragraph\u2029", "\"line\\u2028paragraph\\u2029\"");
+        // Not escaped: the slash, DEL and the rest of Unicode including surrogate pairs.
+        checkString("AC/DC \u007f \u00e9 \u3042 \ud83c\udfb5", "\"AC/DC \u007f \u00e9 \u3042 \ud83c\udfb5\"");
+        checkString("", "\"\"");
+
+        JsonWriter writer = new JsonWriter(16);
+        writer.beginObject().name("title").value((String)null).name("a\"b").value(1L).endObject();
+        checkEquals(writer.toString(), "{\"title\":null,\"a\\\"b\":1}");
+    }
+
+    private static void checkString(String value, String expected) {
+        JsonWriter writer = new JsonWriter(16);
+        writer.beginArray().value(value).endArray();
+        checkEquals(writer.toString(), "[" + expected + "]");
+    }
+
+    private static void testNesting() {
+        JsonWriter writer = new JsonWriter(16);
+        writer.beginObject()
+              .name("albums").beginArray()
+                  .beginObject()
+                      .name("id").value(1L)
+                      .name("tracks").beginArray()
+                          .beginObject().name("id").value(10L).endObject()
+                          .beginObject().name("id").value(11L).endObject()
+                      .endArray()
+                  .endObject()
+                  .beginObject().name("id").value(2L).name("tracks").beginArray().endArray().endObject()
+              .endArray()
+              .name("empty").beginObject().endObject()
+              .name("nested").beginArray().beginArray().value(-1L).value(true).endArray().beginArray().endArray().endArray()
+              .name("last").value(false)
+              .endObject();
+        checkEquals(writer.toString(),
+                    "{\"albums\":[{\"id\":1,\"tracks\":[{\"id\":10},{\"id\":11}]},{\"id\":2,\"tracks\":[]}]," +
+                    "\"empty\":{},\"nested\":[[-1,true],[]],\"last\":false}");
+
+        // The depth is bounded.
+        JsonWriter deep = new JsonWriter(16);
+        boolean isThrown = false;
+        try {
+            for(int i = 0; i < 100; i ++) {
+                deep.beginArray();
+            }
+        } catch(IllegalStateException e) {
+            isThrown = true;
+        }
+        check(isThrown, "Nesting is not bounded");
+
+        isThrown = false;
+        try {
+            new JsonWriter(16).endObject();
+        } catch(IllegalStateException e) {
+            isThrown = true;
+        }
+        check(isThrown, "An unbalanced end is accepted");
+    }
+
+    /**
+     * Any string, including every control char and lone surrogates, must parse back to itself.
+     */
+    private static void testRandomStrings(Random random) {
+        JsonWriter writer = new JsonWriter(16);
+        for(int i = 0; i < RANDOM_STRINGS; i ++) {
+            char[] chars = new char[random.nextInt(12)];
+            for(int j = 0; j < chars.length; j ++) {
+                int kind = random.nextInt(4);
+                if(kind == 0) {
+                    chars[j] = (char)random.nextInt(0x20);
+                } else if(kind == 1) {
+                    chars[j] = "\"\\/\u2028\u2029\u007f".charAt(random.nextInt(6));
+                } else {
+                    chars[j] = (char)random.nextInt(0x10000);
+                }
+            }
+            String value = new String(chars);
+            String name = (i % 7 == 0) ? value : "k";
+
+            writer.reset().beginObject().name(name).value(value).name("n").value(random.nextLong()).endObject();
+            String json = writer.toString();
+            for(int j = 0; j < json.length(); j ++) {
+                char c = json.charAt(j);
+                check(c >= 0x20 && c != 0x2028 && c != 0x2029, "An unescaped char " + (int)c + " in " + json);
+            }
+
+            Object parsed = new Parser(json).parse();
+            check(parsed instanceof Map, "Not an object: " + json);
+            check(value.equals(((Map<?, ?>)parsed).get(name)), "The string did not survive: " + json);
+        }
+        System.out.println("random strings: " + RANDOM_STRINGS + " parsed back");
+    }
+
+    private static void testReset() {
+        JsonWriter writer = new JsonWriter(16);
+        writer.beginObject().name("a").beginArray().value(1L);
+        writer.reset().beginArray().value(2L).endArray();
+        checkEquals(writer.toString(), "[2]");
+
+        // A buffer which has grown too large is not kept, but the writer still works.
+        writer.reset().beginArray();
+        char[] large = new char[1024 * 1024];
+        Arrays.fill(large, 'x');
+        writer.value(new String(large)).endArray();
+        writer.reset().beginArray().value(3L).endArray();
+        checkEquals(writer.toString(), "[3]");
+    }
+
+    private static void benchmark(Random random) throws JSONException {
+        long[] ids = new long[ROWS];
+        String[] titles = new String[ROWS];
+        String[] artists = new String[ROWS];
+        long[] durations = new long[ROWS];
+        for(int i = 0; i < ROWS; i ++) {
+            ids[i] = 100000L + random.nextInt(1000000);
+            titles[i] = "Title " + Long.toString(random.nextLong() & 0xffffffffffL, 36) + ((i % 50 == 0) ? " \"live\"" : "");
+            artists[i] = "Artist " + random.nextInt(500);
+            durations[i] = 60000L + random.nextInt(400000);
+        }
+
+        JsonWriter writer = new JsonWriter(16 * 1024);
+        String tree = writeTree(ids, titles, artists, durations);
+        String written = writeStream(writer, ids, titles, artists, durations);
+        checkEquals(new Parser(written).parse().toString(), new Parser(tree).parse().toString());
+
+        for(int round = 0; round < WARMUP_ROUNDS; round ++) {
+            writeTree(ids, titles, artists, durations);
+            writeStream(writer, ids, titles, artists, durations);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long[] treeTimes = new long[ROUNDS];
+        long[] streamTimes = new long[ROUNDS];
+        long treeBytes = 0L;
+        long streamBytes = 0L;
+        for(int round = 0; round < ROUNDS; round ++) {
+            long allocated = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            writeTree(ids, titles, artists, durations);
+            treeTimes[round] = System.nanoTime() - start;
+            treeBytes += threads.getThreadAllocatedBytes(threadId) - allocated;
+
+            allocated = threads.getThreadAllocatedBytes(threadId);
+            start = System.nanoTime();
+            writeStream(writer, ids, titles, artists, durations);
+            streamTimes[round] = System.nanoTime() - start;
+            streamBytes += threads.getThreadAllocatedBytes(threadId) - allocated;
+        }
+
+        long treeMedian = median(treeTimes);
+        long streamMedian = median(streamTimes);
+        System.out.println(ROWS + " rows, " + written.length() + " chars");
+        System.out.println(String.format("JSONObject tree: %.2fms, %d bytes allocated per row",
+                                         treeMedian / 1000000.0, treeBytes / ROUNDS / ROWS));
+        System.out.println(String.format("JsonWriter:      %.2fms, %d bytes allocated per row",
+                                         streamMedian / 1000000.0, streamBytes / ROUNDS / ROWS));
+        System.out.println(String.format("speedup: %.1fx", (double)treeMedian / streamMedian));
+    }
+
+    // The way ListManager wrote the tracks before JsonWriter.
+    private static String writeTree(long[] ids, String[] titles, String[] artists, long[] durations) throws JSONException {
+        JSONArray tracks = new JSONArray();
+        for(int i = 0; i < ids.length; i ++) {
+            JSONObject track = new JSONObject();
+            track.put("id", ids[i]);
+            track.put("title", titles[i]);
+            track.put("artist", artists[i]);
+            track.put("duration", durations[i]);
+            tracks.put(track);
+        }
+        JSONObject result = new JSONObject();
+        result.put("tracks", tracks);
+        return result.toString();
+    }
+
+    private static String writeStream(JsonWriter writer, long[] ids, String[] titles, String[] artists, long[] durations) {
+        writer.reset().beginObject().name("tracks").beginArray();
+        for(int i = 0; i < ids.length; i ++) {
+            writer.beginObject()
+                  .name("id").value(ids[i])
+                  .name("title").value(titles[i])
+                  .name("artist").value(artists[i])
+                  .name("duration").value(durations[i])
+                  .endObject();
+        }
+        writer.endArray().endObject();
+        return writer.toString();
+    }
+
+    /**
+     * A strict parser of the JSON text, for checking the output only.
+     * Objects become maps, arrays lists and numbers longs.
+     */
+    private static class Parser {
+        private final String text;
+        private int position = 0;
+
+        public Parser(String text) {
+            this.text = text;
+        }
+
+        public Object parse() {
+            Object value = parseValue();
+            require(position == text.length(), "Trailing text");
+            return value;
+        }
+
+        private Object parseValue() {
+            require(position < text.length(), "Unexpected end");
+            char c = text.charAt(position);
+            if(c == '{') {
+                position ++;
+                Map<String, Object> object = new LinkedHashMap<String, Object>();
+                if(peek('}'))
+                    return object;
+                do {
+                    String name = parseString();
+                    expect(':');
+                    object.put(name, parseValue());
+                } while(peek(','));
+                expect('}');
+                return object;
+            }
+            if(c == '[') {
+                position ++;
+                List<Object> array = new ArrayList<Object>();
+                if(peek(']'))
+                    return array;
+                do {
+                    array.add(parseValue());
+                } while(peek(','));
+                expect(']');
+                return array;
+            }
+            if(c == '"')
+                return parseString();
+            if(text.startsWith("null", position)) {
+                position += 4;
+                return null;
+            }
+            if(text.startsWith("true", position)) {
+                position += 4;
+                return Boolean.TRUE;
+            }
+            if(text.startsWith("false", position)) {
+                position += 5;
+                return Boolean.FALSE;
+            }
+
+            int start = position;
+            if(c == '-') {
+                position ++;
+            }
+            while(position < text.length() && Character.isDigit(text.charAt(position))) {
+                position ++;
+            }
+            require(position > start, "Unexpected char");
+            return Long.parseLong(text.substring(start, position));
+        }
+
+        private String parseString() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while(true) {
+                require(position < text.length(), "Unterminated string");
+                char c = text.charAt(position ++);
+                if(c == '"')
+                    return value.toString();
+                require(c >= 0x20, "A raw control char in a string");
+                if(c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+
+                char escape = text.charAt(position ++);
+                switch(escape) {
+                    case '"': value.append('"'); break;
+                    case '\\': value.append('\\'); break;
+                    case '/': value.append('/'); break;
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'u':
+                        value.append((char)Integer.parseInt(text.substring(position, position + 4), 16));
+                        position += 4;
+                        break;
+                    default:
+                        require(false, "An invalid escape");
+                }
+            }
+        }
+
+        private boolean peek(char c) {
+            if(position < text.length() && text.charAt(position) == c) {
+                position ++;
+                return true;
+            }
+            return false;
+        }
+
+        // The text is only put in the message on failure, since it may be long.
+        private void require(boolean condition, String message) {
+            if(!condition)
+                throw new AssertionError(message + " at " + position + ": " +
+                                         text.substring(Math.max(0, position - 40), Math.min(text.length(), position + 40)));
+        }
+
+        private void expect(char c) {
+            require(peek(c), "Expected " + c);
+        }
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static void checkEquals(String actual, String expected) {
+        check(expected.equals(actual), "Wrote " + actual + ", expected " + expected);
+    }
+
+    private static void check(boolean condition, String message) {
+        if(!condition)
+            throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,197 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Replays commands against a fake player and checks the net effect of each drain
+ * against a reference model which runs the commands one by one.
+ *
+ * java PlaybackCommandQueueTest [seed]
+ */
+public class PlaybackCommandQueueTest {
+
+    private static final int RANDOM_COMMANDS = 10000;
+    private static final int TRACKS = 4;
+    private static final int THREADS = 4;
+    private static final int COMMANDS_PER_THREAD = 20000;
+
+    /**
+     * Plays and pauses like the service: a toggle looks at the current state.
+     */
+    private static class FakePlayer implements PlaybackCommandQueue.Executor {
+        public long currentTrackId = 0L;
+        public boolean isPlaying = false;
+        public int playStateCalls = 0;
+        public int announceCalls = 0;
+
+        @Override public long getCurrentTrackId() { return currentTrackId; }
+        @Override public void play() { isPlaying = true; playStateCalls ++; }
+        @Override public void pause() { isPlaying = false; playStateCalls ++; }
+        @Override public void toggle() { isPlaying = !isPlaying; playStateCalls ++; }
+        @Override public void announceTrack() { announceCalls ++; }
+    }
+
+    private static class Posted {
+        public final int type;
+        public final long trackId;
+
+        public Posted(int type, long trackId) {
+            this.type = type;
+            this.trackId = trackId;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seed = (args.length > 0) ? Long.parseLong(args[0]) : System.nanoTime();
+        System.out.println("seed: " + seed);
+
+        testColdStart();
+        testRandomReplay(new Random(seed));
+        testConcurrentPosting(new Random(seed));
+        System.out.println("PlaybackCommandQueueTest passed");
+    }
+
+    /**
+     * The service restores the previous track, the play which started it arrives,
+     * and only then is the newly selected track prepared. The play must survive.
+     */
+    private static void testColdStart() {
+        PlaybackCommandQueue queue = new PlaybackCommandQueue();
+        FakePlayer player = new FakePlayer();
+
+        // Restored from the snapshot. Nothing has been selected yet, so the service posts for any track.
+        player.currentTrackId = 10L;
+        queue.post(PlaybackCommandQueue.COMMAND_TOGGLE, PlaybackCommandQueue.ANY_TRACK);
+
+        // ACTION_SELECT prepares another track and drains once it is ready.
+        player.currentTrackId = 20L;
+        queue.drain(player);
+        check(player.isPlaying, "The first play after a cold start has been dropped.");
+
+        // Once a track has been selected, a command for a track skipped since is still dropped.
+        queue.post(PlaybackCommandQueue.COMMAND_PAUSE, 20L);
+        player.currentTrackId = 30L;
+        queue.drain(player);
+        check(player.isPlaying, "A pause for a skipped track has been executed.");
+        check(queue.getDroppedCount() == 1L, "dropped: " + queue.getDroppedCount());
+    }
+
+    private static void testRandomReplay(Random random) {
+        PlaybackCommandQueue queue = new PlaybackCommandQueue();
+        FakePlayer player = new FakePlayer();
+        boolean expectedPlaying = false;
+        int expectedAnnounces = 0;
+        List<Posted> pending = new ArrayList<Posted>();
+
+        for(int i = 0; i < RANDOM_COMMANDS; i ++) {
+            int type = random.nextInt(4);
+            long trackId = random.nextInt(5) == 0 ? PlaybackCommandQueue.ANY_TRACK : random.nextInt(TRACKS);
+            queue.post(type, trackId);
+            pending.add(new Posted(type, trackId));
+
+            if(random.nextInt(8) == 0) {
+                player.currentTrackId = random.nextInt(TRACKS);
+            }
+            if(random.nextInt(6) != 0 && i != RANDOM_COMMANDS - 1)
+                continue;
+
+            // The reference runs every command for the current track in order.
+            boolean announce = false;
+            for(Posted command : pending) {
+                if(command.trackId != PlaybackCommandQueue.ANY_TRACK && command.trackId != player.currentTrackId)
+                    continue;
+
+                switch(command.type) {
+                    case PlaybackCommandQueue.COMMAND_PLAY:
+                        expectedPlaying = true;
+                        break;
+                    case PlaybackCommandQueue.COMMAND_PAUSE:
+                        expectedPlaying = false;
+                        break;
+                    case PlaybackCommandQueue.COMMAND_TOGGLE:
+                        expectedPlaying = !expectedPlaying;
+                        break;
+                    case PlaybackCommandQueue.COMMAND_ANNOUNCE_TRACK:
+                        announce = true;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if(announce) {
+                expectedAnnounces ++;
+            }
+            pending.clear();
+
+            int playStateCalls = player.playStateCalls;
+            int announceCalls = player.announceCalls;
+            queue.drain(player);
+
+            check(player.isPlaying == expectedPlaying, "playing: " + player.isPlaying + " after command " + i);
+            check(player.announceCalls == expectedAnnounces, "announces: " + player.announceCalls + " after command " + i);
+            check(player.playStateCalls - playStateCalls <= 1, "More than one play state call in a drain.");
+            check(player.announceCalls - announceCalls <= 1, "More than one announce in a drain.");
+            check(queue.isEmpty(), "The queue is not empty after a drain.");
+        }
+
+        checkCounts(queue);
+        System.out.println("random replay: posted " + queue.getPostedCount() +
+                           ", executed " + queue.getExecutedCount() +
+                           ", collapsed " + queue.getCollapsedCount() +
+                           ", dropped " + queue.getDroppedCount());
+    }
+
+    /**
+     * Posts from several threads while the consumer drains. No command may be lost.
+     */
+    private static void testConcurrentPosting(Random random) throws InterruptedException {
+        final PlaybackCommandQueue queue = new PlaybackCommandQueue();
+        final FakePlayer player = new FakePlayer();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+
+        for(int t = 0; t < THREADS; t ++) {
+            final long threadSeed = random.nextLong();
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(threadSeed);
+                    try {
+                        start.await();
+                        for(int i = 0; i < COMMANDS_PER_THREAD; i ++) {
+                            queue.post(random.nextInt(4), random.nextInt(TRACKS));
+                        }
+                    } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        start.countDown();
+        while(done.getCount() > 0) {
+            player.currentTrackId = random.nextInt(TRACKS);
+            queue.drain(player);
+        }
+        queue.drain(player);
+
+        check(queue.getPostedCount() == (long)THREADS * COMMANDS_PER_THREAD, "posted: " + queue.getPostedCount());
+        checkCounts(queue);
+    }
+
+    private static void checkCounts(PlaybackCommandQueue queue) {
+        long accounted = queue.getExecutedCount() + queue.getCollapsedCount() + queue.getDroppedCount();
+        check(accounted == queue.getPostedCount(),
+              "posted " + queue.getPostedCount() + " but accounted for " + accounted);
+    }
+
+    private static void check(boolean condition, String message) {
+        if(!condition)
+            throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,291 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks every (state, event) pair of PlaybackStateMachine, fuzzes random input
+ * sequences against a fake player and measures the command to start latency.
+ *
+ * java PlaybackStateMachineTest [seed]
+ */
+public class PlaybackStateMachineTest {
+
+    private static final int NUMBER_OF_STATES = 6;
+    private static final int NUMBER_OF_INPUTS = 12;
+    private static final int FUZZ_SEQUENCES = 2000;
+    private static final int FUZZ_LENGTH = 200;
+    private static final int LATENCY_ROUNDS = 100000;
+
+    private static final long TRACK_ID = 42L;
+    private static final int POSITION = 30000;
+
+    private static final String[] STATE_NAMES = new String[] {
+        "RELEASED", "IDLE", "PREPARING", "SEEKING", "PAUSED", "PLAYING",
+    };
+    private static final String[] INPUT_NAMES = new String[] {
+        "acquire", "prepare", "prepareToRestore", "onPrepared", "onSeekComplete",
+        "play", "pause", "onCompletion", "handOverPlaying", "handOverPaused", "onError", "seekTo",
+    };
+
+    public static void main(String[] args) {
+        long seed = (args.length > 0) ? Long.parseLong(args[0]) : System.nanoTime();
+        System.out.println("seed: " + seed);
+
+        testEveryTransition();
+        testSeekCompleteWhilePlaying();
+        testRelease();
+        testFuzz(new Random(seed));
+        benchmarkLatency();
+        System.out.println("PlaybackStateMachineTest passed");
+    }
+
+    /**
+     * Reaches every state, applies every input and checks the resulting state and the port calls.
+     */
+    private static void testEveryTransition() {
+        for(int state = 0; state < NUMBER_OF_STATES; state ++) {
+            for(int input = 0; input < NUMBER_OF_INPUTS; input ++) {
+                FakePlayerPort port = new FakePlayerPort();
+                PlaybackStateMachine machine = new PlaybackStateMachine(port);
+                reach(machine, port, state);
+
+                int calls = port.getCallCount();
+                boolean accepted = apply(machine, input);
+                int next = machine.getState();
+                String pair = "(" + STATE_NAMES[state] + ", " + INPUT_NAMES[input] + ")";
+
+                check(next >= 0 && next < NUMBER_OF_STATES, pair + " reached an undefined state " + next);
+                check(port.getCallCount() - calls <= 1, pair + " ran more than one action");
+                if(!accepted) {
+                    check(next == state, pair + " was ignored but moved to " + STATE_NAMES[next]);
+                    check(port.getCallCount() == calls, pair + " was ignored but drove the player");
+                }
+                if(state == PlaybackStateMachine.STATE_RELEASED && input != 0) {
+                    check(!accepted, pair + " was accepted by a released machine");
+                }
+                check(machine.isReady() == (next == PlaybackStateMachine.STATE_PAUSED ||
+                                            next == PlaybackStateMachine.STATE_PLAYING),
+                      pair + " isReady() does not match " + STATE_NAMES[next]);
+            }
+        }
+    }
+
+    /**
+     * A seek while playing must run the ready action exactly once, which drains the commands.
+     */
+    private static void testSeekCompleteWhilePlaying() {
+        FakePlayerPort port = new FakePlayerPort();
+        PlaybackStateMachine machine = new PlaybackStateMachine(port);
+        reach(machine, port, PlaybackStateMachine.STATE_PLAYING);
+
+        int ready = port.readyCalls;
+        check(machine.seekTo(0), "seekTo is not accepted while playing");
+        check(port.seekCalls == 1 && port.seekPosition == 0, "The player has not been seeked");
+        check(port.readyCalls == ready, "onReady ran before the seek completed");
+        check(machine.onSeekComplete(), "SEEK_COMPLETE is not accepted while playing");
+        check(port.readyCalls == ready + 1, "SEEK_COMPLETE while playing ran onReady " + (port.readyCalls - ready) + " times");
+        check(machine.isPlaying(), "SEEK_COMPLETE stopped the playback");
+
+        // A command queue drained from onReady runs a deferred play once.
+        final PlaybackCommandQueue queue = new PlaybackCommandQueue();
+        final int[] drained = new int[1];
+        port.readyListener = new FakePlayerPort.ReadyListener() {
+            @Override
+            public void onReady() {
+                drained[0] += queue.drain(new NullExecutor());
+            }
+        };
+        queue.post(PlaybackCommandQueue.COMMAND_PLAY, PlaybackCommandQueue.ANY_TRACK);
+        machine.onSeekComplete();
+        machine.onSeekComplete();
+        check(drained[0] == 1, "The deferred command ran " + drained[0] + " times");
+    }
+
+    private static void testRelease() {
+        FakePlayerPort port = new FakePlayerPort();
+        PlaybackStateMachine machine = new PlaybackStateMachine(port);
+        reach(machine, port, PlaybackStateMachine.STATE_PLAYING);
+
+        check(machine.release(POSITION), "release is not accepted while playing");
+        check(!machine.release(0), "release is accepted twice");
+        check(port.releaseCalls == 1, "released " + port.releaseCalls + " times");
+        check(machine.getPositionToRestore() == POSITION, "The position to restore is lost: " + machine.getPositionToRestore());
+
+        // The next player restores the position kept on release.
+        machine.acquire();
+        machine.prepare(TRACK_ID, machine.getPositionToRestore());
+        machine.onPrepared();
+        check(port.seekPosition == POSITION, "Seeked to " + port.seekPosition);
+        machine.onSeekComplete();
+        check(machine.getState() == PlaybackStateMachine.STATE_PAUSED, "Not paused after restoring");
+        check(machine.getPositionToRestore() == PlaybackStateMachine.NO_POSITION, "The position is restored twice");
+    }
+
+    /**
+     * Random inputs, including ones the player would never send in that state and ones
+     * fed back from the ready action, must always leave the machine in a defined state
+     * with the player driven consistently with it.
+     */
+    private static void testFuzz(Random random) {
+        long[] visits = new long[NUMBER_OF_STATES * NUMBER_OF_INPUTS];
+
+        for(int sequence = 0; sequence < FUZZ_SEQUENCES; sequence ++) {
+            final FakePlayerPort port = new FakePlayerPort();
+            final PlaybackStateMachine machine = new PlaybackStateMachine(port);
+            final Random feedback = new Random(random.nextLong());
+            port.failPrepare = random.nextInt(20) == 0;
+            port.readyListener = new FakePlayerPort.ReadyListener() {
+                @Override
+                public void onReady() {
+                    // Like the service draining a deferred play or pause.
+                    int choice = feedback.nextInt(4);
+                    if(choice == 0) {
+                        machine.play();
+                    } else if(choice == 1) {
+                        machine.pause();
+                    }
+                }
+            };
+
+            for(int step = 0; step < FUZZ_LENGTH; step ++) {
+                int state = machine.getState();
+                int input = random.nextInt(NUMBER_OF_INPUTS);
+                int starts = port.startCalls;
+                int pauses = port.pauseCalls;
+                int releases = port.releaseCalls;
+
+                apply(machine, input);
+                visits[state * NUMBER_OF_INPUTS + input] ++;
+
+                int next = machine.getState();
+                String context = "sequence " + sequence + " step " + step + ": (" +
+                                 STATE_NAMES[state] + ", " + INPUT_NAMES[input] + ")";
+                check(next >= 0 && next < NUMBER_OF_STATES, context + " reached an undefined state " + next);
+                if(port.startCalls > starts) {
+                    check(state == PlaybackStateMachine.STATE_PAUSED || state == PlaybackStateMachine.STATE_PLAYING ||
+                          state == PlaybackStateMachine.STATE_PREPARING || state == PlaybackStateMachine.STATE_SEEKING,
+                          context + " started a player which is not prepared");
+                }
+                if(port.startCalls > starts && port.pauseCalls == pauses) {
+                    check(next == PlaybackStateMachine.STATE_PLAYING, context + " started but is " + STATE_NAMES[next]);
+                }
+                if(state == PlaybackStateMachine.STATE_RELEASED) {
+                    check(port.releaseCalls == releases, context + " released a released player");
+                }
+            }
+        }
+
+        int unvisited = 0;
+        for(long count : visits) {
+            if(count == 0L) {
+                unvisited ++;
+            }
+        }
+        System.out.println("fuzz: " + FUZZ_SEQUENCES * FUZZ_LENGTH + " inputs, (state, input) pairs not visited: " + unvisited);
+    }
+
+    /**
+     * Measures the machine's own share of the command to audio latency: from a play
+     * command to MediaPlayer.start, directly when ready and deferred while preparing.
+     */
+    private static void benchmarkLatency() {
+        final FakePlayerPort port = new FakePlayerPort();
+        final PlaybackStateMachine machine = new PlaybackStateMachine(port);
+        final PlaybackCommandQueue queue = new PlaybackCommandQueue();
+        final PlaybackCommandQueue.Executor executor = new NullExecutor() {
+            @Override
+            public void play() {
+                machine.play();
+            }
+        };
+        port.readyListener = new FakePlayerPort.ReadyListener() {
+            @Override
+            public void onReady() {
+                queue.drain(executor);
+            }
+        };
+        machine.acquire();
+
+        long[] direct = new long[LATENCY_ROUNDS];
+        long[] deferred = new long[LATENCY_ROUNDS];
+        for(int i = 0; i < LATENCY_ROUNDS; i ++) {
+            // The play arrives while the track is being prepared.
+            machine.prepare(TRACK_ID + i, PlaybackStateMachine.NO_POSITION);
+            long start = System.nanoTime();
+            queue.post(PlaybackCommandQueue.COMMAND_PLAY, PlaybackCommandQueue.ANY_TRACK);
+            machine.onPrepared();
+            deferred[i] = port.startedAt - start;
+
+            machine.pause();
+            start = System.nanoTime();
+            machine.play();
+            direct[i] = port.startedAt - start;
+        }
+        check(port.startCalls == 2 * LATENCY_ROUNDS, "started " + port.startCalls + " times");
+
+        System.out.println("play to start when ready:     " + percentiles(direct));
+        System.out.println("play to start while preparing: " + percentiles(deferred));
+    }
+
+    private static String percentiles(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return "p50 " + sorted[sorted.length / 2] + "ns" +
+               ", p99 " + sorted[(int)(sorted.length * 0.99)] + "ns" +
+               ", max " + sorted[sorted.length - 1] + "ns";
+    }
+
+    private static void reach(PlaybackStateMachine machine, FakePlayerPort port, int state) {
+        boolean failPrepare = port.failPrepare;
+        port.failPrepare = false;
+        if(state >= PlaybackStateMachine.STATE_IDLE) {
+            machine.acquire();
+        }
+        if(state == PlaybackStateMachine.STATE_SEEKING) {
+            machine.prepare(TRACK_ID, POSITION);
+            machine.onPrepared();
+        } else if(state >= PlaybackStateMachine.STATE_PREPARING) {
+            machine.prepare(TRACK_ID, PlaybackStateMachine.NO_POSITION);
+        }
+        if(state >= PlaybackStateMachine.STATE_PAUSED) {
+            machine.onPrepared();
+        }
+        if(state == PlaybackStateMachine.STATE_PLAYING) {
+            machine.play();
+        }
+        port.failPrepare = failPrepare;
+        check(machine.getState() == state, "Cannot reach " + STATE_NAMES[state] + ", reached " + STATE_NAMES[machine.getState()]);
+    }
+
+    private static boolean apply(PlaybackStateMachine machine, int input) {
+        switch(input) {
+            case 0: return machine.acquire();
+            case 1: return machine.prepare(TRACK_ID, PlaybackStateMachine.NO_POSITION);
+            case 2: return machine.prepare(TRACK_ID, POSITION);
+            case 3: return machine.onPrepared();
+            case 4: return machine.onSeekComplete();
+            case 5: return machine.play();
+            case 6: return machine.pause();
+            case 7: return machine.onCompletion();
+            case 8: return machine.handOver(TRACK_ID + 1, true);
+            case 9: return machine.handOver(TRACK_ID + 1, false);
+            case 10: return machine.onError();
+            case 11: return machine.seekTo(0);
+            default: throw new IllegalArgumentException("input " + input);
+        }
+    }
+
+    private static class NullExecutor implements PlaybackCommandQueue.Executor {
+        @Override public long getCurrentTrackId() { return TRACK_ID; }
+        @Override public void play() {}
+        @Override public void pause() {}
+        @Override public void toggle() {}
+        @Override public void announceTrack() {}
+    }
+
+    private static void check(boolean condition, String message) {
+        if(!condition)
+            throw new AssertionError(message);
+    }
+}
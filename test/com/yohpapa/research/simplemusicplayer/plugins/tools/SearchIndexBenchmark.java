@@ -0,0 +1,422 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks SearchIndex against a brute force scan of the tokenized fields, checks that an
+ * incremental rebuild equals a full one, and measures both builds and the type-ahead
+ * queries on a synthetic corpus of 100k tracks.
+ *
+ * java SearchIndexBenchmark [seed]
+ */
+public class SearchIndexBenchmark {
+
+    private static final int TRACKS = 100000;
+    private static final int VOCABULARY = 20000;
+    private static final int ARTISTS = 2000;
+    private static final int ALBUMS = 10000;
+    private static final int CHECKED_TRACKS = 3000;
+    private static final int CHECKED_QUERIES = 2000;
+    private static final int CHANGED_PERCENT = 1;
+    private static final int BUILD_ROUNDS = 5;
+    private static final int QUERY_ROUNDS = 20000;
+    private static final int RESULTS = 50;
+
+    public static void main(String[] args) {
+        long seed = (args.length > 0) ? Long.parseLong(args[0]) : System.nanoTime();
+        System.out.println("seed: " + seed);
+
+        testFixedQueries();
+        testAgainstScan(new Random(seed));
+        testIncrementalBuild(new Random(seed));
+        benchmark(new Random(seed));
+        System.out.println("SearchIndexBenchmark passed");
+    }
+
+    private static void testFixedQueries() {
+        String[][] fields = new String[][] {
+            {"Let It Be", "Yesterday", "Help!", "Come Together", "Get Back"},
+            {"The Beatles", "The Beatles", "The Beatles", "The Beatles", "Billy Preston"},
+            {"Let It Be", "Help!", "Help!", "Abbey Road", "Let It Be"},
+        };
+        SearchIndex index = SearchIndex.build(fields);
+
+        // Prefixes.
+        checkResults(index, "bea", new int[] {0, 1, 2, 3});
+        checkResults(index, "BEAT", new int[] {0, 1, 2, 3});
+        checkResults(index, "be", new int[] {0, 1, 2, 3, 4});
+        checkResults(index, "l", new int[] {0, 4});
+        // Substrings: "eatl" is inside "beatles", "er" inside "yesterday" and "together".
+        checkResults(index, "eatl", new int[] {0, 1, 2, 3});
+        checkResults(index, "ack", new int[] {4});
+        checkResults(index, "er", new int[] {1, 3});
+        checkResults(index, "et", new int[] {0, 3, 4});
+        // A single char matches prefixes only: no word starts with "e".
+        checkResults(index, "e", new int[0]);
+        // "to" starts "together" and is inside "preston", so 3 comes first.
+        checkResults(index, "to", new int[] {3, 4});
+        // Every term has to match.
+        checkResults(index, "let be", new int[] {0, 4});
+        checkResults(index, "help beatles", new int[] {1, 2});
+        checkResults(index, "let preston", new int[] {4});
+        checkResults(index, "g et", new int[] {4});
+        checkResults(index, "xyz", new int[0]);
+        checkResults(index, "", new int[0]);
+
+        // Tracks matched by prefixes only come before the ones matched by substrings.
+        SearchIndex ordered = SearchIndex.build(new String[][] {{"Ballad", "Cabal", "Bale"}});
+        checkResults(ordered, "bal", new int[] {0, 2, 1});
+    }
+
+    private static void checkResults(SearchIndex index, String query, int[] expected) {
+        int[] results = new int[RESULTS];
+        int total = index.search(query, results);
+        int[] actual = Arrays.copyOf(results, Math.min(total, RESULTS));
+        check(Arrays.equals(actual, expected),
+              "\"" + query + "\" found " + Arrays.toString(actual) + ", expected " + Arrays.toString(expected));
+    }
+
+    /**
+     * Random prefix, substring and multi-term queries against a scan of every word of every track.
+     */
+    private static void testAgainstScan(Random random) {
+        Corpus corpus = new Corpus(random, CHECKED_TRACKS);
+        String[][] fields = corpus.getFields();
+        SearchIndex index = SearchIndex.build(fields);
+
+        String[][] trackWords = new String[CHECKED_TRACKS][];
+        for(int track = 0; track < CHECKED_TRACKS; track ++) {
+            List<String> words = new ArrayList<String>();
+            for(String[] field : fields) {
+                words.addAll(Arrays.asList(SearchIndex.tokenize(field[track])));
+            }
+            trackWords[track] = words.toArray(new String[words.size()]);
+        }
+
+        int[] results = new int[CHECKED_TRACKS];
+        int prefixQueries = 0;
+        int substringQueries = 0;
+        int multiTermQueries = 0;
+        for(int i = 0; i < CHECKED_QUERIES; i ++) {
+            int kind = i % 3;
+            String query;
+            if(kind == 0) {
+                query = corpus.randomPrefix(random);
+                prefixQueries ++;
+            } else if(kind == 1) {
+                query = corpus.randomSubstring(random);
+                substringQueries ++;
+            } else {
+                query = corpus.randomPrefix(random) + " " + corpus.randomSubstring(random);
+                multiTermQueries ++;
+            }
+
+            int[] expected = scan(trackWords, SearchIndex.tokenize(query));
+            int total = index.search(query, results);
+            check(total == expected.length, "\"" + query + "\" counted " + total + ", expected " + expected.length);
+            int[] actual = Arrays.copyOf(results, total);
+            check(Arrays.equals(actual, expected), "\"" + query + "\" found other tracks than the scan");
+        }
+        System.out.println("checked against a scan: " + prefixQueries + " prefix, " +
+                           substringQueries + " substring and " + multiTermQueries + " multi-term queries");
+    }
+
+    /**
+     * @return the tracks whose words match all the terms, the ones matched by prefixes first
+     */
+    private static int[] scan(String[][] trackWords, String[] terms) {
+        if(terms.length == 0)
+            return new int[0];
+
+        List<Integer> prefixed = new ArrayList<Integer>();
+        List<Integer> others = new ArrayList<Integer>();
+        for(int track = 0; track < trackWords.length; track ++) {
+            boolean isMatched = true;
+            boolean isPrefixed = true;
+            for(String term : terms) {
+                boolean hasPrefix = false;
+                boolean hasTerm = false;
+                for(String word : trackWords[track]) {
+                    if(word.startsWith(term)) {
+                        hasPrefix = true;
+                        hasTerm = true;
+                    } else if(term.length() > 1 && word.indexOf(term) > 0) {
+                        hasTerm = true;
+                    }
+                }
+                isMatched &= hasTerm;
+                isPrefixed &= hasPrefix;
+            }
+            if(isMatched) {
+                (isPrefixed ? prefixed : others).add(track);
+            }
+        }
+
+        int[] tracks = new int[prefixed.size() + others.size()];
+        int position = 0;
+        for(int track : prefixed) {
+            tracks[position ++] = track;
+        }
+        for(int track : others) {
+            tracks[position ++] = track;
+        }
+        return tracks;
+    }
+
+    /**
+     * A refresh which adds, removes and edits tracks must give the same index as a full build.
+     */
+    private static void testIncrementalBuild(Random random) {
+        Corpus corpus = new Corpus(random, CHECKED_TRACKS);
+        SearchIndex previous = SearchIndex.build(corpus.getFields());
+
+        for(int refresh = 0; refresh < 10; refresh ++) {
+            int[] previousPositions = corpus.refresh(random, 5 + refresh * 3);
+            String[][] fields = corpus.getFields();
+            SearchIndex incremental = SearchIndex.build(fields, previous, previousPositions);
+            SearchIndex full = SearchIndex.build(fields);
+
+            check(incremental.getTrackCount() == full.getTrackCount(), "track count: " + incremental.getTrackCount());
+            check(incremental.getWordCount() == full.getWordCount(),
+                  "words: " + incremental.getWordCount() + ", expected " + full.getWordCount());
+            check(incremental.getPostingCount() == full.getPostingCount(),
+                  "postings: " + incremental.getPostingCount() + ", expected " + full.getPostingCount());
+            for(int track = 0; track < full.getTrackCount(); track ++) {
+                check(Arrays.equals(incremental.getTrackWords(track), full.getTrackWords(track)),
+                      "The words of track " + track + " differ after refresh " + refresh);
+            }
+
+            int[] expected = new int[RESULTS];
+            int[] actual = new int[RESULTS];
+            for(int i = 0; i < 200; i ++) {
+                String query = (i % 2 == 0) ? corpus.randomPrefix(random) : corpus.randomSubstring(random);
+                int expectedTotal = full.search(query, expected);
+                int actualTotal = incremental.search(query, actual);
+                check(actualTotal == expectedTotal && Arrays.equals(actual, expected),
+                      "\"" + query + "\" differs after refresh " + refresh);
+            }
+            previous = incremental;
+        }
+
+        // Nothing changed: the tables are reused as they are.
+        int[] unchanged = corpus.refresh(random, 0);
+        SearchIndex same = SearchIndex.build(corpus.getFields(), previous, unchanged);
+        check(same.getWordCount() == previous.getWordCount(), "An unchanged refresh changed the words");
+        System.out.println("incremental builds equal full builds");
+    }
+
+    private static void benchmark(Random random) {
+        Corpus corpus = new Corpus(random, TRACKS);
+        String[][] fields = corpus.getFields();
+
+        SearchIndex index = null;
+        long[] fullTimes = new long[BUILD_ROUNDS];
+        for(int round = 0; round < BUILD_ROUNDS; round ++) {
+            long start = System.nanoTime();
+            index = SearchIndex.build(fields);
+            fullTimes[round] = System.nanoTime() - start;
+        }
+
+        long[] incrementalTimes = new long[BUILD_ROUNDS];
+        long[] unchangedTimes = new long[BUILD_ROUNDS];
+        for(int round = 0; round < BUILD_ROUNDS; round ++) {
+            int[] previousPositions = corpus.refresh(random, TRACKS * CHANGED_PERCENT / 100);
+            String[][] next = corpus.getFields();
+            long start = System.nanoTime();
+            SearchIndex rebuilt = SearchIndex.build(next, index, previousPositions);
+            incrementalTimes[round] = System.nanoTime() - start;
+            index = rebuilt;
+
+            previousPositions = corpus.refresh(random, 0);
+            start = System.nanoTime();
+            index = SearchIndex.build(corpus.getFields(), index, previousPositions);
+            unchangedTimes[round] = System.nanoTime() - start;
+        }
+
+        System.out.println("corpus: " + index.getTrackCount() + " tracks, " + index.getWordCount() +
+                           " words, " + index.getPostingCount() + " postings");
+        System.out.println("full build:                  " + medianMs(fullTimes));
+        System.out.println("rebuild, " + CHANGED_PERCENT + "% tracks changed: " + medianMs(incrementalTimes));
+        System.out.println("rebuild, nothing changed:    " + medianMs(unchangedTimes));
+
+        int[] results = new int[RESULTS];
+        for(int length = 1; length <= 4; length ++) {
+            long[] prefixTimes = new long[QUERY_ROUNDS];
+            long[] substringTimes = new long[QUERY_ROUNDS];
+            long[] multiTermTimes = new long[QUERY_ROUNDS];
+            for(int i = 0; i < QUERY_ROUNDS; i ++) {
+                String prefix = corpus.randomPrefix(random, length);
+                String substring = corpus.randomSubstring(random, length);
+                String multiTerm = corpus.randomPrefix(random, length) + " " + corpus.randomPrefix(random, length);
+
+                long start = System.nanoTime();
+                index.search(prefix, results);
+                prefixTimes[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                index.search(substring, results);
+                substringTimes[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                index.search(multiTerm, results);
+                multiTermTimes[i] = System.nanoTime() - start;
+            }
+            System.out.println(length + " chars: prefix " + percentiles(prefixTimes) +
+                               " | substring " + percentiles(substringTimes) +
+                               " | two terms " + percentiles(multiTermTimes));
+        }
+    }
+
+    /**
+     * Titles, artists and album names made of words from a fixed vocabulary.
+     */
+    private static class Corpus {
+        private static final char[] LETTERS = "abcdefghijklmnopqrstuvwxyz".toCharArray();
+
+        private final String[] vocabulary = new String[VOCABULARY];
+        private final String[] artists = new String[ARTISTS];
+        private final String[] albums = new String[ALBUMS];
+        private List<String[]> tracks = new ArrayList<String[]>();
+        private int nextWord = 0;
+
+        public Corpus(Random random, int trackCount) {
+            for(int i = 0; i < VOCABULARY; i ++) {
+                vocabulary[i] = randomWord(random);
+            }
+            for(int i = 0; i < ARTISTS; i ++) {
+                artists[i] = words(random, 1 + random.nextInt(2));
+            }
+            for(int i = 0; i < ALBUMS; i ++) {
+                albums[i] = words(random, 1 + random.nextInt(3));
+            }
+            for(int i = 0; i < trackCount; i ++) {
+                tracks.add(randomTrack(random));
+            }
+        }
+
+        private static String randomWord(Random random) {
+            char[] word = new char[3 + random.nextInt(8)];
+            for(int i = 0; i < word.length; i ++) {
+                word[i] = LETTERS[random.nextInt(LETTERS.length)];
+            }
+            return new String(word);
+        }
+
+        private String words(Random random, int count) {
+            StringBuilder text = new StringBuilder();
+            for(int i = 0; i < count; i ++) {
+                if(i > 0) {
+                    text.append(' ');
+                }
+                // Skewed towards the first words, like a real vocabulary.
+                int index = (int)(VOCABULARY * Math.pow(random.nextDouble(), 3.0));
+                String word = vocabulary[index];
+                text.append((random.nextInt(4) == 0) ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word);
+            }
+            return text.toString();
+        }
+
+        private String[] randomTrack(Random random) {
+            return new String[] {
+                words(random, 1 + random.nextInt(4)),
+                artists[random.nextInt(ARTISTS)],
+                albums[random.nextInt(ALBUMS)],
+            };
+        }
+
+        /**
+         * Removes, edits and adds the given number of tracks each, and shuffles some of the rest
+         * like a query ordered by album would after an album has changed.
+         * @return the previous position of each track or CHANGED
+         */
+        public int[] refresh(Random random, int changes) {
+            List<int[]> order = new ArrayList<int[]>();
+            List<String[]> next = new ArrayList<String[]>();
+            for(int i = 0; i < tracks.size(); i ++) {
+                next.add(tracks.get(i));
+                order.add(new int[] {i});
+            }
+            for(int i = 0; i < changes && !next.isEmpty(); i ++) {
+                int removed = random.nextInt(next.size());
+                next.remove(removed);
+                order.remove(removed);
+
+                int edited = random.nextInt(next.size());
+                String[] track = next.get(edited).clone();
+                // Now and then a word the library has never had.
+                track[0] = (random.nextInt(3) == 0) ? track[0] + " " + randomWord(random) + (nextWord ++) : words(random, 2);
+                next.set(edited, track);
+                order.set(edited, new int[] {SearchIndex.CHANGED});
+
+                int added = random.nextInt(next.size() + 1);
+                next.add(added, randomTrack(random));
+                order.add(added, new int[] {SearchIndex.CHANGED});
+            }
+            if(changes > 0 && next.size() > 1) {
+                int a = random.nextInt(next.size());
+                int b = random.nextInt(next.size());
+                next.add(b, next.remove(a));
+                order.add(b, order.remove(a));
+            }
+
+            tracks = next;
+            int[] previousPositions = new int[order.size()];
+            for(int i = 0; i < previousPositions.length; i ++) {
+                previousPositions[i] = order.get(i)[0];
+            }
+            return previousPositions;
+        }
+
+        public String[][] getFields() {
+            String[][] fields = new String[3][tracks.size()];
+            for(int i = 0; i < tracks.size(); i ++) {
+                String[] track = tracks.get(i);
+                fields[0][i] = track[0];
+                fields[1][i] = track[1];
+                fields[2][i] = track[2];
+            }
+            return fields;
+        }
+
+        public String randomPrefix(Random random) {
+            return randomPrefix(random, 1 + random.nextInt(5));
+        }
+
+        public String randomPrefix(Random random, int length) {
+            String word = vocabulary[random.nextInt(VOCABULARY)];
+            return word.substring(0, Math.min(length, word.length()));
+        }
+
+        public String randomSubstring(Random random) {
+            return randomSubstring(random, 2 + random.nextInt(3));
+        }
+
+        public String randomSubstring(Random random, int length) {
+            String word = vocabulary[random.nextInt(VOCABULARY)];
+            int end = Math.min(word.length(), 1 + length);
+            return word.substring(Math.min(1, end - 1), end);
+        }
+    }
+
+    private static String medianMs(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return String.format("%.1fms", sorted[sorted.length / 2] / 1000000.0);
+    }
+
+    private static String percentiles(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return String.format("p50 %.3fms, p99 %.3fms",
+                             sorted[sorted.length / 2] / 1000000.0,
+                             sorted[(int)(sorted.length * 0.99)] / 1000000.0);
+    }
+
+    private static void check(boolean condition, String message) {
+        if(!condition)
+            throw new AssertionError(message);
+    }
+}
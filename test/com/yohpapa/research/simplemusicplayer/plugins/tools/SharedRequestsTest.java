@@ -0,0 +1,179 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs shared requests through a QueryExecutor the way ListManager does, including
+ * a request which comes back after its query has been superseded.
+ *
+ * java SharedRequestsTest
+ */
+public class SharedRequestsTest {
+
+    private static final String CHANNEL = "track_info";
+    private static final String CANCELLED = "cancelled";
+    private static final long TIMEOUT_MS = 5000L;
+
+    /**
+     * A request from JavaScript, which records the results sent to it.
+     */
+    private static class Request {
+        public final String name;
+        public final List<String> results = new ArrayList<String>();
+        public boolean isFinished = false;
+
+        public Request(String name) {
+            this.name = name;
+        }
+
+        public synchronized void send(String result, boolean isFinal) {
+            check(!isFinished, name + " received " + result + " after its final result");
+            results.add(result);
+            isFinished = isFinal;
+            notifyAll();
+        }
+
+        public synchronized void await() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while(!isFinished) {
+                long rest = deadline - System.currentTimeMillis();
+                check(rest > 0L, name + " has not received its final result");
+                wait(rest);
+            }
+        }
+    }
+
+    /**
+     * Like CallbackQuery: waits until released, then sends the tracks of its album to the group.
+     */
+    private static class TrackQuery extends QueryExecutor.Query {
+        private final SharedRequests<Request>.Group group;
+        private final String albumId;
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch released;
+
+        public TrackQuery(SharedRequests<Request>.Group group, String albumId, CountDownLatch released) {
+            this.group = group;
+            this.albumId = albumId;
+            this.released = released;
+        }
+
+        @Override
+        protected void execute() {
+            started.countDown();
+            try {
+                released.await();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if(!isCancelled()) {
+                send(albumId);
+            }
+        }
+
+        @Override
+        protected boolean isDelivered() {
+            return group.isFinished();
+        }
+
+        @Override
+        protected void onCancel() {
+            group.cancel();
+        }
+
+        @Override
+        protected void onCancelled() {
+            send(CANCELLED);
+        }
+
+        private void send(String result) {
+            List<Request> receivers = group.deliver(true);
+            if(receivers == null)
+                return;
+
+            for(Request receiver : receivers) {
+                receiver.send(result, true);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        testJoin();
+        testSupersedeThenRejoin();
+        System.out.println("SharedRequestsTest passed");
+    }
+
+    private static void testJoin() {
+        SharedRequests<Request> requests = new SharedRequests<Request>();
+        Request leader = new Request("leader");
+        Request follower = new Request("follower");
+        Request late = new Request("late");
+
+        SharedRequests<Request>.Group group = requests.share("get_album_info[]", leader);
+        check(group != null, "The first request has no group");
+        check(requests.share("get_album_info[]", follower) == null, "An identical request did not join before the first result");
+
+        // A request after the first page would miss it, so it runs its own query.
+        List<Request> receivers = group.deliver(false);
+        check(receivers.size() == 2, "The first page went to " + receivers.size() + " requests");
+        SharedRequests<Request>.Group own = requests.share("get_album_info[]", late);
+        check(own != null && own != group, "A request joined after the first result");
+
+        check(group.deliver(true).size() == 2, "The last page did not go to both requests");
+        check(group.deliver(true) == null, "A result was sent after the final one");
+        check(group.isFinished(), "The group is not finished");
+
+        own.deliver(true);
+        check(requests.size() == 0, "Groups left in flight: " + requests.size());
+        check(requests.getSharedCount() == 1L, "shared: " + requests.getSharedCount());
+    }
+
+    /**
+     * get_track_info[5] runs, get_track_info[6] supersedes it and get_track_info[5] comes back.
+     * The third request must run its own query and supersede [6], not join the cancelled one.
+     */
+    private static void testSupersedeThenRejoin() throws InterruptedException {
+        QueryExecutor executor = new QueryExecutor(2, 4);
+        SharedRequests<Request> requests = new SharedRequests<Request>();
+        CountDownLatch released = new CountDownLatch(1);
+        Request first = new Request("[5]");
+        Request second = new Request("[6]");
+        Request third = new Request("[5] again");
+
+        // The executor's threads would keep the JVM alive after a failed check.
+        try {
+            TrackQuery firstQuery = new TrackQuery(requests.share("get_track_info[5]", first), "5", released);
+            executor.submit(CHANNEL, firstQuery);
+            check(firstQuery.started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS), "The first query has not started");
+
+            executor.submit(CHANNEL, new TrackQuery(requests.share("get_track_info[6]", second), "6", released));
+
+            SharedRequests<Request>.Group group = requests.share("get_track_info[5]", third);
+            check(group != null, "The request joined the superseded query");
+            executor.submit(CHANNEL, new TrackQuery(group, "5", released));
+
+            released.countDown();
+            first.await();
+            second.await();
+            third.await();
+        } finally {
+            released.countDown();
+            executor.shutdown();
+        }
+
+        check(first.results.size() == 1 && CANCELLED.equals(first.results.get(0)), "[5]: " + first.results);
+        check(second.results.size() == 1 && CANCELLED.equals(second.results.get(0)), "[6]: " + second.results);
+        check(third.results.size() == 1 && "5".equals(third.results.get(0)), "[5] again: " + third.results);
+        check(requests.size() == 0, "Groups left in flight: " + requests.size());
+        check(requests.getSharedCount() == 0L, "shared: " + requests.getSharedCount());
+    }
+
+    private static void check(boolean condition, String message) {
+        if(!condition)
+            throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,273 @@
+package com.yohpapa.research.simplemusicplayer.plugins.tools;
+
+import android.os.Looper;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks the messages of StateBatcher and counts how many of them a skip storm sends
+ * per second, on the main Looper of test/android/os whose clock is virtual.
+ *
+ * java StateBatcherTest
+ */
+public class StateBatcherTest {
+
+    // PlaybackController's window.
+    private static final long WINDOW_MS = 16L;
+    private static final long ALBUM_ID = 7L;
+    private static final int PLAYING = 0;
+    private static final int PAUSED = 1;
+
+    private static final long STORM_MS = 10000L;
+    private static final long SKIP_INTERVAL_MS = 33L;
+    private static final long BURST_INTERVAL_MS = 100L;
+    private static final int BURST_SIZE = 5;
+
+    private static class RecordingSink implements StateBatcher.Sink {
+        public final List<JSONObject> messages = new ArrayList<JSONObject>();
+
+        @Override
+        public void send(JSONObject message) {
+            messages.add(message);
+        }
+
+        public JSONObject take() {
+            check(messages.size() == 1, "Expected one message, sent " + messages);
+            return messages.remove(0);
+        }
+    }
+
+    private static class Counted {
+        public final RecordingSink sink = new RecordingSink();
+        public final AtomicLong updates = new AtomicLong(0L);
+        public final AtomicLong messages = new AtomicLong(0L);
+        public final StateBatcher batcher = new StateBatcher(WINDOW_MS, sink, updates, messages);
+    }
+
+    private static final Looper looper = Looper.getMainLooper();
+
+    public static void main(String[] args) throws JSONException {
+        testFullThenDelta();
+        testCoalesce();
+        testCancelOut();
+        testFullAfterInvalidate();
+        testCancel();
+        benchmarkSkipStorm();
+        benchmarkBursts();
+        System.out.println("StateBatcherTest passed");
+    }
+
+    private static void testFullThenDelta() throws JSONException {
+        Counted counted = new Counted();
+        StateBatcher batcher = counted.batcher;
+
+        batcher.update(ALBUM_ID, PLAYING, 0);
+        batcher.updateTrack(100L, track(100L));
+        looper.advance(WINDOW_MS - 1);
+        check(counted.sink.messages.isEmpty(), "Sent before the window had passed: " + counted.sink.messages);
+        looper.advance(1L);
+
+        JSONObject full = counted.sink.take();
+        checkKeys(full, "albumId", "state", "index", "track", "full", "seq");
+        check(full.getLong("albumId") == ALBUM_ID && full.getInt("state") == PLAYING && full.getInt("index") == 0,
+              "full: " + full);
+        check(full.getJSONObject("track").getLong("id") == 100L, "full: " + full);
+        check(full.getInt("seq") == 1 && batcher.getSequence() == 1, "full: " + full);
+
+        // Only what has changed.
+        batcher.update(ALBUM_ID, PLAYING, 1);
+        looper.advance(WINDOW_MS);
+        JSONObject delta = counted.sink.take();
+        checkKeys(delta, "index", "seq");
+        check(delta.getInt("index") == 1 && delta.getInt("seq") == 2, "delta: " + delta);
+
+        // A skip is one message with the index and the track.
+        batcher.update(ALBUM_ID, PLAYING, 2);
+        batcher.updateTrack(102L, track(102L));
+        looper.advance(WINDOW_MS);
+        JSONObject skip = counted.sink.take();
+        checkKeys(skip, "index", "track", "seq");
+        check(skip.getJSONObject("track").getLong("id") == 102L && skip.getInt("seq") == 3, "skip: " + skip);
+
+        check(counted.updates.get() == 5L && counted.messages.get() == 3L,
+              "updates " + counted.updates + ", messages " + counted.messages);
+    }
+
+    private static void testCoalesce() throws JSONException {
+        Counted counted = new Counted();
+        StateBatcher batcher = counted.batcher;
+        batcher.update(ALBUM_ID, PLAYING, 0);
+        looper.advance(WINDOW_MS);
+        counted.sink.take();
+
+        for(int index = 1; index <= BURST_SIZE; index ++) {
+            batcher.update(ALBUM_ID, PLAYING, index);
+            looper.advance(1L);
+        }
+        looper.advance(WINDOW_MS);
+
+        JSONObject message = counted.sink.take();
+        checkKeys(message, "index", "seq");
+        check(message.getInt("index") == BURST_SIZE && message.getInt("seq") == 2, "coalesced: " + message);
+    }
+
+    private static void testCancelOut() throws JSONException {
+        Counted counted = new Counted();
+        StateBatcher batcher = counted.batcher;
+        batcher.update(ALBUM_ID, PLAYING, 3);
+        batcher.updateTrack(103L, track(103L));
+        looper.advance(WINDOW_MS);
+        counted.sink.take();
+
+        // A transient pause and the same track again.
+        batcher.update(ALBUM_ID, PAUSED, 3);
+        batcher.updateTrack(103L, track(103L));
+        batcher.update(ALBUM_ID, PLAYING, 3);
+        looper.advance(WINDOW_MS);
+        check(counted.sink.messages.isEmpty(), "Changes which cancel out were sent: " + counted.sink.messages);
+        check(batcher.getSequence() == 1 && counted.messages.get() == 1L, "seq " + batcher.getSequence());
+        check(looper.getQueueSize() == 0, "Still scheduled: " + looper.getQueueSize());
+
+        // The next real change continues the sequence.
+        batcher.update(ALBUM_ID, PAUSED, 3);
+        looper.advance(WINDOW_MS);
+        JSONObject message = counted.sink.take();
+        checkKeys(message, "state", "seq");
+        check(message.getInt("state") == PAUSED && message.getInt("seq") == 2, "after cancelling out: " + message);
+    }
+
+    private static void testFullAfterInvalidate() throws JSONException {
+        Counted counted = new Counted();
+        StateBatcher batcher = counted.batcher;
+
+        // Nothing to send yet, so nothing is scheduled.
+        batcher.invalidate();
+        check(looper.getQueueSize() == 0, "Scheduled without a value");
+
+        batcher.update(ALBUM_ID, PLAYING, 4);
+        batcher.updateTrack(104L, track(104L));
+        looper.advance(WINDOW_MS);
+        counted.sink.take();
+
+        // Nothing has changed, but the receiver may have missed the messages.
+        batcher.invalidate();
+        looper.advance(WINDOW_MS);
+        JSONObject full = counted.sink.take();
+        checkKeys(full, "albumId", "state", "index", "track", "full", "seq");
+        check(full.getInt("index") == 4 && full.getJSONObject("track").getLong("id") == 104L, "full: " + full);
+        check(full.getInt("seq") == 2, "full: " + full);
+
+        batcher.update(ALBUM_ID, PLAYING, 5);
+        looper.advance(WINDOW_MS);
+        checkKeys(counted.sink.take(), "index", "seq");
+    }
+
+    private static void testCancel() {
+        Counted counted = new Counted();
+        StateBatcher batcher = counted.batcher;
+        batcher.update(ALBUM_ID, PLAYING, 0);
+        batcher.cancel();
+        looper.advance(WINDOW_MS);
+        check(counted.sink.messages.isEmpty(), "Sent after cancel: " + counted.sink.messages);
+        check(looper.getQueueSize() == 0, "Still scheduled after cancel: " + looper.getQueueSize());
+    }
+
+    /**
+     * Next held down: a skip every SKIP_INTERVAL_MS, and a transient pause before every third one.
+     * Every skip must still reach the UI as a single {index, track, seq} message.
+     */
+    private static void benchmarkSkipStorm() throws JSONException {
+        Counted counted = new Counted();
+        StateBatcher batcher = counted.batcher;
+        batcher.update(ALBUM_ID, PLAYING, 0);
+        batcher.updateTrack(100L, track(100L));
+        looper.advance(SKIP_INTERVAL_MS);
+        counted.sink.take();
+        counted.updates.set(0L);
+        counted.messages.set(0L);
+
+        int skips = (int)(STORM_MS / SKIP_INTERVAL_MS);
+        long bytes = 0L;
+        for(int index = 1; index <= skips; index ++) {
+            if(index % 3 == 0) {
+                batcher.update(ALBUM_ID, PAUSED, index - 1);
+            }
+            batcher.updateTrack(100L + index, track(100L + index));
+            batcher.update(ALBUM_ID, PLAYING, index);
+            looper.advance(SKIP_INTERVAL_MS);
+
+            JSONObject message = counted.sink.take();
+            checkKeys(message, "index", "track", "seq");
+            check(message.getInt("index") == index && message.getJSONObject("track").getLong("id") == 100L + index,
+                  "skip " + index + ": " + message);
+            check(message.getInt("seq") == index + 1, "skip " + index + ": " + message);
+            bytes += message.toString().length();
+        }
+
+        report("Skip storm", counted, bytes);
+        check(counted.messages.get() == skips, "messages: " + counted.messages);
+        check(counted.messages.get() < counted.updates.get(), "Nothing was coalesced");
+    }
+
+    /**
+     * BURST_SIZE changes within one frame every BURST_INTERVAL_MS: one message per burst.
+     */
+    private static void benchmarkBursts() throws JSONException {
+        Counted counted = new Counted();
+        StateBatcher batcher = counted.batcher;
+        batcher.update(ALBUM_ID, PLAYING, 0);
+        looper.advance(BURST_INTERVAL_MS);
+        counted.sink.take();
+        counted.updates.set(0L);
+        counted.messages.set(0L);
+
+        int bursts = (int)(STORM_MS / BURST_INTERVAL_MS);
+        int index = 0;
+        long bytes = 0L;
+        for(int burst = 0; burst < bursts; burst ++) {
+            for(int i = 0; i < BURST_SIZE; i ++) {
+                index ++;
+                batcher.update(ALBUM_ID, (i % 2 == 0) ? PAUSED : PLAYING, index);
+                looper.advance(2L);
+            }
+            looper.advance(BURST_INTERVAL_MS - 2L * BURST_SIZE);
+
+            JSONObject message = counted.sink.take();
+            check(message.getInt("index") == index, "burst " + burst + ": " + message);
+            bytes += message.toString().length();
+        }
+
+        report("Bursts", counted, bytes);
+        check(counted.messages.get() == bursts, "messages: " + counted.messages);
+        check(counted.updates.get() == (long)bursts * BURST_SIZE, "updates: " + counted.updates);
+    }
+
+    private static void report(String name, Counted counted, long bytes) {
+        double seconds = STORM_MS / 1000.0;
+        System.out.println(String.format("%s: %.1f updates/s became %.1f messages/s, %d chars per message",
+                                         name, counted.updates.get() / seconds, counted.messages.get() / seconds,
+                                         bytes / counted.messages.get()));
+    }
+
+    private static JSONObject track(long id) throws JSONException {
+        return new JSONObject().put("id", id).put("title", "Track " + id);
+    }
+
+    private static void checkKeys(JSONObject message, String... keys) {
+        check(message.length() == keys.length, "Expected the keys " + Arrays.toString(keys) + " in " + message);
+        for(String key : keys) {
+            check(message.has(key), "Expected " + key + " in " + message);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if(!condition)
+            throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,69 @@
+package org.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stands in for the framework class on a plain JVM, where android.jar only has stubs
+ * which throw. It comes before android.jar on the classpath of the JVM tests.
+ */
+public class JSONArray {
+
+    private final List<Object> values = new ArrayList<Object>();
+
+    public JSONArray put(Object value) {
+        values.add(value);
+        return this;
+    }
+
+    public JSONArray put(long value) {
+        return put(Long.valueOf(value));
+    }
+
+    public JSONArray put(int value) {
+        return put(Integer.valueOf(value));
+    }
+
+    public JSONArray put(boolean value) {
+        return put(Boolean.valueOf(value));
+    }
+
+    public Object get(int index) throws JSONException {
+        if(index < 0 || index >= values.size())
+            throw new JSONException("Index " + index + " out of range");
+        return values.get(index);
+    }
+
+    public long getLong(int index) throws JSONException {
+        Object value = get(index);
+        if(!(value instanceof Number))
+            throw new JSONException(index + " is not a number");
+        return ((Number)value).longValue();
+    }
+
+    public String getString(int index) throws JSONException {
+        return String.valueOf(get(index));
+    }
+
+    public int length() {
+        return values.size();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        write(out);
+        return out.toString();
+    }
+
+    void write(StringBuilder out) {
+        out.append('[');
+        for(int i = 0; i < values.size(); i ++) {
+            if(i > 0) {
+                out.append(',');
+            }
+            JSONObject.write(out, values.get(i));
+        }
+        out.append(']');
+    }
+}
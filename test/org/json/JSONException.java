@@ -0,0 +1,12 @@
+package org.json;
+
+/**
+ * Stands in for the framework class on a plain JVM, where android.jar only has stubs
+ * which throw. It comes before android.jar on the classpath of the JVM tests.
+ */
+public class JSONException extends Exception {
+
+    public JSONException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,192 @@
+package org.json;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Stands in for the framework class on a plain JVM, where android.jar only has stubs
+ * which throw. It comes before android.jar on the classpath of the JVM tests.
+ *
+ * Like the framework's, it keeps boxed values in a LinkedHashMap and writes the tree
+ * out on toString(), so that it allocates per value as the framework's does.
+ */
+public class JSONObject {
+
+    public static final Object NULL = new Object() {
+        @Override
+        public String toString() {
+            return "null";
+        }
+    };
+
+    private final Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+    public JSONObject put(String name, Object value) throws JSONException {
+        if(name == null)
+            throw new JSONException("Names must be non-null");
+
+        if(value == null) {
+            values.remove(name);
+        } else {
+            values.put(name, value);
+        }
+        return this;
+    }
+
+    public JSONObject put(String name, long value) throws JSONException {
+        return put(name, Long.valueOf(value));
+    }
+
+    public JSONObject put(String name, int value) throws JSONException {
+        return put(name, Integer.valueOf(value));
+    }
+
+    public JSONObject put(String name, double value) throws JSONException {
+        return put(name, Double.valueOf(value));
+    }
+
+    public JSONObject put(String name, boolean value) throws JSONException {
+        return put(name, Boolean.valueOf(value));
+    }
+
+    public Object opt(String name) {
+        return values.get(name);
+    }
+
+    public Object get(String name) throws JSONException {
+        Object value = values.get(name);
+        if(value == null)
+            throw new JSONException("No value for " + name);
+        return value;
+    }
+
+    public long getLong(String name) throws JSONException {
+        Object value = get(name);
+        if(!(value instanceof Number))
+            throw new JSONException(name + " is not a number");
+        return ((Number)value).longValue();
+    }
+
+    public int getInt(String name) throws JSONException {
+        return (int)getLong(name);
+    }
+
+    public boolean getBoolean(String name) throws JSONException {
+        Object value = get(name);
+        if(!(value instanceof Boolean))
+            throw new JSONException(name + " is not a boolean");
+        return (Boolean)value;
+    }
+
+    public String getString(String name) throws JSONException {
+        return String.valueOf(get(name));
+    }
+
+    public JSONObject getJSONObject(String name) throws JSONException {
+        Object value = get(name);
+        if(!(value instanceof JSONObject))
+            throw new JSONException(name + " is not an object");
+        return (JSONObject)value;
+    }
+
+    public JSONArray getJSONArray(String name) throws JSONException {
+        Object value = get(name);
+        if(!(value instanceof JSONArray))
+            throw new JSONException(name + " is not an array");
+        return (JSONArray)value;
+    }
+
+    public JSONArray optJSONArray(String name) {
+        Object value = values.get(name);
+        return (value instanceof JSONArray) ? (JSONArray)value : null;
+    }
+
+    public int optInt(String name, int fallback) {
+        Object value = values.get(name);
+        return (value instanceof Number) ? ((Number)value).intValue() : fallback;
+    }
+
+    public boolean has(String name) {
+        return values.containsKey(name);
+    }
+
+    public Object remove(String name) {
+        return values.remove(name);
+    }
+
+    public int length() {
+        return values.size();
+    }
+
+    public Iterator<String> keys() {
+        return values.keySet().iterator();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        write(out, this);
+        return out.toString();
+    }
+
+    static void write(StringBuilder out, Object value) {
+        if(value instanceof JSONObject) {
+            out.append('{');
+            boolean isFirst = true;
+            for(Map.Entry<String, Object> entry : ((JSONObject)value).values.entrySet()) {
+                if(!isFirst) {
+                    out.append(',');
+                }
+                isFirst = false;
+                quote(out, entry.getKey());
+                out.append(':');
+                write(out, entry.getValue());
+            }
+            out.append('}');
+        } else if(value instanceof JSONArray) {
+            ((JSONArray)value).write(out);
+        } else if(value instanceof String) {
+            quote(out, (String)value);
+        } else {
+            out.append(value);
+        }
+    }
+
+    private static void quote(StringBuilder out, String value) {
+        out.append('"');
+        for(int i = 0; i < value.length(); i ++) {
+            char c = value.charAt(i);
+            switch(c) {
+                case '"':
+                case '\\':
+                case '/':
+                    out.append('\\').append(c);
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    if(c <= 0x1f) {
+                        out.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+        out.append('"');
+    }
+}